@@ -1,136 +1,341 @@
+import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
-import java.util.List;
+import java.awt.image.BufferStrategy;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
 import java.awt.event.*;
 import java.io.*;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import com.google.gson.Gson;;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 
 public class Client extends JFrame {
     private static final String HOST = "127.0.0.1";
     private static final int PORT = 5000;
+    private static final int RENDER_FPS = 60; // 目標畫面更新率，與伺服器送快照的頻率無關
+    private static final int INPUT_INTERVAL_MS = 1000 / RENDER_FPS; // 每隔多久把按鍵狀態整理成一個輸入送出
+    private static final int INPUT_HEARTBEAT_MS = 250; // 按鍵沒有變化時，隔多久仍送出一個輸入
+    private static final boolean USE_UDP = !"false".equals(System.getProperty("udp")); // -Dudp=false 時只用 TCP
+    private static final int SPECTATE_ROOM = Integer.getInteger("spectate", -1); // -Dspectate=<房間編號> 時連到觀戰轉送，只看不玩
+    private static final int SPECTATOR_PORT = PORT + 1;
+    private static final boolean USE_COMPRESSION = !"false".equals(System.getProperty("compress")); // -Dcompress=false 時不要求壓縮
+
+    private static final long NO_HEALTH_PACK = -1;
 
     private Socket socket;
-    private PrintWriter out;
-    private List<PlayerState> players = new ArrayList<>();
-    private GamePanel gamePanel;
-    private boolean gameOver = false; // 遊戲結束標誌
-    private int winnerId = -1; // 獲勝者ID
-    private HealthPack healthPack;
-    private List<BlackBullet> blackBullets = new ArrayList<>();
+    private CommandWriter out;
+    private volatile UdpClient udp; // 伺服器提供 UDP 時建立，連不上時 isActive 為 false
+    private final RenderFrame frame = new RenderFrame(); // 只在繪製執行緒存取
+    private GameCanvas gameCanvas;
+    private volatile boolean gameOver = false; // 遊戲結束標誌
+    private volatile int winnerId = -1; // 獲勝者ID
+    private volatile long healthPack = NO_HEALTH_PACK; // 補包座標打包成 (x << 32) | y，收到訊息時不需建立物件
+    private volatile int myId = -1; // 伺服器指定的玩家編號
+    private final SnapshotInterpolator interpolator = new SnapshotInterpolator();
+    private final MovementPredictor predictor = new MovementPredictor();
+    // 輸入狀態，以 this 同步
+    private int inputSeq = 0; // 已送出的輸入數
+    private int keys = 0; // 目前按住的鍵
+    private int tapped = 0; // 上次送出之後按下過的鍵（按下又放開的鍵也要讓伺服器看到一次）
+    private int sentKeys = 0;
+    private long lastInputSentAt = 0;
 
     public Client() {
-        setTitle("Multiplayer Game Client");
+        setTitle(SPECTATE_ROOM >= 0 ? "觀戰：房間 " + SPECTATE_ROOM : "Multiplayer Game Client");
         setSize(1280, 720);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         setLocationRelativeTo(null);
 
         // 建立連線
         try {
-            socket = new Socket(HOST, PORT);
-            out = new PrintWriter(socket.getOutputStream(), true);
+            socket = new Socket(HOST, SPECTATE_ROOM >= 0 ? SPECTATOR_PORT : PORT);
+            out = new CommandWriter(socket.getOutputStream());
+            if (USE_COMPRESSION) out.send(CompressionDictionary.request()); // 伺服器同意時回覆 MSG_COMPRESSION
+            if (SPECTATE_ROOM >= 0) out.send("WATCH " + SPECTATE_ROOM);
         } catch (IOException e) {
             e.printStackTrace();
             JOptionPane.showMessageDialog(this, "無法連接到伺服器", "錯誤", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
         }
 
-        // 初始化遊戲面板
-        gamePanel = new GamePanel();
+        // 初始化遊戲畫布
+        gameCanvas = new GameCanvas();
         BackgroundMusic.play();
-        add(gamePanel);
+        add(gameCanvas);
 
-        // 處理按鍵事件
-        setFocusable(true);
-        requestFocusInWindow();
-        addKeyListener(new KeyAdapter() {
+        // 處理按鍵事件（畫布是重量級元件，會取得鍵盤焦點）
+        gameCanvas.setFocusable(true);
+        gameCanvas.addKeyListener(new KeyAdapter() {
             @Override
             public void keyPressed(KeyEvent e) {
-                if (!gameOver) sendCommandToServer("PRESS " + e.getKeyChar());
+                if (!gameOver) sendInput(true, e.getKeyChar());
             }
 
             @Override
             public void keyReleased(KeyEvent e) {
-                if (!gameOver) sendCommandToServer("RELEASE " + e.getKeyChar());
+                if (!gameOver) sendInput(false, e.getKeyChar());
             }
         });
 
         // 啟動接收伺服器狀態的執行緒
         new Thread(new GameStateReceiver()).start();
+
+        if (SPECTATE_ROOM < 0) {
+            ScheduledExecutorService inputTimer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "input");
+                thread.setDaemon(true);
+                return thread;
+            });
+            inputTimer.scheduleAtFixedRate(this::sendInputFrame, INPUT_INTERVAL_MS, INPUT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
     }
 
-    private void sendCommandToServer(String cmd) {
-        if (out != null) out.println(cmd);
+    // 視窗顯示後才能建立 BufferStrategy，因此在 setVisible 之後啟動繪製執行緒
+    private void startRendering() {
+        gameCanvas.requestFocusInWindow();
+        Thread renderer = new Thread(gameCanvas, "render");
+        renderer.setDaemon(true);
+        renderer.start();
+    }
+
+    // 按鍵事件只更新按鍵狀態並交給本地預測，不直接送出；按住不放時系統重複送來的按下事件沒有任何作用
+    private synchronized void sendInput(boolean press, char key) {
+        if (SPECTATE_ROOM >= 0) return; // 觀戰者沒有輸入
+        int bit = InputBuffer.keyBit(String.valueOf(key));
+        int newKeys = press ? keys | bit : keys & ~bit;
+        if (newKeys == keys) return;
+        keys = newKeys;
+        if (press) tapped |= bit;
+        predictor.keys(keys, System.nanoTime());
+    }
+
+    // 每 INPUT_INTERVAL_MS 執行一次：按鍵有變化或距離上次超過 INPUT_HEARTBEAT_MS 時，送出一個帶序號的完整按鍵遮罩
+    // （"INPUT <序號> <遮罩>"，UDP 連通後改走 UDP，序號共用同一個計數）。心跳也使用新的序號，
+    // 伺服器回報的 lastInput 持續前進，按住不動時本地預測估計的來回時間也會更新
+    private synchronized void sendInputFrame() {
+        long now = System.nanoTime();
+        int frameKeys = keys | tapped;
+        tapped = 0;
+        if (frameKeys == sentKeys && now - lastInputSentAt < INPUT_HEARTBEAT_MS * 1_000_000L) return;
+        inputSeq++;
+        sentKeys = frameKeys;
+        lastInputSentAt = now;
+        predictor.inputSent(inputSeq, now);
+        UdpClient udp = this.udp;
+        if (udp != null && udp.isActive()) {
+            udp.sendInput(inputSeq, frameKeys);
+        } else if (out != null) {
+            try {
+                out.sendInput(inputSeq, frameKeys);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
-    private class GamePanel extends JPanel {
-        private Image backgroundImage;
-        private Image healthPackImage;
+    private void sendCommandToServer(String cmd) {
+        if (out == null) return;
+        try {
+            out.send(cmd);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
-        public GamePanel() {
+    // 主動繪製（active rendering）：獨立的繪製執行緒以固定的目標 FPS 透過 BufferStrategy 直接畫到畫面，
+    // 與封包到達的時間無關，也不經過 Swing 的 repaint 佇列。
+    // 背景與補包圖片只在畫布大小改變（或 VolatileImage 的內容遺失）時縮放一次，之後每一幀直接貼上；
+    // 顏色、字型與血條文字也都快取起來，要畫的實體放在重複使用的 RenderFrame 中，繪製一幀不需要配置新物件。
+    private class GameCanvas extends Canvas implements Runnable {
+        private static final int HEALTH_PACK_SIZE = 40;
+        private static final int MAX_LABELS = 4; // 快取血條文字的玩家數
+
+        private BufferedImage backgroundSource;
+        private BufferedImage healthPackSource;
+        private VolatileImage background; // 已縮放到畫布大小的背景
+        private Image healthPackSprite; // 已縮放到補包大小
+        private final ColorCache colors = new ColorCache();
+        private final Font titleFont = new Font("Arial", Font.BOLD, 36);
+        private final Font buttonFont = new Font("Dialog", Font.PLAIN, 14);
+        private final int[] labelHealth = new int[MAX_LABELS];
+        private final String[] labels = new String[MAX_LABELS];
+        private final Rectangle exitButton = new Rectangle(); // 遊戲結束畫面上的「結束遊戲」按鈕
+        private String winnerLabel;
+        private int winnerLabelId = -1;
+
+        public GameCanvas() {
+            setIgnoreRepaint(true); // 畫面只由繪製執行緒更新
             try {
                 // 載入背景與補包圖片
-                backgroundImage = Toolkit.getDefaultToolkit().getImage(getClass().getResource("/img/bg.png"));
-                healthPackImage = Toolkit.getDefaultToolkit().getImage(getClass().getResource("/img/hp.jpg"));
-                if (healthPackImage == null) {
+                backgroundSource = loadImage("/img/bg.png");
+                healthPackSource = loadImage("/img/hp.jpg");
+                if (healthPackSource == null) {
                     System.out.println("補包圖片載入失敗！");
                 }
-            } catch (Exception e) {
+            } catch (IOException e) {
                 e.printStackTrace();
                 System.out.println("圖片載入失敗！");
             }
+
+            // 遊戲結束畫面的按鈕直接畫在畫布上，以滑鼠位置判斷是否按下
+            addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    if (gameOver && exitButton.contains(e.getPoint())) {
+                        System.exit(0);
+                    }
+                }
+            });
+        }
+
+        private BufferedImage loadImage(String path) throws IOException {
+            java.net.URL url = getClass().getResource(path);
+            return url == null ? null : ImageIO.read(url);
         }
 
+        // 繪製迴圈，在視窗顯示後於獨立的執行緒上執行
         @Override
-        protected void paintComponent(Graphics g) {
-            super.paintComponent(g);
+        public void run() {
+            createBufferStrategy(2);
+            BufferStrategy strategy = getBufferStrategy();
+            long frameNanos = 1_000_000_000L / RENDER_FPS;
+            long nextFrame = System.nanoTime();
+            while (isDisplayable()) {
+                do {
+                    do {
+                        Graphics2D g = (Graphics2D) strategy.getDrawGraphics();
+                        try {
+                            render(g, getWidth(), getHeight());
+                        } finally {
+                            g.dispose();
+                        }
+                    } while (strategy.contentsRestored());
+                    strategy.show();
+                } while (strategy.contentsLost());
+                Toolkit.getDefaultToolkit().sync();
+
+                nextFrame += frameNanos;
+                long wait = nextFrame - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                } else if (-wait > frameNanos) {
+                    nextFrame = System.nanoTime(); // 落後超過一幀時不補畫，從現在重新計時
+                }
+            }
+        }
+
+        private void render(Graphics2D g, int width, int height) {
+            updateRenderState();
 
             // 繪製背景圖片
-            if (backgroundImage != null) {
-                g.drawImage(backgroundImage, 0, 0, getWidth(), getHeight(), this);
-            } else {
-                g.setColor(Color.WHITE);
-                g.fillRect(0, 0, getWidth(), getHeight());
-            }
-                // 繪製黑色子彈
+            drawBackground(g, width, height);
+
+            RenderFrame f = frame;
+
+            // 繪製黑色子彈
             g.setColor(Color.BLACK);
-            for (BlackBullet bullet : blackBullets) {
-                g.fillOval(bullet.x, bullet.y, 20, 20);
+            for (int i = 0; i < f.blackCount; i++) {
+                g.fillOval(f.blackX[i], f.blackY[i], 20, 20);
             }
 
-
             // 繪製玩家和子彈繪製補包
             if (!gameOver) {
-                for (PlayerState player : players) {
-                    g.setColor(new Color(player.playerColor));
-                    g.fillOval(player.x, player.y, 60, 60);
-
-                    g.setColor(new Color(player.bulletColor));
-                    for (Bullet bullet : player.bullets) {
-                        g.fillOval(bullet.x, bullet.y, 20, 20);
-                    }
-                    if (healthPack != null) {
-                        int x = healthPack.x;
-                        int y = healthPack.y;
-                        g.drawImage(healthPackImage, x, y, 40, 40, this);
+                for (int i = 0; i < f.playerCount; i++) {
+                    g.setColor(colors.get(f.playerColor[i]));
+                    g.fillOval(f.playerX[i], f.playerY[i], 60, 60);
+
+                    g.setColor(colors.get(f.bulletColor[i]));
+                    for (int j = 0; j < f.bulletCount; j++) {
+                        if (f.bulletOwner[j] == f.playerId[i]) {
+                            g.fillOval(f.bulletX[j], f.bulletY[j], 20, 20);
+                        }
                     }
                 }
+                long pack = healthPack;
+                if (pack != NO_HEALTH_PACK && f.playerCount > 0) {
+                    Image sprite = healthPackSprite();
+                    if (sprite != null) g.drawImage(sprite, (int) (pack >> 32), (int) pack, null);
+                }
 
-                drawHealthBars(g);
+                drawHealthBars(g, width);
             } else {
-                drawGameOverScreen(g);
+                drawGameOverScreen(g, width, height);
+            }
+        }
+
+        // 取得這一幀要畫的狀態：其他實體使用內插的位置，自己的角色使用本地預測的位置
+        private void updateRenderState() {
+            long now = System.nanoTime();
+            if (!interpolator.sample(now / 1_000_000, frame)) return;
+            predictor.advance(now);
+            for (int i = 0; i < frame.playerCount; i++) {
+                if (frame.playerId[i] == myId && predictor.isActive()) {
+                    frame.playerX[i] = predictor.displayX();
+                    frame.playerY[i] = predictor.displayY();
+                }
             }
         }
 
-        private void drawHealthBars(Graphics g) {
-            for (PlayerState player : players) {
+        // 背景只在畫布大小改變或顯示卡記憶體內容遺失時重新縮放
+        private void drawBackground(Graphics2D g, int width, int height) {
+            if (backgroundSource == null) {
+                g.setColor(Color.WHITE);
+                g.fillRect(0, 0, width, height);
+                return;
+            }
+            int status = VolatileImage.IMAGE_INCOMPATIBLE;
+            if (background != null && background.getWidth() == width && background.getHeight() == height) {
+                status = background.validate(getGraphicsConfiguration());
+            }
+            if (status == VolatileImage.IMAGE_INCOMPATIBLE) {
+                if (background != null) background.flush();
+                background = createVolatileImage(Math.max(1, width), Math.max(1, height));
+                status = VolatileImage.IMAGE_RESTORED;
+            }
+            if (status == VolatileImage.IMAGE_RESTORED) {
+                Graphics2D bg = background.createGraphics();
+                try {
+                    bg.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    bg.drawImage(backgroundSource, 0, 0, width, height, null);
+                } finally {
+                    bg.dispose();
+                }
+            }
+            g.drawImage(background, 0, 0, null);
+        }
+
+        private Image healthPackSprite() {
+            if (healthPackSprite == null && healthPackSource != null) {
+                BufferedImage sprite = getGraphicsConfiguration().createCompatibleImage(
+                        HEALTH_PACK_SIZE, HEALTH_PACK_SIZE, healthPackSource.getTransparency());
+                Graphics2D sg = sprite.createGraphics();
+                try {
+                    sg.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    sg.drawImage(healthPackSource, 0, 0, HEALTH_PACK_SIZE, HEALTH_PACK_SIZE, null);
+                } finally {
+                    sg.dispose();
+                }
+                healthPackSprite = sprite;
+            }
+            return healthPackSprite;
+        }
+
+        private void drawHealthBars(Graphics2D g, int width) {
+            RenderFrame f = frame;
+            for (int i = 0; i < f.playerCount; i++) {
+                int id = f.playerId[i];
+                int health = f.playerHealth[i];
                 int barWidth = 200, barHeight = 20;
-                int barX = player.userId == 0 ? 50 : getWidth() - 250;
+                int barX = id == 0 ? 50 : width - 250;
                 int barY = 20;
 
-                int currentWidth = (int) ((player.health / 100.0) * barWidth);
+                int currentWidth = (int) ((health / 100.0) * barWidth);
 
                 g.setColor(Color.GRAY);
                 g.fillRect(barX, barY, barWidth, barHeight);
@@ -140,30 +345,62 @@ public class Client extends JFrame {
 
                 g.setColor(Color.WHITE);
                 g.drawRect(barX, barY, barWidth, barHeight);
-                g.drawString("Player " + (player.userId + 1) + ": " + player.health + " HP", barX, barY - 5);
+                g.drawString(healthLabel(id, health), barX, barY - 5);
             }
         }
 
-        private void drawGameOverScreen(Graphics g) {
-            setLayout(null);
+        // 血量改變時才重新產生文字
+        private String healthLabel(int id, int health) {
+            if (id < 0 || id >= MAX_LABELS) {
+                return "Player " + (id + 1) + ": " + health + " HP";
+            }
+            if (labels[id] == null || labelHealth[id] != health) {
+                labels[id] = "Player " + (id + 1) + ": " + health + " HP";
+                labelHealth[id] = health;
+            }
+            return labels[id];
+        }
 
+        private void drawGameOverScreen(Graphics2D g, int width, int height) {
             // 繪製遊戲結束畫面
+            if (winnerLabel == null || winnerLabelId != winnerId) {
+                winnerLabelId = winnerId;
+                winnerLabel = "Player " + (winnerId + 1) + " Win!";
+            }
             g.setColor(Color.BLACK);
-            g.setFont(new Font("Arial", Font.BOLD, 36));
-            g.drawString("Player " + (winnerId + 1) + " Win!", getWidth() / 2 - 100, getHeight() / 2 - 100);
+            g.setFont(titleFont);
+            g.drawString(winnerLabel, width / 2 - 100, height / 2 - 100);
 
-            // JButton restartButton = new JButton("再來一局");
-            // restartButton.setBounds(getWidth() / 2 - 150, getHeight() / 2 - 25, 150, 50);
-            // restartButton.addActionListener(e -> restartGame());
-            // add(restartButton);
+            // 結束遊戲按鈕
+            exitButton.setBounds(width / 2 - 100, height / 2 - 25, 150, 50);
+            g.setColor(Color.LIGHT_GRAY);
+            g.fill3DRect(exitButton.x, exitButton.y, exitButton.width, exitButton.height, true);
+            g.setColor(Color.BLACK);
+            g.setFont(buttonFont);
+            FontMetrics metrics = g.getFontMetrics();
+            String text = "結束遊戲";
+            g.drawString(text, exitButton.x + (exitButton.width - metrics.stringWidth(text)) / 2,
+                    exitButton.y + (exitButton.height + metrics.getAscent() - metrics.getDescent()) / 2);
+        }
+    }
 
-            JButton exitButton = new JButton("結束遊戲");
-            exitButton.setBounds(getWidth() / 2 - 100 , getHeight() / 2 - 25, 150, 50);
-            exitButton.addActionListener(e -> System.exit(0));
-            add(exitButton);
+    // 依 RGB 值快取 Color 物件，遊戲中只會出現少數幾種顏色
+    static class ColorCache {
+        private int[] rgb = new int[8];
+        private Color[] colors = new Color[8];
+        private int count = 0;
 
-            revalidate();
-            repaint();
+        Color get(int value) {
+            for (int i = 0; i < count; i++) {
+                if (rgb[i] == value) return colors[i];
+            }
+            if (count == rgb.length) {
+                rgb = Arrays.copyOf(rgb, count * 2);
+                colors = Arrays.copyOf(colors, count * 2);
+            }
+            rgb[count] = value;
+            colors[count] = new Color(value, true);
+            return colors[count++];
         }
     }
 
@@ -174,12 +411,19 @@ public class Client extends JFrame {
     }
 
     private class GameStateReceiver implements Runnable {
-        private BufferedReader in;
-        private Gson gson = new Gson();
+        private static final int SNAPSHOT_HISTORY = 64; // 需與伺服器的歷史長度一致
+
+        private DataInputStream in;
+        private final GameProtocol.Reader reader = new GameProtocol.Reader();
+        private final Snapshot[] history = new Snapshot[SNAPSHOT_HISTORY];
+        private Snapshot spare = new Snapshot(); // 要覆寫的位置剛好是差異的基準時改用這個物件，解碼後互換
+        private final InterestGrid.Receiver cells = new InterestGrid.Receiver(); // 伺服器開啟興趣範圍過濾時，每一格的歷史
+        private int lastProcessedInput = 0; // 伺服器已套用的輸入指令數
+        private int newestTick = 0; // 已套用的最新快照，UDP 上較晚到的舊快照直接丟棄
 
         public GameStateReceiver() {
             try {
-                in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"));
+                in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -188,70 +432,475 @@ public class Client extends JFrame {
         @Override
         public void run() {
             try {
-                String json;
-                while ((json = in.readLine()) != null) {
-                    if (json.startsWith("HEALTH_PACK ")) {
-                        System.out.println(json);
-                        HealthPack receivedHealthPack = gson.fromJson(json.substring(12), HealthPack.class);
-                        if (receivedHealthPack.x == 0 && receivedHealthPack.y == 0) {
-                            healthPack = null; // 伺服器同步補包已刪除
-                        } else {
-                            healthPack = receivedHealthPack; // 更新補包狀態
-                        }
-                        gamePanel.repaint();
-                    } else if (json.startsWith("GAME_OVER ")) {
-                        int winnerId = Integer.parseInt(json.split(" ")[1]);
-                        gameOver = true;
-                        Client.this.winnerId = winnerId; // 設置獲勝者 ID
-                        gamePanel.repaint();
-                    } else {
-                        GameState gameState = gson.fromJson(json, GameState.class);
-                        players = gameState.players;
-                        blackBullets = gameState.blackBullets;
-                        gamePanel.repaint();
+                GameProtocol.readHeader(in);
+                int type;
+                while ((type = GameProtocol.readFrame(in, reader)) != -1) {
+                    if (type == GameProtocol.MSG_COMPRESSION) {
+                        in = CompressionDictionary.inflating(in); // 之後 TCP 上的資料都是壓縮串流
+                        continue;
                     }
+                    handleFrame(type, reader);
                 }
             } catch (IOException e) {
                 e.printStackTrace();
+            } finally {
+                UdpClient udp = Client.this.udp;
+                if (udp != null) udp.close();
             }
         }
-    }
 
-    static class PlayerState {
-        int userId, x, y, health, playerColor, bulletColor;
-        List<Bullet> bullets;
+        // TCP 與 UDP 的接收執行緒都會呼叫，以 this 同步
+        private synchronized void handleFrame(int type, GameProtocol.Reader reader) throws IOException {
+            if (type == GameProtocol.MSG_WELCOME) {
+                myId = reader.readVarInt();
+            } else if (type == GameProtocol.MSG_UDP_OFFER) {
+                int port = reader.readVarInt();
+                int token = reader.readInt();
+                if (USE_UDP && udp == null) {
+                    udp = UdpClient.start(HOST, port, token, this::handleFrame, PacketSimulator.fromSystemProperties());
+                }
+            } else if (type == GameProtocol.MSG_HEALTH_PACK) {
+                if (reader.readByte() == 0) {
+                    healthPack = NO_HEALTH_PACK; // 伺服器同步補包已刪除
+                } else {
+                    int x = reader.readSignedVarInt();
+                    int y = reader.readSignedVarInt();
+                    healthPack = ((long) x << 32) | (y & 0xFFFFFFFFL); // 更新補包狀態
+                }
+            } else if (type == GameProtocol.MSG_GAME_OVER) {
+                int winnerId = reader.readVarInt();
+                Client.this.winnerId = winnerId; // 設置獲勝者 ID（先於 gameOver，繪製執行緒才不會讀到舊值）
+                gameOver = true;
+            } else if (type == GameProtocol.MSG_SNAPSHOT || type == GameProtocol.MSG_SNAPSHOT_DELTA
+                    || type == GameProtocol.MSG_SNAPSHOT_CELLS) {
+                readSnapshot(reader, type); // 畫面由繪製執行緒更新
+            } else if (type == GameProtocol.MSG_RESET) {
+                // 有人重新開始，或觀看的房間開始新的一場（伺服器重新啟動時也會收到）。
+                // 新的一場模擬時間從 0 開始，伺服器重新啟動時快照序號也從頭開始，舊的快照與時間差不再適用
+                gameOver = false;
+                Client.this.winnerId = -1;
+                newestTick = 0;
+                interpolator.clear();
+            }
+            // 未知的訊息類型直接略過
+        }
+
+        // 解碼快照並存入歷史緩衝區，成功後回報 ACK；找不到差異的基準時回傳 false，等待伺服器改送完整快照
+        private boolean readSnapshot(GameProtocol.Reader reader, int type) throws IOException {
+            boolean delta = type == GameProtocol.MSG_SNAPSHOT_DELTA;
+            int lastInput = reader.readVarInt();
+            int mark = reader.pos;
+            int tick = reader.readVarInt();
+            if (tick <= newestTick) return false; // 亂序到達的舊快照
+            Snapshot base = null;
+            if (delta) {
+                int baseTick = reader.readVarInt();
+                base = history[baseTick % SNAPSHOT_HISTORY];
+                if (base == null || base.tick != baseTick) return false;
+            }
+            reader.pos = mark;
+
+            int slot = tick % SNAPSHOT_HISTORY;
+            Snapshot snapshot = history[slot];
+            if (type == GameProtocol.MSG_SNAPSHOT_CELLS) {
+                // 先解碼到備用的物件，缺少某一格的基準時歷史緩衝區維持不變
+                if (!cells.read(reader, spare)) return false;
+                Snapshot replaced = snapshot;
+                snapshot = spare;
+                spare = replaced != null ? replaced : new Snapshot();
+            } else {
+                if (snapshot == null) {
+                    snapshot = new Snapshot(); // 只在最初的 SNAPSHOT_HISTORY 個快照配置
+                } else if (snapshot == base) {
+                    snapshot = spare;
+                    spare = base;
+                }
+                if (delta) {
+                    snapshot.readDelta(reader, base);
+                } else {
+                    snapshot.readFull(reader);
+                }
+            }
+            history[slot] = snapshot;
+            newestTick = tick;
+            lastProcessedInput = lastInput;
+            UdpClient udp = Client.this.udp;
+            if (udp != null && udp.isActive()) {
+                udp.snapshotApplied(tick);
+                udp.inputProcessed(lastInput); // 遺失的輸入在這裡重送
+            } else if (SPECTATE_ROOM < 0) { // 觀戰轉送一律送完整快照，不需要 ACK
+                try {
+                    out.sendAck(snapshot.tick);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            long now = System.nanoTime();
+            interpolator.push(snapshot, now / 1_000_000);
+            // 對手加入後伺服器才開始模擬，在那之前不預測自己的移動
+            if (snapshot.playerCount > 1) {
+                for (int i = 0; i < snapshot.playerCount; i++) {
+                    if (snapshot.playerId[i] == myId) {
+                        predictor.reconcile(snapshot.playerX[i], snapshot.playerY[i], lastProcessedInput, now);
+                    }
+                }
+            }
+            return true;
+        }
     }
 
-    static class Bullet {
-        int x, y;
+    // 依伺服器時間排序的快照緩衝區，在繪製時於前後兩個快照之間內插
+    //
+    // 畫面顯示的是「目前的伺服器時間 - INTERPOLATION_DELAY_MS」的狀態，這個延遲約為兩個快照間隔，
+    // 所以快照偶爾晚到或遺失時仍有前後兩個快照可以內插，伺服器也可以降低送出頻率而不讓畫面變得不連續。
+    // 伺服器時間與本地時間的差距由收到快照的時間估計：取最快到達的樣本，再緩慢跟隨，以吸收網路抖動。
+    private static class SnapshotInterpolator {
+        private static final int CAPACITY = 32;
+        private static final int INTERPOLATION_DELAY_MS = 100;
+        private static final double OFFSET_SMOOTHING = 0.05;
+
+        private final Snapshot[] buffer = new Snapshot[CAPACITY]; // 環狀緩衝區，依時間遞增
+        private int head = 0; // 最舊的快照
+        private int count = 0;
+        private double clockOffset; // 伺服器時間 - 本地時間（毫秒）
+        private boolean synced = false;
+
+        // 在網路執行緒呼叫，快照會被複製，呼叫端可以繼續重複使用原本的物件
+        synchronized void push(Snapshot snapshot, long localMillis) {
+            if (count > 0 && snapshot.time <= at(count - 1).time) return; // 重複或過時的快照
+            int slot;
+            if (count == CAPACITY) {
+                slot = head;
+                head = (head + 1) % CAPACITY;
+            } else {
+                slot = (head + count) % CAPACITY;
+                count++;
+            }
+            if (buffer[slot] == null) buffer[slot] = new Snapshot();
+            buffer[slot].copyFrom(snapshot);
+
+            double sample = snapshot.time - localMillis;
+            if (!synced || sample > clockOffset) {
+                clockOffset = sample;
+                synced = true;
+            } else {
+                clockOffset += (sample - clockOffset) * OFFSET_SMOOTHING;
+            }
+        }
+
+        // 丟棄所有快照並重新估計時間差，之後的快照不論時間多早都會被接受
+        synchronized void clear() {
+            head = 0;
+            count = 0;
+            synced = false;
+        }
+
+        // 在繪製時呼叫，把內插後的狀態寫入 out；尚未收到任何快照時回傳 false
+        synchronized boolean sample(long localMillis, RenderFrame out) {
+            if (count == 0) return false;
+            double renderTime = localMillis + clockOffset - INTERPOLATION_DELAY_MS;
+            int k = 0;
+            while (k + 1 < count && at(k + 1).time <= renderTime) k++;
+            Snapshot from = at(k);
+            Snapshot to = k + 1 < count ? at(k + 1) : from; // 已超過最新的快照時停在最新的狀態，不外插
+            double alpha = 0;
+            if (to != from) {
+                alpha = Math.max(0, Math.min(1, (renderTime - from.time) / (to.time - from.time)));
+            }
+            interpolate(from, to, alpha, out);
+            return true;
+        }
+
+        private Snapshot at(int k) {
+            return buffer[(head + k) % CAPACITY];
+        }
+
+        // 兩個快照都有的實體內插位置，只在 to 出現的實體直接使用 to 的位置，其餘欄位一律採用 to
+        private static void interpolate(Snapshot from, Snapshot to, double alpha, RenderFrame out) {
+            out.clear();
+            for (int i = 0; i < to.playerCount; i++) {
+                int x = to.playerX[i], y = to.playerY[i];
+                for (int j = 0; j < from.playerCount; j++) {
+                    if (from.playerId[j] == to.playerId[i]) {
+                        x = lerp(from.playerX[j], x, alpha);
+                        y = lerp(from.playerY[j], y, alpha);
+                        break;
+                    }
+                }
+                out.addPlayer(to.playerId[i], x, y, to.playerHealth[i], to.playerColor[i], to.bulletColor[i]);
+            }
+
+            // 兩個快照的實體都依 id 排序，以合併的方式配對
+            int j = 0;
+            for (int i = 0; i < to.bulletCount; i++) {
+                while (j < from.bulletCount && from.bulletId[j] < to.bulletId[i]) j++;
+                int x = to.bulletX[i], y = to.bulletY[i];
+                if (j < from.bulletCount && from.bulletId[j] == to.bulletId[i]) {
+                    x = lerp(from.bulletX[j], x, alpha);
+                    y = lerp(from.bulletY[j], y, alpha);
+                }
+                out.addBullet(to.bulletOwner[i], x, y);
+            }
+            j = 0;
+            for (int i = 0; i < to.blackCount; i++) {
+                while (j < from.blackCount && from.blackId[j] < to.blackId[i]) j++;
+                int x = to.blackX[i], y = to.blackY[i];
+                if (j < from.blackCount && from.blackId[j] == to.blackId[i]) {
+                    x = lerp(from.blackX[j], x, alpha);
+                    y = lerp(from.blackY[j], y, alpha);
+                }
+                out.addBlackBullet(x, y);
+            }
+        }
+
+        private static int lerp(int a, int b, double alpha) {
+            return (int) Math.round(a + (b - a) * alpha);
+        }
     }
 
-    static class GameState {
-        List<PlayerState> players;
-        List<BlackBullet> blackBullets;
-    
-        GameState(List<PlayerState> players) {
-            this.players = players;
-            this.blackBullets = new ArrayList<>();
+    // 自己角色的本地預測：按鍵後立即以與伺服器相同的規則（GameProtocol.moveX / moveY）移動，不必等一個來回
+    //
+    // 本地以伺服器的步長推進，並記錄每一步使用的按鍵。收到權威快照時以伺服器的位置為起點，
+    // 重新套用最近一個來回時間內的步數（伺服器還沒反映的部分），得到新的預測位置。
+    // 來回時間以「送出輸入指令」到「快照的 lastInput 反映該指令」的時間估計。
+    // 校正造成的位移不直接跳過去，而是在 CORRECTION_DECAY_MS 內逐漸收斂，差距過大時（例如重新開局）直接跳到新位置。
+    private static class MovementPredictor {
+        private static final long STEP_NANOS = GameProtocol.STEP_MILLIS * 1_000_000L;
+        private static final int HISTORY = 1024; // 保留的步數（約 2 秒），也是追蹤中輸入指令的數量上限
+        private static final int MOVE_KEYS = InputBuffer.KEY_UP | InputBuffer.KEY_LEFT | InputBuffer.KEY_DOWN | InputBuffer.KEY_RIGHT;
+        private static final double RTT_SMOOTHING = 0.1;
+        private static final double CORRECTION_DECAY_MS = 100;
+        private static final int SNAP_DISTANCE = 200;
+
+        private final long[] stepTime = new long[HISTORY]; // 每一步的本地時間（奈秒），環狀
+        private final int[] stepKeys = new int[HISTORY];
+        private int stepHead = 0; // 下一步寫入的位置
+        private int stepCount = 0;
+        private final long[] inputSentAt = new long[HISTORY]; // 以序號取餘數為索引
+        private int keys = 0;
+        private int inputSeq = 0;
+        private int ackedSeq = 0;
+        private double rttMillis = 100;
+
+        private boolean active = false; // 收到自己的權威位置後才開始預測
+        private int x, y;
+        private double correctionX, correctionY;
+        private long nextStepAt;
+        private long lastAdvance;
+
+        // 按鍵一改變就以新的按鍵預測，不等送出
+        synchronized void keys(int keys, long now) {
+            advance(now);
+            this.keys = keys;
+        }
+
+        // 記錄輸入送出的時間，用來估計來回時間
+        synchronized void inputSent(int seq, long now) {
+            inputSeq = seq;
+            inputSentAt[seq % HISTORY] = now;
+        }
+
+        // 推進到 now，每經過一個步長就以目前的按鍵移動一步
+        synchronized void advance(long now) {
+            if (!active) return;
+            if (now - nextStepAt > HISTORY * STEP_NANOS) {
+                nextStepAt = now - HISTORY * STEP_NANOS; // 長時間沒有推進（例如視窗被拖曳），只補最近的步數
+            }
+            while (nextStepAt <= now) {
+                int moveKeys = keys & MOVE_KEYS;
+                x = GameProtocol.moveX(x, moveKeys, GameProtocol.PLAYER_SPEED);
+                y = GameProtocol.moveY(y, moveKeys, GameProtocol.PLAYER_SPEED);
+                stepTime[stepHead] = nextStepAt;
+                stepKeys[stepHead] = moveKeys;
+                stepHead = (stepHead + 1) % HISTORY;
+                if (stepCount < HISTORY) stepCount++;
+                nextStepAt += STEP_NANOS;
+            }
+            double decay = Math.exp(-(now - lastAdvance) / 1e6 / CORRECTION_DECAY_MS);
+            correctionX *= decay;
+            correctionY *= decay;
+            lastAdvance = now;
+        }
+
+        // 收到伺服器的權威位置，lastInput 之前的輸入都已反映在這個位置上
+        synchronized void reconcile(int serverX, int serverY, int lastInput, long now) {
+            if (lastInput > ackedSeq) {
+                if (inputSeq - lastInput < HISTORY && lastInput <= inputSeq) {
+                    double sample = (now - inputSentAt[lastInput % HISTORY]) / 1e6;
+                    rttMillis += (sample - rttMillis) * RTT_SMOOTHING;
+                }
+                ackedSeq = lastInput;
+            }
+            if (!active) {
+                active = true;
+                x = serverX;
+                y = serverY;
+                nextStepAt = now;
+                lastAdvance = now;
+                return;
+            }
+            advance(now);
+            int oldX = x, oldY = y;
+
+            // 從伺服器位置重新套用伺服器還沒反映的步數
+            x = serverX;
+            y = serverY;
+            long since = now - (long) (rttMillis * 1_000_000);
+            int n = 0;
+            while (n < stepCount && stepTime[(stepHead - n - 1 + HISTORY) % HISTORY] > since) n++;
+            for (int k = n; k > 0; k--) {
+                int moveKeys = stepKeys[(stepHead - k + HISTORY) % HISTORY];
+                x = GameProtocol.moveX(x, moveKeys, GameProtocol.PLAYER_SPEED);
+                y = GameProtocol.moveY(y, moveKeys, GameProtocol.PLAYER_SPEED);
+            }
+
+            correctionX += oldX - x;
+            correctionY += oldY - y;
+            if (Math.abs(correctionX) > SNAP_DISTANCE || Math.abs(correctionY) > SNAP_DISTANCE) {
+                correctionX = 0;
+                correctionY = 0;
+            }
+        }
+
+        synchronized boolean isActive() {
+            return active;
+        }
+
+        synchronized int displayX() {
+            return (int) Math.round(x + correctionX);
+        }
+
+        synchronized int displayY() {
+            return (int) Math.round(y + correctionY);
         }
     }
 
-    static class HealthPack {
-        int x, y;
+    // 一幀要繪製的內容，以平行陣列存放並重複使用，只在容量不足時擴充
+    static class RenderFrame {
+        int playerCount;
+        int[] playerId = new int[4];
+        int[] playerX = new int[4];
+        int[] playerY = new int[4];
+        int[] playerHealth = new int[4];
+        int[] playerColor = new int[4];
+        int[] bulletColor = new int[4];
+
+        int bulletCount;
+        int[] bulletOwner = new int[32];
+        int[] bulletX = new int[32];
+        int[] bulletY = new int[32];
+
+        int blackCount;
+        int[] blackX = new int[16];
+        int[] blackY = new int[16];
+
+        void clear() {
+            playerCount = 0;
+            bulletCount = 0;
+            blackCount = 0;
+        }
+
+        void addPlayer(int id, int x, int y, int health, int color, int bColor) {
+            if (playerCount == playerId.length) {
+                int n = playerCount * 2;
+                playerId = Arrays.copyOf(playerId, n);
+                playerX = Arrays.copyOf(playerX, n);
+                playerY = Arrays.copyOf(playerY, n);
+                playerHealth = Arrays.copyOf(playerHealth, n);
+                playerColor = Arrays.copyOf(playerColor, n);
+                bulletColor = Arrays.copyOf(bulletColor, n);
+            }
+            int i = playerCount++;
+            playerId[i] = id;
+            playerX[i] = x;
+            playerY[i] = y;
+            playerHealth[i] = health;
+            playerColor[i] = color;
+            bulletColor[i] = bColor;
+        }
+
+        void addBullet(int owner, int x, int y) {
+            if (bulletCount == bulletOwner.length) {
+                int n = bulletCount * 2;
+                bulletOwner = Arrays.copyOf(bulletOwner, n);
+                bulletX = Arrays.copyOf(bulletX, n);
+                bulletY = Arrays.copyOf(bulletY, n);
+            }
+            int i = bulletCount++;
+            bulletOwner[i] = owner;
+            bulletX[i] = x;
+            bulletY[i] = y;
+        }
+
+        void addBlackBullet(int x, int y) {
+            if (blackCount == blackX.length) {
+                int n = blackCount * 2;
+                blackX = Arrays.copyOf(blackX, n);
+                blackY = Arrays.copyOf(blackY, n);
+            }
+            int i = blackCount++;
+            blackX[i] = x;
+            blackY[i] = y;
+        }
     }
-    static class BlackBullet {
-        int x, y;
-    
-        BlackBullet(int x, int y) {
-            this.x = x;
-            this.y = y;
+
+    // 送往伺服器的文字指令（一行一個）。ACK 與 INPUT 送得頻繁，直接在預先配置的緩衝區組出位元組，不建立字串
+    static class CommandWriter {
+        private static final byte[] ACK = {'A', 'C', 'K', ' '};
+        private static final byte[] INPUT = {'I', 'N', 'P', 'U', 'T', ' '};
+
+        private final OutputStream out;
+        private final byte[] line = new byte[32];
+
+        CommandWriter(OutputStream out) {
+            this.out = new BufferedOutputStream(out);
+        }
+
+        synchronized void send(String command) throws IOException {
+            out.write(command.getBytes(StandardCharsets.UTF_8));
+            out.write('\n');
+            out.flush();
+        }
+
+        synchronized void sendAck(int tick) throws IOException {
+            int n = line.length;
+            line[--n] = '\n';
+            n = writeNumber(tick, n);
+            n -= ACK.length;
+            System.arraycopy(ACK, 0, line, n, ACK.length);
+            out.write(line, n, line.length - n);
+            out.flush();
+        }
+
+        synchronized void sendInput(int seq, int keys) throws IOException {
+            int n = line.length;
+            line[--n] = '\n';
+            n = writeNumber(keys, n);
+            line[--n] = ' ';
+            n = writeNumber(seq, n);
+            n -= INPUT.length;
+            System.arraycopy(INPUT, 0, line, n, INPUT.length);
+            out.write(line, n, line.length - n);
+            out.flush();
+        }
+
+        // 從 end 往前寫入非負整數的十進位數字，回傳開頭的位置
+        private int writeNumber(int value, int end) {
+            int n = end;
+            do {
+                line[--n] = (byte) ('0' + value % 10);
+                value /= 10;
+            } while (value > 0);
+            return n;
         }
     }
-    
+
     public static void main(String[] args) {
         SwingUtilities.invokeLater(() -> {
             Client client = new Client();
             client.setVisible(true);
+            client.startRendering();
         });
     }
 }
@@ -0,0 +1,136 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+// 串流壓縮（deflate）使用的預設字典，伺服器與客戶端各自以相同的程式產生，內容完全相同
+//
+// 以固定的種子跑一段兩位玩家隨機移動、射擊的對戰，依照 Room 送出的格式編碼完整快照與差異快照，
+// 取最後 SIZE bytes 作為字典（deflate 只會往回參考 32KB，越常出現的內容越靠近結尾越好）。
+// 字典不放進版本庫，快照格式改變時字典跟著改變；客戶端要求壓縮時附上字典的 Adler-32，與伺服器不同就不壓縮。
+//
+// 壓縮開啟後，這條連線之後的資料都是同一個 raw deflate 串流，每則訊息送出時 SYNC_FLUSH 一次，
+// 客戶端收到一則訊息的位元組就能完整解出，不必等待後面的資料。
+// 串流累積幾 KB 之後，前面送過的快照本身就是最好的參考，字典主要讓剛連上（或剛開始觀戰）的前幾秒也能壓縮：
+// 每則差異快照單獨壓縮時，沒有字典只省 2%，有字典省 31%。
+final class CompressionDictionary {
+    static final int SIZE = 8 * 1024;
+    // 差異快照的串流：等級 1 省 39%、等級 6 省 46%，每省 1 byte 的 CPU 時間差不多；等級 9 省得和 6 一樣多，時間卻多出一倍以上
+    static final int LEVEL = 6;
+
+    private static final long TRAINING_SEED = 0x4E554B47L;
+    private static final int TRAINING_STEPS = 30_000; // 一分鐘的對戰
+    private static final int SNAPSHOT_STEPS = 50 / Simulation.TICK_RATE; // 與伺服器每秒 20 次快照相同
+    private static final int INPUT_CHANGE_STEPS = 150 / Simulation.TICK_RATE; // 約每 150 ms 換一次按鍵
+    private static final int FULL_SNAPSHOT_EVERY = 20; // 每幾個快照放一個完整快照
+
+    private static final byte[] DICTIONARY = train();
+    private static final int ID = checksum(DICTIONARY);
+    private static final byte[] ACCEPT_FRAME = frame(GameProtocol.MSG_COMPRESSION);
+
+    private CompressionDictionary() {
+    }
+
+    static byte[] get() {
+        return DICTIONARY;
+    }
+
+    static int id() {
+        return ID;
+    }
+
+    // 客戶端連線後送出的指令
+    static String request() {
+        return "COMPRESS " + ID;
+    }
+
+    // 伺服器端：指令中的字典與自己的相同才同意壓縮
+    static boolean matches(String command) {
+        try {
+            return command.startsWith("COMPRESS ") && Integer.parseInt(command.substring(9).trim()) == ID;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // 同意壓縮的訊息，這則訊息本身不壓縮
+    static byte[] acceptFrame() {
+        return ACCEPT_FRAME;
+    }
+
+    // 送出端：每條連線一個，用完需呼叫 end 釋放原生記憶體
+    static Deflater newDeflater() {
+        Deflater deflater = new Deflater(LEVEL, true);
+        deflater.setDictionary(DICTIONARY);
+        return deflater;
+    }
+
+    // 接收端：把之後的資料流當作壓縮過的串流讀取
+    static DataInputStream inflating(InputStream in) {
+        Inflater inflater = new Inflater(true);
+        inflater.setDictionary(DICTIONARY);
+        return new DataInputStream(new InflaterInputStream(in, inflater, 4096));
+    }
+
+    private static byte[] train() {
+        Simulation simulation = new Simulation(TRAINING_SEED);
+        simulation.addPlayer(0);
+        simulation.addPlayer(1);
+        simulation.start();
+        MatchRandom script = new MatchRandom(TRAINING_SEED);
+        Simulation.Events events = new Simulation.Events();
+        int[] inputs = new int[Simulation.MAX_PLAYERS];
+        Snapshot previous = new Snapshot();
+        Snapshot current = new Snapshot();
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        ByteArrayOutputStream samples = new ByteArrayOutputStream();
+        int tick = 0;
+        int lastInput = 0;
+        for (int step = 1; step <= TRAINING_STEPS; step++) {
+            if (step % INPUT_CHANGE_STEPS == 0) {
+                for (int i = 0; i < inputs.length; i++) {
+                    inputs[i] = script.nextInt(32);
+                }
+                lastInput++;
+            }
+            if (!simulation.step(inputs, events)) {
+                simulation.restart(); // 有人獲勝就重新開始，讓字典涵蓋整段對戰
+            }
+            if (step % SNAPSHOT_STEPS != 0) continue;
+            Room.capture(simulation, ++tick, current);
+            if (tick % FULL_SNAPSHOT_EVERY == 1) {
+                w.begin(GameProtocol.MSG_SNAPSHOT);
+                w.writeVarInt(lastInput);
+                current.writeFull(w);
+            } else {
+                w.begin(GameProtocol.MSG_SNAPSHOT_DELTA);
+                w.writeVarInt(lastInput);
+                current.writeDelta(w, previous);
+            }
+            w.finish();
+            samples.write(w.buffer(), w.frameOffset(), w.frameLength());
+            Snapshot swap = previous;
+            previous = current;
+            current = swap;
+        }
+        byte[] all = samples.toByteArray();
+        return Arrays.copyOfRange(all, Math.max(0, all.length - SIZE), all.length);
+    }
+
+    private static byte[] frame(int type) {
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        w.begin(type);
+        w.finish();
+        return Arrays.copyOfRange(w.buffer(), w.frameOffset(), w.frameOffset() + w.frameLength());
+    }
+
+    private static int checksum(byte[] data) {
+        Adler32 adler = new Adler32();
+        adler.update(data);
+        return (int) adler.getValue();
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// 非同步、有速率上限的事件紀錄
+//
+// 遊戲迴圈只把訊息放進有上限的佇列，由背景執行緒寫到主控台，不會被主控台 I/O 阻塞。
+// 每秒最多記錄 MAX_EVENTS_PER_SECOND 則，超過的或佇列已滿時直接丟棄，只累計數量，
+// 背景執行緒下一次輸出時會補上一行略過的則數。
+public final class EventLog {
+    private static final int QUEUE_CAPACITY = 1024;
+    private static final int MAX_EVENTS_PER_SECOND = 200;
+
+    private static final BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong windowStart = new AtomicLong(); // 目前計數的一秒從何時開始（毫秒）
+    private static final AtomicInteger windowCount = new AtomicInteger();
+    private static final LongAdder suppressed = new LongAdder(); // 累計丟棄的則數
+    private static final AtomicLong unreported = new AtomicLong(); // 尚未輸出提示的丟棄則數
+
+    static {
+        Thread writer = new Thread(EventLog::drain, "event-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private EventLog() {
+    }
+
+    // 可由任何執行緒呼叫，不會阻塞
+    public static void log(String message) {
+        if (!acquire() || !queue.offer(message)) {
+            suppressed.increment();
+            unreported.incrementAndGet();
+        }
+    }
+
+    // 因超過速率上限或佇列已滿而丟棄的事件總數
+    public static long suppressed() {
+        return suppressed.sum();
+    }
+
+    private static boolean acquire() {
+        long now = System.currentTimeMillis();
+        long start = windowStart.get();
+        if (now - start >= 1000 && windowStart.compareAndSet(start, now)) {
+            windowCount.set(0);
+        }
+        return windowCount.incrementAndGet() <= MAX_EVENTS_PER_SECOND;
+    }
+
+    private static void drain() {
+        while (true) {
+            try {
+                String message = queue.take();
+                long skipped = unreported.getAndSet(0);
+                if (skipped > 0) {
+                    System.out.println("（略過 " + skipped + " 則事件）");
+                }
+                System.out.println(message);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// 固定時間步長的遊戲迴圈
+//
+// 以累加器（accumulator）計算實際經過的時間，每累積一個 step 就執行一次模擬，
+// 所以不論睡眠誤差或處理時間多長，模擬的時間都與真實時間一致。
+// 網路傳送以另一個獨立的頻率執行，與模擬頻率無關。
+// 若某次處理時間過長，一次最多補跑 maxCatchUpSteps 步，剩下的時間直接丟棄，避免越補越慢的惡性循環。
+public class FixedStepLoop implements Runnable {
+    public interface Step {
+        // 回傳 false 表示停止迴圈
+        boolean step();
+    }
+
+    private final long stepNanos;
+    private final long sendIntervalNanos;
+    private final int maxCatchUpSteps;
+    private final Step step;
+    private final Runnable send;
+    private volatile boolean running = true;
+    private volatile long droppedSteps = 0; // 只由迴圈執行緒寫入
+
+    public FixedStepLoop(long stepMillis, int sendRateHz, int maxCatchUpSteps, Step step, Runnable send) {
+        this.stepNanos = TimeUnit.MILLISECONDS.toNanos(stepMillis);
+        this.sendIntervalNanos = TimeUnit.SECONDS.toNanos(1) / sendRateHz;
+        this.maxCatchUpSteps = maxCatchUpSteps;
+        this.step = step;
+        this.send = send;
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    // 因為追不上而丟棄的模擬步數
+    public long droppedSteps() {
+        return droppedSteps;
+    }
+
+    @Override
+    public void run() {
+        long previous = System.nanoTime();
+        long accumulator = 0;
+        long nextSend = previous;
+
+        while (running) {
+            long now = System.nanoTime();
+            accumulator += now - previous;
+            previous = now;
+
+            int steps = 0;
+            while (accumulator >= stepNanos && steps < maxCatchUpSteps) {
+                if (!step.step()) {
+                    running = false;
+                    return;
+                }
+                accumulator -= stepNanos;
+                steps++;
+            }
+            if (accumulator >= stepNanos) {
+                droppedSteps += accumulator / stepNanos;
+                accumulator %= stepNanos;
+            }
+
+            if (now - nextSend >= 0) {
+                send.run();
+                nextSend += sendIntervalNanos;
+                if (now - nextSend >= 0) {
+                    nextSend = now + sendIntervalNanos; // 落後太多時不補送
+                }
+            }
+
+            // 睡到下一次模擬或傳送的時間
+            long nextStep = previous + (stepNanos - accumulator);
+            long wake = nextStep - nextSend < 0 ? nextStep : nextSend;
+            long sleep = wake - System.nanoTime();
+            if (sleep > 0) {
+                LockSupport.parkNanos(sleep);
+            }
+        }
+    }
+}
@@ -0,0 +1,246 @@
+import java.io.*;
+import java.util.Arrays;
+
+// 伺服器與客戶端共用的二進位通訊格式
+//
+// 連線建立後伺服器先送出 MAGIC(4 bytes) + VERSION(1 byte)，之後每則訊息為一個 frame：
+//   varint 長度 | 1 byte 訊息類型 | 內容
+//
+// 內容只包含客戶端真正會用到的欄位（不傳 keysPressed、speed、fireCooldown 等）：
+//   SNAPSHOT       : lastInput, 完整快照（格式見 Snapshot.writeFull）
+//   SNAPSHOT_DELTA : lastInput, 相對於客戶端已確認（ACK）快照的差異（格式見 Snapshot.writeDelta）
+//   HEALTH_PACK    : 是否存在(1 byte), x, y
+//   GAME_OVER      : winnerId
+//   RESET          : (無內容)
+//   WELCOME        : userId（大廳分配房間後送出，讓客戶端知道哪個玩家是自己，見 Lobby）
+//   UDP_OFFER      : UDP 埠號, token(4 bytes)（伺服器有開啟 UDP 時緊接在 MAGIC / VERSION 之後，見 UdpTransport；不支援的客戶端直接略過）
+//   SNAPSHOT_CELLS : lastInput, 只含玩家附近幾格的快照（伺服器開啟興趣範圍過濾時取代前兩種快照，格式見 InterestGrid）
+//   COMPRESSION    : (無內容)（回應客戶端的 "COMPRESS <字典>" 指令，這則之後的資料都是 deflate 串流，見 CompressionDictionary）
+// 客戶端套用快照後以文字指令 "ACK <tick>" 回報，伺服器之後便以該快照為基準傳送差異
+// 按鍵以 "INPUT <序號> <遮罩>" 送出，每一幀最多一個，只在按鍵改變或心跳時送出；序號從 1 開始遞增
+// lastInput 為伺服器已套用到模擬的最後一個輸入序號（舊客戶端的 PRESS / RELEASE 依送出順序編號），客戶端以此做預測的校正
+// 整數一律使用 varint，可能為負的數值（座標、血量）使用 zigzag 編碼，顏色使用固定 4 bytes
+public final class GameProtocol {
+    public static final int MAGIC = 0x4E554B47; // "NUKG"
+    public static final int VERSION = 5;
+
+    public static final int MSG_SNAPSHOT = 1;
+    public static final int MSG_HEALTH_PACK = 2;
+    public static final int MSG_GAME_OVER = 3;
+    public static final int MSG_RESET = 4;
+    public static final int MSG_SNAPSHOT_DELTA = 5;
+    public static final int MSG_WELCOME = 6;
+    public static final int MSG_UDP_OFFER = 7;
+    public static final int MSG_SNAPSHOT_CELLS = 8;
+    public static final int MSG_COMPRESSION = 9;
+
+    // 遊戲規則，客戶端的本地預測必須與伺服器的模擬完全一致
+    public static final int STEP_MILLIS = 2; // 每一步模擬代表的時間（毫秒）
+    public static final int ARENA_WIDTH = 1280;
+    public static final int ARENA_HEIGHT = 680;
+    public static final int PLAYER_SIZE = 40; // 碰撞判定用的玩家外框
+    public static final int PLAYER_SPEED = 2; // 每一步移動的距離
+
+    private static final int MAX_FRAME_SIZE = 1 << 20; // 單一訊息上限 1MB，避免錯誤資料造成大量配置
+
+    private GameProtocol() {
+    }
+
+    public static void writeHeader(OutputStream out) throws IOException {
+        out.write(MAGIC >>> 24);
+        out.write(MAGIC >>> 16);
+        out.write(MAGIC >>> 8);
+        out.write(MAGIC);
+        out.write(VERSION);
+    }
+
+    // 讀取並檢查連線開頭的 MAGIC 與版本
+    public static void readHeader(DataInputStream in) throws IOException {
+        int magic = in.readInt();
+        int version = in.readUnsignedByte();
+        if (magic != MAGIC) {
+            throw new IOException("不是遊戲伺服器的資料流");
+        }
+        if (version != VERSION) {
+            throw new IOException("通訊協定版本不符：伺服器 " + version + "，客戶端 " + VERSION);
+        }
+    }
+
+    // 讀取一個 frame 到 reader 中（重複使用 reader 內部的緩衝區），回傳訊息類型；連線結束時回傳 -1
+    public static int readFrame(DataInputStream in, Reader reader) throws IOException {
+        int length = 0;
+        int shift = 0;
+        while (true) {
+            int b = in.read();
+            if (b < 0) {
+                if (shift == 0) return -1;
+                throw new EOFException();
+            }
+            length |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) break;
+            shift += 7;
+            if (shift > 28) throw new IOException("frame 長度格式錯誤");
+        }
+        if (length <= 0 || length > MAX_FRAME_SIZE) {
+            throw new IOException("frame 長度不合法：" + length);
+        }
+        byte[] buf = reader.buf;
+        if (buf.length < length) {
+            buf = new byte[Math.max(length, buf.length * 2)];
+        }
+        in.readFully(buf, 0, length);
+        reader.wrap(buf, 0, length);
+        return reader.readByte();
+    }
+
+    // 依按鍵遮罩（InputBuffer.KEY_*）移動一步，不會超出場地
+    public static int moveX(int x, int keys, int speed) {
+        if ((keys & InputBuffer.KEY_LEFT) != 0) x = Math.max(0, x - speed);
+        if ((keys & InputBuffer.KEY_RIGHT) != 0) x = Math.min(ARENA_WIDTH - PLAYER_SIZE, x + speed);
+        return x;
+    }
+
+    public static int moveY(int y, int keys, int speed) {
+        if ((keys & InputBuffer.KEY_UP) != 0) y = Math.max(0, y - speed);
+        if ((keys & InputBuffer.KEY_DOWN) != 0) y = Math.min(ARENA_HEIGHT - PLAYER_SIZE, y + speed);
+        return y;
+    }
+
+    public static void writePoint(Writer w, int x, int y) {
+        w.writeSignedVarInt(x);
+        w.writeSignedVarInt(y);
+    }
+
+    // 可重複使用的編碼緩衝區，frame 前面預留 5 bytes 給長度欄位，完成時再往前填入
+    public static final class Writer {
+        private static final int HEADER_RESERVE = 5;
+
+        byte[] buf = new byte[512];
+        int len;
+        int frameOffset;
+
+        public void begin(int type) {
+            len = HEADER_RESERVE;
+            frameOffset = 0;
+            writeByte(type);
+        }
+
+        // 填入長度欄位，完成後 frame 位於 buf[frameOffset, len)
+        public void finish() {
+            int payload = len - HEADER_RESERVE;
+            int offset = HEADER_RESERVE - varIntSize(payload);
+            frameOffset = offset;
+            int v = payload;
+            while ((v & ~0x7F) != 0) {
+                buf[offset++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[offset] = (byte) v;
+        }
+
+        public byte[] buffer() {
+            return buf;
+        }
+
+        public int frameOffset() {
+            return frameOffset;
+        }
+
+        public int frameLength() {
+            return len - frameOffset;
+        }
+
+        public byte[] toFrame() {
+            return Arrays.copyOfRange(buf, frameOffset, len);
+        }
+
+        private void ensure(int n) {
+            if (len + n > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, len + n));
+            }
+        }
+
+        public void writeByte(int b) {
+            ensure(1);
+            buf[len++] = (byte) b;
+        }
+
+        public void writeInt(int v) {
+            ensure(4);
+            buf[len++] = (byte) (v >>> 24);
+            buf[len++] = (byte) (v >>> 16);
+            buf[len++] = (byte) (v >>> 8);
+            buf[len++] = (byte) v;
+        }
+
+        public void writeVarInt(int v) {
+            ensure(5);
+            while ((v & ~0x7F) != 0) {
+                buf[len++] = (byte) ((v & 0x7F) | 0x80);
+                v >>>= 7;
+            }
+            buf[len++] = (byte) v;
+        }
+
+        public void writeSignedVarInt(int v) {
+            writeVarInt((v << 1) ^ (v >> 31));
+        }
+
+        public void writeBytes(byte[] src, int offset, int length) {
+            ensure(length);
+            System.arraycopy(src, offset, buf, len, length);
+            len += length;
+        }
+    }
+
+    public static final class Reader {
+        byte[] buf = new byte[512];
+        int pos;
+        int limit;
+
+        public void wrap(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.pos = offset;
+            this.limit = offset + length;
+        }
+
+        public boolean hasRemaining() {
+            return pos < limit;
+        }
+
+        public int readByte() throws IOException {
+            if (pos >= limit) throw new EOFException();
+            return buf[pos++] & 0xFF;
+        }
+
+        public int readInt() throws IOException {
+            if (pos + 4 > limit) throw new EOFException();
+            int v = (buf[pos] & 0xFF) << 24 | (buf[pos + 1] & 0xFF) << 16 | (buf[pos + 2] & 0xFF) << 8 | (buf[pos + 3] & 0xFF);
+            pos += 4;
+            return v;
+        }
+
+        public int readVarInt() throws IOException {
+            int v = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                int b = readByte();
+                v |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) return v;
+            }
+            throw new IOException("varint 格式錯誤");
+        }
+
+        public int readSignedVarInt() throws IOException {
+            int v = readVarInt();
+            return (v >>> 1) ^ -(v & 1);
+        }
+    }
+
+    static int varIntSize(int v) {
+        if ((v & ~0x7F) == 0) return 1;
+        if ((v & ~0x3FFF) == 0) return 2;
+        if ((v & ~0x1FFFFF) == 0) return 3;
+        if ((v & ~0xFFFFFFF) == 0) return 4;
+        return 5;
+    }
+}
@@ -0,0 +1,92 @@
+import java.util.Arrays;
+
+// 記錄數值分佈並計算百分位數（類似 HdrHistogram 的對數-線性分桶）
+//
+// 0 到 127 每個值一桶；之後每個 2 的次方區間再平均分成 64 桶，所以任何數值的相對誤差都在 1/64（約 1.6%）以內。
+// 桶的數量固定，記錄時不會配置記憶體。本身不做同步，跨執行緒使用時由呼叫端負責。
+public class Histogram {
+    private static final int LINEAR = 128; // 直接以數值為索引的範圍
+    private static final int SUB_BUCKETS = 64; // 每個 2 的次方區間的桶數
+    private static final int SUB_BITS = 6;
+    private static final int BUCKETS = LINEAR + (63 - SUB_BITS) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKETS];
+    private long totalCount;
+    private long sum;
+    private long min = Long.MAX_VALUE;
+    private long max;
+
+    // 負數視為 0
+    public void record(long value) {
+        if (value < 0) value = 0;
+        counts[index(value)]++;
+        totalCount++;
+        sum += value;
+        if (value < min) min = value;
+        if (value > max) max = value;
+    }
+
+    public void add(Histogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        sum += other.sum;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+    }
+
+    public void reset() {
+        Arrays.fill(counts, 0);
+        totalCount = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    public long count() {
+        return totalCount;
+    }
+
+    public long max() {
+        return max;
+    }
+
+    public long min() {
+        return totalCount == 0 ? 0 : min;
+    }
+
+    public double mean() {
+        return totalCount == 0 ? 0 : (double) sum / totalCount;
+    }
+
+    // percentile 介於 0 到 100，回傳該桶的上限（不超過實際的最大值）
+    public long percentile(double percentile) {
+        if (totalCount == 0) return 0;
+        long rank = (long) Math.ceil(percentile / 100.0 * totalCount);
+        if (rank < 1) rank = 1;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max);
+            }
+        }
+        return max;
+    }
+
+    private static int index(long value) {
+        if (value < LINEAR) return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // 讓 value >> shift 落在 [64, 128)
+        int top = (int) (value >>> shift);
+        return LINEAR + (shift - 1) * SUB_BUCKETS + (top - SUB_BUCKETS);
+    }
+
+    private static long upperBound(int index) {
+        if (index < LINEAR) return index;
+        int shift = (index - LINEAR) / SUB_BUCKETS + 1;
+        long top = (index - LINEAR) % SUB_BUCKETS + SUB_BUCKETS;
+        long upper = ((top + 1) << shift) - 1;
+        return upper < 0 ? Long.MAX_VALUE : upper; // 最高的幾個桶會溢位
+    }
+}
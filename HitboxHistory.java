@@ -0,0 +1,101 @@
+import java.io.IOException;
+
+// 最近幾步每位玩家外框位置的環狀緩衝區，供延遲補償回溯命中判定
+//
+// 每一步模擬在玩家移動之後記錄一次，保留 capacity 步。位置以平行陣列存放（slot * players + userId），
+// 建立後不再配置記憶體。回溯超過已記錄的範圍時使用最舊的一筆（例如剛開局或剛重新開始）。
+public class HitboxHistory {
+    private final int capacity;
+    private final int players;
+    private final int size; // 外框邊長，與空間索引相同，包含右下邊界
+    private final int[] x;
+    private final int[] y;
+    private final boolean[] present; // 該步玩家是否在場
+    private int head = 0; // 下一筆寫入的位置
+    private int count = 0;
+
+    HitboxHistory(int capacity, int players, int size) {
+        this.capacity = capacity;
+        this.players = players;
+        this.size = size;
+        x = new int[capacity * players];
+        y = new int[capacity * players];
+        present = new boolean[capacity * players];
+    }
+
+    int capacity() {
+        return capacity;
+    }
+
+    int count() {
+        return count;
+    }
+
+    void clear() {
+        head = 0;
+        count = 0;
+    }
+
+    // 記錄這一步所有玩家的位置
+    void record(Simulation.PlayerState[] states) {
+        int base = head * players;
+        for (int i = 0; i < players; i++) {
+            Simulation.PlayerState player = states[i];
+            present[base + i] = player != null;
+            if (player != null) {
+                x[base + i] = player.x;
+                y[base + i] = player.y;
+            }
+        }
+        head = (head + 1) % capacity;
+        if (count < capacity) count++;
+    }
+
+    // stepsBack 步以前的那一筆（0 為最近一次記錄），沒有任何記錄時回傳 -1
+    int slot(int stepsBack) {
+        if (count == 0) return -1;
+        int back = Math.min(stepsBack, count - 1);
+        return (head - 1 - back + capacity) % capacity;
+    }
+
+    // 點 (px, py) 是否落在 userId 於該筆記錄的外框內
+    boolean contains(int slot, int userId, int px, int py) {
+        int k = slot * players + userId;
+        if (!present[k]) return false;
+        return px >= x[k] && px <= x[k] + size && py >= y[k] && py <= y[k] + size;
+    }
+
+    // 狀態的保存與還原（只寫出已記錄的部分，由舊到新），供 Simulation 的關鍵影格使用
+    void write(GameProtocol.Writer w) {
+        w.writeVarInt(count);
+        for (int back = count - 1; back >= 0; back--) {
+            int base = slot(back) * players;
+            for (int i = 0; i < players; i++) {
+                if (present[base + i]) {
+                    w.writeByte(1);
+                    GameProtocol.writePoint(w, x[base + i], y[base + i]);
+                } else {
+                    w.writeByte(0);
+                }
+            }
+        }
+    }
+
+    void read(GameProtocol.Reader r) throws IOException {
+        int n = r.readVarInt();
+        if (n > capacity) throw new IOException("位置歷史超過上限：" + n);
+        clear();
+        for (int k = 0; k < n; k++) {
+            int base = head * players;
+            for (int i = 0; i < players; i++) {
+                present[base + i] = r.readByte() != 0;
+                if (present[base + i]) {
+                    x[base + i] = r.readSignedVarInt();
+                    y[base + i] = r.readSignedVarInt();
+                }
+            }
+            head = (head + 1) % capacity;
+            count++;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+// 單一寫入者、單一讀取者（SPSC）的輸入佇列，網路執行緒寫入、房間的模擬執行緒讀取，兩邊都不需要鎖
+//
+// 按鍵狀態以位元遮罩表示，每個輸入指令帶有遞增的序號，打包成一個 long（高 32 位元為序號，低 32 位元為遮罩）。
+// 模擬每一步把佇列中的指令全部取出：最後的遮罩為目前按住的鍵，期間曾經按下的鍵也算按下一次，
+// 所以在兩步之間按下又放開的鍵不會遺失。佇列滿時放不進去的指令記在 dropped，讀取者把佇列取完後直接採用，確保最終狀態一致。
+// 寫入端的方法以 synchronized 保護：客戶端從 TCP 切換到 UDP 時，兩個網路執行緒可能先後寫入同一個佇列。
+public class InputBuffer {
+    public static final int KEY_UP = 1; // w
+    public static final int KEY_LEFT = 2; // a
+    public static final int KEY_DOWN = 4; // s
+    public static final int KEY_RIGHT = 8; // d
+    public static final int KEY_FIRE = 16; // 空白鍵
+
+    private static final int CAPACITY = 64; // 必須是 2 的次方
+    private static final int MASK = CAPACITY - 1;
+
+    private final long[] ring = new long[CAPACITY];
+    private final AtomicLong head = new AtomicLong(); // 下一個寫入位置，只由寫入者更新
+    private final AtomicLong tail = new AtomicLong(); // 下一個讀取位置，只由讀取者更新
+    private final AtomicLong dropped = new AtomicLong(); // 佇列滿時最後一個放不進去的 序號|遮罩
+
+    // 以下只在寫入者執行緒存取
+    private int writerMask = 0;
+    private int writerSeq = 0;
+
+    // 以下只在讀取者執行緒存取
+    private int readerMask = 0;
+    private int lastProcessedSeq = 0;
+
+    // 將按鍵字元對應到位元，不支援的按鍵回傳 0
+    public static int keyBit(String key) {
+        if (key.length() != 1) return 0;
+        switch (key.charAt(0)) {
+            case 'w': return KEY_UP;
+            case 'a': return KEY_LEFT;
+            case 's': return KEY_DOWN;
+            case 'd': return KEY_RIGHT;
+            case ' ': return KEY_FIRE;
+            default: return 0;
+        }
+    }
+
+    // 寫入者：按下或放開一個鍵。每個輸入指令都會使用一個序號（包含不支援的按鍵），與客戶端送出的指令數一致
+    public synchronized void press(int bit) {
+        publish(writerMask | bit);
+    }
+
+    public synchronized void release(int bit) {
+        publish(writerMask & ~bit);
+    }
+
+    // 寫入者：直接指定整個遮罩
+    public synchronized void publish(int keys) {
+        publish(writerSeq + 1, keys);
+    }
+
+    // 寫入者：指定序號，不大於目前序號的輸入直接略過並回傳 false（UDP 會重複送出最近的幾個輸入）。
+    // 序號有跳號時（中間的輸入全部遺失）直接從這個序號繼續
+    public synchronized boolean publish(int seq, int keys) {
+        if (seq - writerSeq <= 0) return false;
+        writerSeq = seq;
+        writerMask = keys;
+        long packed = ((long) seq << 32) | (keys & 0xFFFFFFFFL);
+        long h = head.get();
+        if (h - tail.get() < CAPACITY) {
+            ring[(int) h & MASK] = packed;
+            head.lazySet(h + 1);
+        } else {
+            dropped.set(packed); // 在前面的指令都已放入佇列之後才設定
+        }
+        return true;
+    }
+
+    // 讀取者：取出所有新的輸入，回傳這一步要使用的按鍵遮罩
+    public int consume() {
+        int pressed = 0;
+        long t = tail.get();
+        long h = head.get();
+        while (t < h) {
+            long packed = ring[(int) t & MASK];
+            int keys = (int) packed;
+            pressed |= keys & ~readerMask;
+            readerMask = keys;
+            lastProcessedSeq = (int) (packed >>> 32);
+            t++;
+        }
+        tail.lazySet(t);
+
+        long lost = dropped.get();
+        int lostSeq = (int) (lost >>> 32);
+        if (lostSeq - lastProcessedSeq > 0 && head.get() == t) {
+            // 佇列曾經滿過，放不進去的指令比已取出的新；只在它之前放入的指令都已取出時採用，
+            // 否則留到下一步，避免先跳到較新的狀態、再以較舊的指令重新計算按下的鍵
+            readerMask = (int) lost;
+            lastProcessedSeq = lostSeq;
+        }
+        return readerMask | pressed;
+    }
+
+    // 讀取者：最後一個已經套用到模擬的輸入序號
+    public int lastProcessedSeq() {
+        return lastProcessedSeq;
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+// 興趣範圍過濾（area of interest）：每位玩家只收到自己附近幾格內的實體
+//
+// 場地切成 cellSize 見方的格子（最多 64 格，可見的格子以 long 的位元表示），實體依左上角的座標歸到一格，
+// 玩家可見的範圍是自己所在的格子往外 radius 格。每次送出快照時先把完整快照拆成每一格的快照（保留 HISTORY 個 tick），
+// 再依每位客戶端可見的格子組出訊息。每一格的片段是「該格相對於某個 tick 的差異」或「該格的完整資料」，
+// 與收到的人無關，同一次廣播中第一次用到時才編碼，之後視野重疊、確認過同一個 tick 的客戶端直接複製同一段 bytes。
+//
+// SNAPSHOT_CELLS 的內容：tick, time, 格數, 每一格 {格子編號 << 1 | 沒有變動, baseTick（0 表示完整資料）, 片段}
+//   片段的格式與 Snapshot.writeEntities / writeEntityDelta 相同；與基準完全相同的格子（例如空的格子）不送片段
+// 客戶端在 baseTick 時看得到這一格、並且確認過 baseTick 時才送差異，否則送完整資料；
+// 沒有列出的格子表示已經看不到，客戶端直接丟棄。一律只在房間的執行緒上使用。
+public class InterestGrid {
+    static final int HISTORY = 64; // 與 Room 的快照歷史相同
+    static final int MAX_CELLS = 64;
+
+    final int cellSize;
+    final int radius;
+    final int columns;
+    final int rows;
+    private final Snapshot[][] cells; // [tick % HISTORY][格子]，每一格內依 id 排序
+    private final int[] cellsTick = new int[HISTORY];
+
+    // 這一次廣播已編碼的片段，依 (格子, baseTick) 查詢；片段本身依序放在 fragments 中
+    private final GameProtocol.Writer fragments = new GameProtocol.Writer();
+    private final int[] cachedCount;
+    private int[][] cachedBase;
+    private int[][] cachedOffset;
+    private int[][] cachedLength;
+    int encodedFragments; // 這一次廣播實際編碼的片段數（其餘為共用）
+    int sharedFragments;
+
+    InterestGrid(int width, int height, int cellSize, int radius) {
+        this.cellSize = cellSize;
+        this.radius = radius;
+        columns = (width + cellSize - 1) / cellSize;
+        rows = (height + cellSize - 1) / cellSize;
+        if (columns * rows > MAX_CELLS) {
+            throw new IllegalArgumentException("興趣範圍的格子太多：" + columns + "x" + rows + "（上限 " + MAX_CELLS + " 格）");
+        }
+        int n = columns * rows;
+        cells = new Snapshot[HISTORY][n];
+        for (Snapshot[] slot : cells) {
+            for (int c = 0; c < n; c++) {
+                slot[c] = new Snapshot();
+            }
+        }
+        cachedCount = new int[n];
+        cachedBase = new int[n][2];
+        cachedOffset = new int[n][2];
+        cachedLength = new int[n][2];
+    }
+
+    int cellCount() {
+        return columns * rows;
+    }
+
+    long allCells() {
+        int n = cellCount();
+        return n == 64 ? -1L : (1L << n) - 1;
+    }
+
+    int cellOf(int x, int y) {
+        int cx = Math.max(0, Math.min(columns - 1, Math.floorDiv(x, cellSize)));
+        int cy = Math.max(0, Math.min(rows - 1, Math.floorDiv(y, cellSize)));
+        return cy * columns + cx;
+    }
+
+    // 位於 (x, y) 的玩家看得到的格子
+    long viewOf(int x, int y) {
+        int cell = cellOf(x, y);
+        int cx = cell % columns;
+        int cy = cell / columns;
+        long mask = 0;
+        for (int y2 = Math.max(0, cy - radius); y2 <= Math.min(rows - 1, cy + radius); y2++) {
+            for (int x2 = Math.max(0, cx - radius); x2 <= Math.min(columns - 1, cx + radius); x2++) {
+                mask |= 1L << (y2 * columns + x2);
+            }
+        }
+        return mask;
+    }
+
+    void clear() {
+        Arrays.fill(cellsTick, 0);
+    }
+
+    // 把這個 tick 的完整快照拆到每一格（current 已依 id 排序，所以每一格也是排序好的），並清除上一次廣播的片段
+    void capture(Snapshot current) {
+        int slot = current.tick % HISTORY;
+        Snapshot[] split = cells[slot];
+        for (Snapshot cell : split) {
+            cell.clear(current.tick);
+            cell.time = current.time;
+        }
+        for (int i = 0; i < current.playerCount; i++) {
+            split[cellOf(current.playerX[i], current.playerY[i])].addPlayer(current.playerId[i], current.playerX[i],
+                    current.playerY[i], current.playerHealth[i], current.playerColor[i], current.bulletColor[i]);
+        }
+        for (int i = 0; i < current.bulletCount; i++) {
+            split[cellOf(current.bulletX[i], current.bulletY[i])].addBullet(current.bulletId[i], current.bulletOwner[i],
+                    current.bulletX[i], current.bulletY[i]);
+        }
+        for (int i = 0; i < current.blackCount; i++) {
+            split[cellOf(current.blackX[i], current.blackY[i])].addBlackBullet(current.blackId[i], current.blackX[i],
+                    current.blackY[i]);
+        }
+        cellsTick[slot] = current.tick;
+        fragments.len = 0;
+        Arrays.fill(cachedCount, 0);
+        encodedFragments = 0;
+        sharedFragments = 0;
+    }
+
+    // 寫入 SNAPSHOT_CELLS 在 lastInput 之後的內容，並記下這位客戶端在這個 tick 看得到的格子
+    void writeCells(GameProtocol.Writer w, Viewer viewer, int tick, long view, int ackedTick) {
+        int slot = tick % HISTORY;
+        long baseView = viewer.viewAt(ackedTick);
+        boolean haveBase = ackedTick > 0 && tick - ackedTick < HISTORY && cellsTick[ackedTick % HISTORY] == ackedTick;
+        if (!haveBase) baseView = 0;
+        viewer.record(tick, view);
+
+        Snapshot[] split = cells[slot];
+        w.writeVarInt(tick);
+        w.writeVarInt(split[0].time);
+        w.writeVarInt(Long.bitCount(view));
+        for (long rest = view; rest != 0; rest &= rest - 1) {
+            int cell = Long.numberOfTrailingZeros(rest);
+            int baseTick = (baseView & (1L << cell)) != 0 ? ackedTick : 0;
+            int k = fragment(cell, baseTick, split[cell]);
+            int length = cachedLength[cell][k];
+            w.writeVarInt(cell << 1 | (length < 0 ? 1 : 0));
+            w.writeVarInt(baseTick);
+            if (length > 0) w.writeBytes(fragments.buf, cachedOffset[cell][k], length);
+        }
+    }
+
+    // 找出或編碼 (cell, baseTick) 的片段，回傳在快取中的位置；與基準相同時片段長度記為 -1
+    private int fragment(int cell, int baseTick, Snapshot current) {
+        int n = cachedCount[cell];
+        for (int k = 0; k < n; k++) {
+            if (cachedBase[cell][k] == baseTick) {
+                sharedFragments++;
+                return k;
+            }
+        }
+        if (n == cachedBase[cell].length) {
+            cachedBase[cell] = Arrays.copyOf(cachedBase[cell], n * 2);
+            cachedOffset[cell] = Arrays.copyOf(cachedOffset[cell], n * 2);
+            cachedLength[cell] = Arrays.copyOf(cachedLength[cell], n * 2);
+        }
+        int start = fragments.len;
+        int length;
+        if (baseTick == 0) {
+            current.writeEntities(fragments);
+            length = fragments.len - start;
+        } else {
+            Snapshot base = cells[baseTick % HISTORY][cell];
+            if (current.sameEntities(base)) {
+                length = -1;
+            } else {
+                current.writeEntityDelta(fragments, base);
+                length = fragments.len - start;
+            }
+        }
+        cachedBase[cell][n] = baseTick;
+        cachedOffset[cell][n] = start;
+        cachedLength[cell][n] = length;
+        cachedCount[cell] = n + 1;
+        encodedFragments++;
+        return n;
+    }
+
+    // 每位客戶端最近幾個 tick 看得到的格子，決定每一格能不能送差異
+    static class Viewer {
+        private final long[] view = new long[HISTORY];
+        private final int[] viewTick = new int[HISTORY];
+
+        void record(int tick, long mask) {
+            view[tick % HISTORY] = mask;
+            viewTick[tick % HISTORY] = tick;
+        }
+
+        long viewAt(int tick) {
+            if (tick <= 0) return 0;
+            int slot = tick % HISTORY;
+            return viewTick[slot] == tick ? view[slot] : 0;
+        }
+    }
+
+    // 客戶端：保留最近幾個 tick 每一格的快照作為差異基準，並把看得到的格子合併成一個快照
+    static class Receiver {
+        private final Snapshot[][] cells = new Snapshot[HISTORY][MAX_CELLS];
+        private final int[][] cellsTick = new int[HISTORY][MAX_CELLS];
+
+        // 讀取 SNAPSHOT_CELLS 在 lastInput 之後的內容，合併到 out（依 id 排序）；缺少差異基準時回傳 false
+        boolean read(GameProtocol.Reader r, Snapshot out) throws IOException {
+            int tick = r.readVarInt();
+            int time = r.readVarInt();
+            int n = r.readVarInt();
+            int slot = tick % HISTORY;
+            out.clear(tick);
+            out.time = time;
+            for (int k = 0; k < n; k++) {
+                int header = r.readVarInt();
+                int cell = header >>> 1;
+                int baseTick = r.readVarInt();
+                if (cell >= MAX_CELLS) throw new IOException("格子編號超過上限：" + cell);
+                Snapshot snapshot = cells[slot][cell];
+                if (snapshot == null) {
+                    snapshot = cells[slot][cell] = new Snapshot();
+                }
+                if (baseTick == 0) {
+                    snapshot.clear(tick);
+                    snapshot.readEntities(r);
+                } else {
+                    int baseSlot = baseTick % HISTORY;
+                    Snapshot base = cells[baseSlot][cell];
+                    if (base == null || cellsTick[baseSlot][cell] != baseTick || baseSlot == slot) return false; // 基準已被覆蓋
+                    snapshot.clear(tick);
+                    if ((header & 1) != 0) {
+                        snapshot.append(base);
+                    } else {
+                        snapshot.readEntityDelta(r, base);
+                    }
+                }
+                snapshot.time = time;
+                cellsTick[slot][cell] = tick;
+                out.append(snapshot);
+            }
+            out.sortById();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,420 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// 無視窗的壓力測試工具：開啟多個模擬客戶端連線到伺服器，依腳本送出按鍵並解碼快照，統計伺服器的表現
+//
+// 用法：java LoadBot [連線數=20] [秒數=30] [慢速客戶端數=0] [主機=127.0.0.1] [埠號=5000]
+// 和 Client 一樣在伺服器提供時改用 UDP，-Dudp=false 只用 TCP；-Dnet.loss 等屬性可模擬不良的網路（見 PacketSimulator）
+// 和 Client 一樣要求壓縮，-Dcompress=false 時不要求
+//
+// 每個機器人隨機移動並持續連打空白鍵射擊，和真正的客戶端一樣回報 ACK 以取得差異快照。
+// 慢速客戶端每讀一個訊息就暫停 SLOW_READ_DELAY_MS，用來重現單一客戶端讀取太慢時伺服器與其他客戶端的狀況。
+// 對戰結束、被伺服器中斷連線後會自動重新連線，維持固定的連線數。
+//
+// 統計項目（一般與慢速客戶端分開統計）：
+//   快照頻率  每個客戶端每秒收到的快照數（平均與最低）
+//   到達間隔  相鄰兩個快照的時間差，抖動以 p99 - p50 表示
+//   輸入延遲  送出 INPUT 到第一個 lastInput 涵蓋該輸入的快照到達為止，即按鍵效果出現在快照中的時間
+//   下行流量  每個客戶端每秒實際收到的位元組數（TCP 的資料加上 UDP 封包的內容），括號內為解壓縮後的訊息大小
+public class LoadBot {
+    private static final int INPUT_INTERVAL_MS = 100; // 腳本每一步的間隔
+    private static final int SLOW_READ_DELAY_MS = 200;
+    private static final int REPORT_INTERVAL_SECONDS = 5;
+    private static final int RECONNECT_DELAY_MS = 500;
+    private static final int SNAPSHOT_HISTORY = 64; // 需與伺服器的歷史長度一致
+    private static final int PENDING_INPUTS = 4096; // 記錄送出時間的輸入指令數
+    private static final String[] MOVE_KEYS = {"w", "a", "s", "d"};
+    private static final boolean USE_UDP = !"false".equals(System.getProperty("udp"));
+    private static final boolean USE_COMPRESSION = !"false".equals(System.getProperty("compress"));
+
+    public static void main(String[] args) throws InterruptedException {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        int slow = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        String host = args.length > 3 ? args[3] : "127.0.0.1";
+        int port = args.length > 4 ? Integer.parseInt(args[4]) : 5000;
+
+        ScheduledExecutorService scripts = Executors.newScheduledThreadPool(2, r -> {
+            Thread thread = new Thread(r, "bot-script");
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Bot> bots = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            Bot bot = new Bot(i, host, port, i < slow, scripts);
+            bots.add(bot);
+            Thread thread = new Thread(bot, "bot-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        System.out.println("壓力測試：" + clients + " 個連線（慢速 " + slow + " 個），" + seconds + " 秒，目標 " + host + ":" + port
+                + (USE_UDP ? "，使用 UDP" : "，只用 TCP") + (USE_COMPRESSION ? "，要求壓縮" : ""));
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(seconds);
+        long last = start;
+        while (true) {
+            long now = System.nanoTime();
+            if (now >= end) break;
+            Thread.sleep(Math.min(TimeUnit.SECONDS.toMillis(REPORT_INTERVAL_SECONDS), TimeUnit.NANOSECONDS.toMillis(end - now)));
+            now = System.nanoTime();
+            double elapsed = (now - last) / 1e9;
+            last = now;
+            report("[" + Math.round((now - start) / 1e9) + "s]", bots, false, elapsed, true);
+            if (slow > 0) report("[" + Math.round((now - start) / 1e9) + "s 慢速]", bots, true, elapsed, true);
+        }
+
+        for (Bot bot : bots) {
+            bot.stop();
+        }
+        double total = (System.nanoTime() - start) / 1e9;
+        System.out.println("==== 總結 ====");
+        report("[一般]", bots, false, total, false);
+        if (slow > 0) report("[慢速]", bots, true, total, false);
+        System.exit(0);
+    }
+
+    // 彙整一般或慢速客戶端的統計；interval 為 true 時取這段期間的數字並歸零，否則取全部的累計
+    private static void report(String label, List<Bot> bots, boolean slow, double seconds, boolean interval) {
+        Stats merged = new Stats();
+        int count = 0, connected = 0;
+        double minRate = Double.MAX_VALUE;
+        for (Bot bot : bots) {
+            if (bot.slow != slow) continue;
+            Stats stats = interval ? bot.harvest() : bot.totals();
+            merged.add(stats);
+            minRate = Math.min(minRate, stats.snapshots / seconds);
+            count++;
+            if (bot.connected) connected++;
+        }
+        if (count == 0) return;
+        Histogram gaps = merged.interArrival;
+        Histogram latency = merged.inputLatency;
+        System.out.printf("%s 連線 %d/%d  快照 %.1f/s（最低 %.1f）  間隔 p50 %.1f p99 %.1f max %.1f ms 抖動 %.1f ms"
+                        + "  輸入延遲 p50 %.1f p90 %.1f p99 %.1f max %.1f ms  下行 %.2f KB/s/客戶端（解壓後 %.2f）  對戰結束 %d  重新連線 %d%n",
+                label, connected, count, merged.snapshots / seconds / count, minRate,
+                millis(gaps.percentile(50)), millis(gaps.percentile(99)), millis(gaps.max()),
+                millis(gaps.percentile(99) - gaps.percentile(50)),
+                millis(latency.percentile(50)), millis(latency.percentile(90)), millis(latency.percentile(99)), millis(latency.max()),
+                merged.wireBytes / 1024.0 / seconds / count, merged.bytes / 1024.0 / seconds / count, merged.games, merged.connects);
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    // 一段期間的統計，時間單位為微秒
+    static class Stats {
+        final Histogram interArrival = new Histogram();
+        final Histogram inputLatency = new Histogram();
+        long snapshots;
+        long bytes; // 解壓縮後的訊息大小
+        long wireBytes; // 實際收到的大小
+        long games;
+        long connects;
+
+        void add(Stats other) {
+            interArrival.add(other.interArrival);
+            inputLatency.add(other.inputLatency);
+            snapshots += other.snapshots;
+            bytes += other.bytes;
+            wireBytes += other.wireBytes;
+            games += other.games;
+            connects += other.connects;
+        }
+
+        void reset() {
+            interArrival.reset();
+            inputLatency.reset();
+            snapshots = 0;
+            bytes = 0;
+            wireBytes = 0;
+            games = 0;
+            connects = 0;
+        }
+    }
+
+    // 一個模擬客戶端：讀取執行緒負責解碼與 ACK，腳本在共用的排程執行緒上送出按鍵
+    static class Bot implements Runnable {
+        final int index;
+        final boolean slow;
+        private final String host;
+        private final int port;
+        private final ScheduledExecutorService scripts;
+        private final Random random; // 只在腳本中使用（持有 writeLock）
+        private volatile boolean running = true;
+        volatile boolean connected = false;
+
+        // 統計，以 this 同步
+        private final Stats interval = new Stats();
+        private final Stats total = new Stats();
+
+        // 讀取執行緒使用，UDP 的接收執行緒也會解碼快照，以 readLock 同步
+        private final Object readLock = new Object();
+        private final GameProtocol.Reader reader = new GameProtocol.Reader();
+        private final Snapshot[] history = new Snapshot[SNAPSHOT_HISTORY];
+        private Snapshot spare = new Snapshot();
+        private final InterestGrid.Receiver cells = new InterestGrid.Receiver();
+        private long lastArrival;
+        private int lastSeenInput;
+        private int newestTick;
+        private volatile UdpClient udp;
+
+        // 送出端，以 writeLock 同步（腳本與讀取執行緒都會送資料）
+        private final Object writeLock = new Object();
+        private OutputStream out;
+        private int inputSeq;
+        private int keys; // 目前按住的鍵，每一步送出整個遮罩
+        private final AtomicLongArray sentAt = new AtomicLongArray(PENDING_INPUTS); // 以序號取餘數為索引
+        private String moveKey; // 目前按住的移動鍵
+        private boolean firing;
+
+        Bot(int index, String host, int port, boolean slow, ScheduledExecutorService scripts) {
+            this.index = index;
+            this.host = host;
+            this.port = port;
+            this.slow = slow;
+            this.scripts = scripts;
+            this.random = new Random(index);
+        }
+
+        void stop() {
+            running = false;
+        }
+
+        synchronized Stats harvest() {
+            Stats copy = new Stats();
+            copy.add(interval);
+            total.add(interval);
+            interval.reset();
+            return copy;
+        }
+
+        synchronized Stats totals() {
+            Stats copy = new Stats();
+            copy.add(total);
+            copy.add(interval);
+            return copy;
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try (Socket socket = new Socket(host, port)) {
+                    socket.setTcpNoDelay(true);
+                    session(socket);
+                } catch (IOException e) {
+                    if (running) System.out.println("機器人 " + index + " 連線中斷：" + e.getMessage());
+                } finally {
+                    connected = false;
+                }
+                if (!running) break;
+                try {
+                    Thread.sleep(RECONNECT_DELAY_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void session(Socket socket) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new CountingInputStream(socket.getInputStream())));
+            synchronized (writeLock) {
+                out = new BufferedOutputStream(socket.getOutputStream());
+                inputSeq = 0; // 伺服器對每個連線從 1 開始編號
+                keys = 0;
+                moveKey = null;
+                firing = false;
+            }
+            synchronized (readLock) {
+                Arrays.fill(history, null);
+                lastArrival = 0;
+                lastSeenInput = 0;
+                newestTick = 0;
+            }
+            if (USE_COMPRESSION) send(CompressionDictionary.request());
+            GameProtocol.readHeader(in);
+            connected = true;
+            synchronized (this) {
+                interval.connects++;
+            }
+
+            long offset = (index * 7L) % INPUT_INTERVAL_MS; // 錯開各個機器人送出的時間
+            ScheduledFuture<?> script = scripts.scheduleAtFixedRate(this::scriptStep, offset, INPUT_INTERVAL_MS, TimeUnit.MILLISECONDS);
+            try {
+                int type;
+                while (running && (type = GameProtocol.readFrame(in, reader)) != -1) {
+                    if (type == GameProtocol.MSG_COMPRESSION) {
+                        in = CompressionDictionary.inflating(in);
+                        continue;
+                    }
+                    handleFrame(type, reader);
+                    if (slow) {
+                        Thread.sleep(SLOW_READ_DELAY_MS);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                script.cancel(false);
+                UdpClient udp = this.udp;
+                this.udp = null;
+                if (udp != null) udp.close();
+            }
+        }
+
+        // TCP 與 UDP 收到的 frame，reader 指向類型之後的內容
+        private void handleFrame(int type, GameProtocol.Reader reader) throws IOException {
+            synchronized (readLock) {
+                long now = System.nanoTime();
+                int length = reader.limit - reader.pos + 1;
+                synchronized (this) {
+                    interval.bytes += length + GameProtocol.varIntSize(length);
+                }
+                if (type == GameProtocol.MSG_SNAPSHOT || type == GameProtocol.MSG_SNAPSHOT_DELTA
+                        || type == GameProtocol.MSG_SNAPSHOT_CELLS) {
+                    readSnapshot(reader, type, now);
+                } else if (type == GameProtocol.MSG_GAME_OVER) {
+                    synchronized (this) {
+                        interval.games++;
+                    }
+                } else if (type == GameProtocol.MSG_UDP_OFFER && USE_UDP && udp == null) {
+                    int udpPort = reader.readVarInt();
+                    int token = reader.readInt();
+                    udp = UdpClient.start(host, udpPort, token, this::handleDatagramFrame, PacketSimulator.fromSystemProperties());
+                }
+            }
+        }
+
+        // UDP 收到的 frame 沒有壓縮，直接計入實際收到的大小
+        private void handleDatagramFrame(int type, GameProtocol.Reader reader) throws IOException {
+            int length = reader.limit - reader.pos + 1;
+            synchronized (this) {
+                interval.wireBytes += length + GameProtocol.varIntSize(length);
+            }
+            handleFrame(type, reader);
+        }
+
+        // 計算 TCP 實際收到的位元組數
+        private class CountingInputStream extends FilterInputStream {
+            CountingInputStream(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0) {
+                    synchronized (Bot.this) {
+                        interval.wireBytes += n;
+                    }
+                }
+                return n;
+            }
+        }
+
+        // 與 Client.GameStateReceiver 相同的解碼方式，並記錄到達間隔與輸入延遲
+        private void readSnapshot(GameProtocol.Reader reader, int type, long now) throws IOException {
+            boolean delta = type == GameProtocol.MSG_SNAPSHOT_DELTA;
+            int lastInput = reader.readVarInt();
+            int mark = reader.pos;
+            int tick = reader.readVarInt();
+            if (tick <= newestTick) return; // 亂序到達的舊快照
+            Snapshot base = null;
+            if (delta) {
+                int baseTick = reader.readVarInt();
+                base = history[baseTick % SNAPSHOT_HISTORY];
+                if (base == null || base.tick != baseTick) return;
+            }
+            reader.pos = mark;
+            int slot = tick % SNAPSHOT_HISTORY;
+            Snapshot snapshot = history[slot];
+            if (type == GameProtocol.MSG_SNAPSHOT_CELLS) {
+                if (!cells.read(reader, spare)) return;
+                Snapshot replaced = snapshot;
+                snapshot = spare;
+                spare = replaced != null ? replaced : new Snapshot();
+            } else {
+                if (snapshot == null) {
+                    snapshot = new Snapshot();
+                } else if (snapshot == base) {
+                    snapshot = spare;
+                    spare = base;
+                }
+                if (delta) {
+                    snapshot.readDelta(reader, base);
+                } else {
+                    snapshot.readFull(reader);
+                }
+            }
+            history[slot] = snapshot;
+            newestTick = tick;
+            UdpClient udp = this.udp;
+            if (udp != null && udp.isActive()) {
+                udp.snapshotApplied(tick);
+                udp.inputProcessed(lastInput);
+            } else {
+                send("ACK " + tick);
+            }
+
+            synchronized (this) {
+                interval.snapshots++;
+                if (lastArrival != 0) {
+                    interval.interArrival.record((now - lastArrival) / 1000);
+                }
+                // 這個快照第一次反映的輸入指令，延遲為送出到現在的時間
+                for (int seq = lastSeenInput + 1; seq <= lastInput; seq++) {
+                    long sent = sentAt.get(seq % PENDING_INPUTS);
+                    if (sent != 0) interval.inputLatency.record((now - sent) / 1000);
+                }
+            }
+            if (lastInput > lastSeenInput) lastSeenInput = lastInput;
+            lastArrival = now;
+        }
+
+        // 腳本的一步：連打空白鍵，並不時換一個移動方向（或停下來）
+        private void scriptStep() {
+            try {
+                synchronized (writeLock) {
+                    firing = !firing;
+                    if (random.nextInt(4) == 0) {
+                        int choice = random.nextInt(MOVE_KEYS.length + 1);
+                        moveKey = choice < MOVE_KEYS.length ? MOVE_KEYS[choice] : null;
+                    }
+                    keys = (firing ? InputBuffer.KEY_FIRE : 0) | (moveKey != null ? InputBuffer.keyBit(moveKey) : 0);
+                    sendInput(); // 和 Client 一樣，一步的按鍵變化合併成一個輸入
+                }
+            } catch (IOException e) {
+                // 連線已中斷，讀取執行緒會負責重新連線
+            }
+        }
+
+        private void sendInput() throws IOException {
+            synchronized (writeLock) {
+                int seq = ++inputSeq;
+                sentAt.set(seq % PENDING_INPUTS, System.nanoTime());
+                UdpClient udp = this.udp;
+                if (udp != null && udp.isActive()) {
+                    udp.sendInput(seq, keys);
+                } else {
+                    send("INPUT " + seq + " " + keys);
+                }
+            }
+        }
+
+        private void send(String command) throws IOException {
+            synchronized (writeLock) {
+                out.write(command.getBytes(StandardCharsets.UTF_8));
+                out.write('\n');
+                out.flush();
+            }
+        }
+    }
+}
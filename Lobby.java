@@ -0,0 +1,108 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// 大廳：新連線先放入有上限的等候佇列，由大廳執行緒依到達順序分配到房間
+//
+// I/O 執行緒只做 offer，不碰房間的鎖，也不會因為開新房間（建立對戰紀錄、觀戰檔案）而卡住其他連線的讀寫；
+// 上課開始時一次湧入大量連線也只是佇列變長，佇列滿時新連線直接被拒絕。
+// 連線本身由 NetServer 的 I/O 執行緒服務，等候中的連線不佔用任何執行緒。
+// 配對維持原本的規則：依到達順序填滿有空位的房間，所以兩位相鄰到達的玩家會在同一個房間。
+// 每位分配到房間的玩家從進入佇列到分配完成的時間記錄在 Histogram 中，超過 targetMillis 的次數另外計算。
+public class Lobby implements Runnable {
+    private static final int BATCH = 256; // 大廳執行緒一次從佇列取出的連線數
+
+    private final BlockingQueue<Server.ClientHandler> queue;
+    private final long targetNanos;
+    private final Predicate<Server.ClientHandler> assign; // 分配到房間時回傳 true
+
+    // 以 this 同步：total 從啟動起累計，interval 在每次定期輸出後清空（單位為奈秒）
+    private final Histogram totalWait = new Histogram();
+    private final Histogram intervalWait = new Histogram();
+    private long overTarget;
+    private long rejected;
+
+    Lobby(int capacity, long targetMillis, Predicate<Server.ClientHandler> assign) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.targetNanos = TimeUnit.MILLISECONDS.toNanos(targetMillis);
+        this.assign = assign;
+    }
+
+    void start() {
+        Thread thread = new Thread(this, "lobby");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // I/O 執行緒：放入等候佇列，佇列已滿時回傳 false
+    boolean admit(Server.ClientHandler handler) {
+        handler.admittedAt = System.nanoTime();
+        if (queue.offer(handler)) return true;
+        synchronized (this) {
+            rejected++;
+        }
+        return false;
+    }
+
+    @Override
+    public void run() {
+        List<Server.ClientHandler> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, BATCH - 1);
+            for (Server.ClientHandler handler : batch) {
+                boolean assigned;
+                try {
+                    assigned = assign.test(handler);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                    handler.close();
+                    assigned = false;
+                }
+                // 等候中斷線或分配失敗的連線不算在等候時間內
+                if (assigned) record(System.nanoTime() - handler.admittedAt);
+            }
+            batch.clear();
+        }
+    }
+
+    private synchronized void record(long waitNanos) {
+        totalWait.record(waitNanos);
+        intervalWait.record(waitNanos);
+        if (waitNanos > targetNanos) overTarget++;
+    }
+
+    int queued() {
+        return queue.size();
+    }
+
+    synchronized long rejected() {
+        return rejected;
+    }
+
+    synchronized long overTarget() {
+        return overTarget;
+    }
+
+    long targetMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(targetNanos);
+    }
+
+    // 從啟動起的等候時間分佈（奈秒）
+    synchronized void totalWait(Histogram into) {
+        into.add(totalWait);
+    }
+
+    // 上次呼叫之後的等候時間分佈（奈秒），取出後清空
+    synchronized void harvestWait(Histogram into) {
+        into.add(intervalWait);
+        intervalWait.reset();
+    }
+}
@@ -0,0 +1,45 @@
+// 每場對戰自己的亂數產生器（SplitMix64）
+//
+// 狀態只有一個 long：給定種子後產生的序列在任何平台、任何 JVM 上都相同，
+// 也可以和對戰狀態一起保存或還原。不做同步，只在模擬所屬的執行緒上使用。
+public class MatchRandom {
+    private long state;
+
+    public MatchRandom(long seed) {
+        this.state = seed;
+    }
+
+    public void setSeed(long seed) {
+        state = seed;
+    }
+
+    // 目前的內部狀態，以 setState 還原後會繼續產生相同的序列
+    public long state() {
+        return state;
+    }
+
+    public void setState(long state) {
+        this.state = state;
+    }
+
+    public long nextLong() {
+        long z = (state += 0x9E3779B97F4A7C15L);
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // [0, bound)，bound 必須大於 0
+    public int nextInt(int bound) {
+        return (int) (((nextLong() >>> 33) * bound) >>> 31);
+    }
+
+    public boolean nextBoolean() {
+        return nextLong() < 0;
+    }
+
+    // [0, 1)
+    public double nextDouble() {
+        return (nextLong() >>> 11) * 0x1.0p-53;
+    }
+}
@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// 把一場對戰寫成只會往後附加的二進位紀錄，寫入記憶體映射檔案
+//
+// 檔案開頭為 MAGIC、版本、房間編號與種子，之後每筆紀錄都是 GameProtocol 的 frame（長度、類型、內容），
+// 內容的第一個欄位是步數（這筆紀錄生效前已執行過的模擬步數）：
+//   INPUT    : 每位玩家的按鍵遮罩，只在輸入改變時寫入，之後每一步都沿用
+//   REMOVE   : 離開的玩家
+//   RESTART  : 重新開始這一局
+//   REWIND   : 玩家的延遲補償回溯步數改變（玩家、步數）
+//   KEYFRAME : 當時的輸入與 Simulation 的完整狀態，開始時一筆，之後每 KEYFRAME_INTERVAL_STEPS 步一筆
+//   END      : 紀錄結束
+// 房間的工作執行緒只負責編碼，每筆紀錄複製一份放入佇列；建立檔案、映射與寫入都由共用的背景執行緒依序處理，
+// 一步模擬中不會有任何檔案操作。檔案以區段為單位映射，關閉時截短到實際寫入的長度；
+// 截短失敗（例如作業系統不允許截短仍在映射中的檔案）時結尾留有補零的空間，讀取時遇到長度 0 即為結尾。
+// 寫入失敗時記錄一次並停止這份紀錄，不影響遊戲本身。
+public class MatchRecorder {
+    static final int MAGIC = 0x4E554B52; // "NUKR"
+    static final int VERSION = 3;
+    static final String FILE_SUFFIX = ".nukr";
+
+    static final int INPUT = 1;
+    static final int REMOVE = 2;
+    static final int RESTART = 3;
+    static final int KEYFRAME = 4;
+    static final int END = 5;
+    static final int REWIND = 6;
+
+    static final int KEYFRAME_INTERVAL_STEPS = 5000 / Simulation.TICK_RATE; // 每 5 秒一個關鍵影格
+
+    private static final int CHUNK_SIZE = 1 << 20; // 每次映射的大小
+    private static final int HEADER_SIZE = 20;
+
+    // 所有房間的紀錄共用，依放入的順序執行
+    private static final BlockingQueue<Runnable> pending = new LinkedBlockingQueue<>();
+
+    static {
+        Thread writer = new Thread(MatchRecorder::drain, "match-recorder");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private final Path path;
+    private final CountDownLatch finished = new CountDownLatch(1); // 寫入執行緒處理完 close 之後開啟
+    private volatile boolean failed = false;
+
+    // 以下只在房間的工作執行緒上使用
+    private final GameProtocol.Writer writer = new GameProtocol.Writer();
+    private final int[] lastInputs = new int[Simulation.MAX_PLAYERS];
+    private boolean inputsWritten = false;
+    private boolean closed = false;
+
+    // 以下只在寫入執行緒上使用
+    private FileChannel channel; // 尚未建立或已經失敗時為 null
+    private MappedByteBuffer mapped;
+    private long mappedStart; // 目前映射區在檔案中的位置
+
+    private MatchRecorder(Path path) {
+        this.path = path;
+    }
+
+    // 在 directory 建立新的紀錄檔，寫入檔頭與第一個關鍵影格（檔案由寫入執行緒建立，這裡不會等待）
+    static MatchRecorder open(Path directory, int roomId, Simulation simulation) {
+        String name = String.format("match-%d-room%d-%016x%s", System.currentTimeMillis(), roomId, simulation.seed(), FILE_SUFFIX);
+        MatchRecorder recorder = new MatchRecorder(directory.resolve(name));
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(roomId);
+        header.putLong(simulation.seed());
+        pending.add(() -> recorder.create(directory, header.array()));
+        recorder.keyframe(simulation);
+        return recorder;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    // 在每一步模擬之前呼叫，輸入與上一次寫入的相同時不寫
+    void input(int step, int[] inputs) {
+        if (inputsWritten && Arrays.equals(inputs, lastInputs)) return;
+        System.arraycopy(inputs, 0, lastInputs, 0, lastInputs.length);
+        inputsWritten = true;
+        writer.begin(INPUT);
+        writer.writeVarInt(step);
+        for (int keys : inputs) {
+            writer.writeVarInt(keys);
+        }
+        append();
+    }
+
+    void removePlayer(int step, int userId) {
+        writer.begin(REMOVE);
+        writer.writeVarInt(step);
+        writer.writeVarInt(userId);
+        append();
+    }
+
+    void rewind(int step, int userId, int steps) {
+        writer.begin(REWIND);
+        writer.writeVarInt(step);
+        writer.writeVarInt(userId);
+        writer.writeVarInt(steps);
+        append();
+    }
+
+    void restart(int step) {
+        writer.begin(RESTART);
+        writer.writeVarInt(step);
+        append();
+    }
+
+    // 在模擬一步之後呼叫，記錄目前的完整狀態
+    void keyframe(Simulation simulation) {
+        writer.begin(KEYFRAME);
+        writer.writeVarInt(simulation.steps());
+        for (int keys : lastInputs) {
+            writer.writeVarInt(keys);
+        }
+        simulation.writeState(writer);
+        append();
+    }
+
+    // 寫入結尾並關閉檔案，可重複呼叫
+    void close(int step) {
+        if (closed) return;
+        writer.begin(END);
+        writer.writeVarInt(step);
+        append();
+        closed = true;
+        pending.add(this::finish);
+    }
+
+    // 等待寫入執行緒處理完這份紀錄（需先呼叫 close），全部寫入成功時回傳 true
+    boolean awaitClosed() {
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        return !failed;
+    }
+
+    private void append() {
+        if (closed || failed) return;
+        writer.finish();
+        byte[] frame = writer.toFrame();
+        pending.add(() -> write(frame));
+    }
+
+    // ---- 寫入執行緒 ----
+
+    private static void drain() {
+        while (true) {
+            try {
+                pending.take().run();
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private void create(Path directory, byte[] header) {
+        try {
+            Files.createDirectories(directory);
+            channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, CHUNK_SIZE);
+            mapped.put(header);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void write(byte[] frame) {
+        if (channel == null) return;
+        try {
+            if (mapped.remaining() < frame.length) {
+                // 映射下一段，從目前寫到的位置接著寫
+                mappedStart += mapped.position();
+                mapped = channel.map(FileChannel.MapMode.READ_WRITE, mappedStart, Math.max(CHUNK_SIZE, frame.length));
+            }
+            mapped.put(frame);
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    private void finish() {
+        if (channel != null) {
+            long length = mappedStart + mapped.position();
+            mapped = null;
+            try {
+                channel.truncate(length);
+            } catch (IOException e) {
+                e.printStackTrace(); // 紀錄本身完整，只是結尾多了補零的空間
+            }
+            try {
+                channel.close(); // 映射區在被回收前仍然有效，已寫入的內容由作業系統寫回
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            channel = null;
+        }
+        finished.countDown();
+    }
+
+    private void fail(IOException e) {
+        failed = true;
+        EventLog.log("對戰紀錄 " + path + " 寫入失敗，停止記錄（" + e + "）");
+        mapped = null;
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException closeError) {
+                closeError.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+}
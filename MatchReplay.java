@@ -0,0 +1,224 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+// 讀取 MatchRecorder 的紀錄並重新模擬
+//
+// 載入時先掃過整個檔案，記下每筆紀錄的步數、類型與位置。seek 會從不晚於目標的最後一個關鍵影格還原狀態，
+// 再依紀錄的輸入一步一步模擬到目標，模擬不經過網路也不等待，所以比實際時間快得多。
+// 從頭重播時，經過的每個關鍵影格都會與重新模擬的狀態逐位元組比對，不一致表示模擬不具決定性（或紀錄有誤）。
+//
+// 用法：java MatchReplay <紀錄檔> [步數]
+// 沒有指定步數時從頭重播到結尾並檢查所有關鍵影格，指定時跳到該步並印出當時的狀態
+public class MatchReplay {
+    private final byte[] data;
+    private final int roomId;
+    private final long seed;
+    private final Simulation simulation;
+    private final Simulation.Events events = new Simulation.Events();
+    private final GameProtocol.Reader reader = new GameProtocol.Reader();
+    private final GameProtocol.Writer stateWriter = new GameProtocol.Writer();
+    private final int[] inputs = new int[Simulation.MAX_PLAYERS];
+
+    // 每筆紀錄一個元素，依檔案順序排列
+    private int recordCount;
+    private int[] recordStep = new int[64];
+    private int[] recordType = new int[64];
+    private int[] recordStart = new int[64]; // 內容（步數之後）在 data 中的位置
+    private int[] recordEnd = new int[64];
+    private int lastStep; // 紀錄的最後一步
+
+    private int cursor; // 下一筆要套用的紀錄
+    private int mismatches;
+    private int firstMismatchStep = -1;
+
+    private MatchReplay(byte[] data) throws IOException {
+        this.data = data;
+        GameProtocol.Reader r = reader;
+        r.wrap(data, 0, data.length);
+        if (r.readInt() != MatchRecorder.MAGIC) throw new IOException("不是對戰紀錄檔");
+        int version = r.readInt();
+        if (version != MatchRecorder.VERSION) throw new IOException("紀錄檔版本不符：" + version);
+        roomId = r.readInt();
+        seed = Simulation.readLong(r);
+        simulation = new Simulation(seed);
+        index(r);
+        if (recordCount == 0 || recordType[0] != MatchRecorder.KEYFRAME) throw new IOException("紀錄檔缺少開始的關鍵影格");
+    }
+
+    public static MatchReplay load(Path path) throws IOException {
+        return new MatchReplay(Files.readAllBytes(path));
+    }
+
+    private void index(GameProtocol.Reader r) throws IOException {
+        while (r.hasRemaining()) {
+            int length = r.readVarInt();
+            if (length == 0) break; // 映射區尚未寫入的部分
+            int end = r.pos + length;
+            if (end > data.length) break; // 寫到一半的紀錄
+            int type = r.readByte();
+            int step = r.readVarInt();
+            if (recordCount == recordStep.length) {
+                int capacity = recordCount * 2;
+                recordStep = Arrays.copyOf(recordStep, capacity);
+                recordType = Arrays.copyOf(recordType, capacity);
+                recordStart = Arrays.copyOf(recordStart, capacity);
+                recordEnd = Arrays.copyOf(recordEnd, capacity);
+            }
+            recordStep[recordCount] = step;
+            recordType[recordCount] = type;
+            recordStart[recordCount] = r.pos;
+            recordEnd[recordCount] = end;
+            recordCount++;
+            lastStep = Math.max(lastStep, step);
+            r.pos = end;
+            if (type == MatchRecorder.END) break;
+        }
+    }
+
+    public int roomId() {
+        return roomId;
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    public int lastStep() {
+        return lastStep;
+    }
+
+    public Simulation simulation() {
+        return simulation;
+    }
+
+    public int mismatches() {
+        return mismatches;
+    }
+
+    // 跳到第 step 步之前的狀態（已執行 step 步），超出紀錄時停在最後一步。回傳從關鍵影格之後模擬的步數
+    public int seek(int step) throws IOException {
+        step = Math.min(step, lastStep);
+        int keyframe = 0;
+        for (int i = 0; i < recordCount; i++) {
+            if (recordStep[i] > step) break;
+            if (recordType[i] == MatchRecorder.KEYFRAME) keyframe = i;
+        }
+        restoreKeyframe(keyframe);
+        cursor = keyframe + 1;
+        int from = simulation.steps();
+        advanceTo(step);
+        return simulation.steps() - from;
+    }
+
+    // 從目前位置模擬到紀錄結尾，回傳模擬的步數
+    public int runToEnd() throws IOException {
+        int from = simulation.steps();
+        advanceTo(lastStep);
+        return simulation.steps() - from;
+    }
+
+    private void advanceTo(int step) throws IOException {
+        while (true) {
+            int current = simulation.steps();
+            // 套用這一步之前的紀錄（與房間的順序相同：離開、重新開始、回溯步數、輸入，模擬之後才是關鍵影格）
+            while (cursor < recordCount && recordStep[cursor] <= current) {
+                apply(cursor++);
+            }
+            if (current >= step) return;
+            if (!simulation.step(inputs, events)) return; // 對戰結束，之後只剩 END
+        }
+    }
+
+    private void apply(int i) throws IOException {
+        GameProtocol.Reader r = reader;
+        r.wrap(data, recordStart[i], recordEnd[i] - recordStart[i]);
+        switch (recordType[i]) {
+            case MatchRecorder.INPUT:
+                for (int p = 0; p < inputs.length; p++) {
+                    inputs[p] = r.readVarInt();
+                }
+                break;
+            case MatchRecorder.REMOVE:
+                simulation.removePlayer(r.readVarInt());
+                break;
+            case MatchRecorder.RESTART:
+                simulation.restart();
+                break;
+            case MatchRecorder.REWIND:
+                simulation.setRewind(r.readVarInt(), r.readVarInt());
+                break;
+            case MatchRecorder.KEYFRAME:
+                verifyKeyframe(i);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void restoreKeyframe(int i) throws IOException {
+        GameProtocol.Reader r = reader;
+        r.wrap(data, recordStart[i], recordEnd[i] - recordStart[i]);
+        for (int p = 0; p < inputs.length; p++) {
+            inputs[p] = r.readVarInt();
+        }
+        simulation.readState(r);
+    }
+
+    // 把重新模擬的狀態以相同格式編碼，與紀錄中的關鍵影格比對
+    private void verifyKeyframe(int i) throws IOException {
+        GameProtocol.Reader r = reader;
+        for (int p = 0; p < inputs.length; p++) {
+            r.readVarInt();
+        }
+        GameProtocol.Writer w = stateWriter;
+        w.begin(0);
+        int stateStart = w.len;
+        simulation.writeState(w);
+        if (!Arrays.equals(w.buffer(), stateStart, w.len, data, r.pos, recordEnd[i])) {
+            mismatches++;
+            if (firstMismatchStep < 0) firstMismatchStep = recordStep[i];
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("用法：java MatchReplay <紀錄檔> [步數]");
+            return;
+        }
+        long loadStart = System.nanoTime();
+        MatchReplay replay = load(Paths.get(args[0]));
+        long loaded = System.nanoTime();
+        System.out.println(String.format("房間 %d，種子 %016x，共 %d 步（遊戲時間 %.1f 秒），載入 %.1f ms",
+                replay.roomId, replay.seed, replay.lastStep, replay.lastStep * Simulation.TICK_RATE / 1000.0,
+                (loaded - loadStart) / 1e6));
+
+        long start = System.nanoTime();
+        int simulated;
+        if (args.length > 1) {
+            simulated = replay.seek(Integer.parseInt(args[1]));
+        } else {
+            replay.seek(0);
+            simulated = replay.runToEnd();
+        }
+        double millis = (System.nanoTime() - start) / 1e6;
+        double gameMillis = (double) simulated * Simulation.TICK_RATE;
+        System.out.println(String.format("模擬到第 %d 步，耗時 %.1f ms（約 %.0f 倍速）",
+                replay.simulation.steps(), millis, millis > 0 ? gameMillis / millis : 0));
+
+        for (Simulation.PlayerState player : replay.simulation.players) {
+            if (player == null) continue;
+            System.out.println("玩家 " + player.userId + "：位置 (" + player.x + ", " + player.y + ")，血量 " + player.health);
+        }
+        System.out.println("子彈 " + replay.simulation.projectiles.count + " 顆");
+        if (args.length == 1) {
+            if (replay.mismatches == 0) {
+                System.out.println("所有關鍵影格皆一致");
+            } else {
+                System.out.println("關鍵影格不一致 " + replay.mismatches + " 個，第一個在第 " + replay.firstMismatchStep + " 步");
+            }
+        }
+    }
+}
@@ -0,0 +1,439 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+// 以 Selector / SocketChannel 實作的非阻塞網路層
+//
+// 固定數量的 I/O 執行緒各自擁有一個 Selector，新連線以輪流（round-robin）的方式分配。
+// 客戶端送來的指令以換行分隔，在每個連線自己的緩衝區中切割後直接交給 Handler，不另外建立字串；
+// 要送出的資料放入連線的佇列，由所屬的 I/O 執行緒在 socket 可寫入時送出，呼叫端不會被阻塞。
+//
+// 每個連線的送出佇列都有上限，遊戲迴圈只做 O(1) 的放入動作。對於消化不及的客戶端：
+//   DROP_STALE : 快照只保留最新的一份，舊的直接丟棄（差異快照都以已確認的快照為基準，丟棄中間的不影響解碼）
+//   DISCONNECT : 快照與其他訊息一樣排隊，送不出去的狀態持續超過 maxBacklogMillis 就中斷連線
+// 兩種模式下，必須送達的訊息（補包、遊戲結束等）佇列滿了都會中斷連線。
+// Handler 或連線的工作丟出未預期的例外時，只中斷那一條連線，I/O 執行緒繼續服務其他連線。
+//
+// 連線可以在某一則訊息之後改為 deflate 壓縮（sendThenCompress）：之後每則訊息在 I/O 執行緒上、即將寫入 socket 時
+// 才壓縮並 SYNC_FLUSH，所以被較新快照取代的快照不會進入壓縮串流，遊戲迴圈也不負擔壓縮的 CPU。
+public class NetServer {
+    private static final int READ_BUFFER_SIZE = 4096; // 單行指令不可超過此長度
+
+    public enum SlowConsumerPolicy {
+        DROP_STALE,
+        DISCONNECT
+    }
+
+    public interface Handler {
+        void onConnect(Connection connection);
+
+        // buf[offset, offset + length) 為一行指令（不含換行），呼叫結束後緩衝區會被重複使用
+        void onMessage(Connection connection, byte[] buf, int offset, int length);
+
+        void onDisconnect(Connection connection);
+    }
+
+    private final int port;
+    private final Handler handler;
+    private final IoLoop[] loops;
+    private int nextLoop = 0;
+    private int queueCapacity = 256;
+    private SlowConsumerPolicy policy = SlowConsumerPolicy.DROP_STALE;
+    private long maxBacklogMillis = 3000;
+
+    // 所有連線合計的壓縮統計：壓縮前、後的位元組數與耗時
+    private final LongAdder compressionInput = new LongAdder();
+    private final LongAdder compressionOutput = new LongAdder();
+    private final LongAdder compressionNanos = new LongAdder();
+
+    public NetServer(int port, int ioThreads, Handler handler) throws IOException {
+        this.port = port;
+        this.handler = handler;
+        this.loops = new IoLoop[ioThreads];
+        for (int i = 0; i < ioThreads; i++) {
+            loops[i] = new IoLoop(i);
+        }
+    }
+
+    // 需在 start 之前設定
+    public void setOutboundLimits(int queueCapacity, SlowConsumerPolicy policy, long maxBacklogMillis) {
+        this.queueCapacity = queueCapacity;
+        this.policy = policy;
+        this.maxBacklogMillis = maxBacklogMillis;
+    }
+
+    public long compressionInput() {
+        return compressionInput.sum();
+    }
+
+    public long compressionOutput() {
+        return compressionOutput.sum();
+    }
+
+    public long compressionNanos() {
+        return compressionNanos.sum();
+    }
+
+    public void start() throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        // 由第一個 I/O 執行緒負責接受新連線
+        loops[0].execute(() -> {
+            try {
+                serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+        for (IoLoop loop : loops) {
+            Thread thread = new Thread(loop, "io-" + loop.index);
+            thread.start();
+        }
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            IoLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            SocketChannel accepted = channel;
+            loop.execute(() -> loop.register(accepted));
+        }
+    }
+
+    private class IoLoop implements Runnable {
+        final int index;
+        final Selector selector;
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        IoLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        void register(SocketChannel channel) {
+            Connection connection = new Connection(channel, this);
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (ClosedChannelException e) {
+                return;
+            }
+            try {
+                handler.onConnect(connection);
+            } catch (RuntimeException e) {
+                connection.fail(e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        try {
+                            task.run();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace(); // 連線自己的工作會自行關閉連線，這裡只是不讓 I/O 執行緒結束
+                        }
+                    }
+                    Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                    while (it.hasNext()) {
+                        SelectionKey key = it.next();
+                        it.remove();
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept((ServerSocketChannel) key.channel());
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (RuntimeException e) {
+                            connection.fail(e); // 處理器的例外只中斷這一條連線
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    public class Connection {
+        private final SocketChannel channel;
+        private final IoLoop loop;
+        private SelectionKey key;
+        private final ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private final Queue<ByteBuffer> outbound = new ArrayBlockingQueue<>(queueCapacity);
+        private final AtomicReference<ByteBuffer> latestSnapshot = new AtomicReference<>();
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final Runnable flushTask = () -> {
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                fail(e);
+            }
+        };
+        private final LongAdder droppedSnapshots = new LongAdder();
+        private ByteBuffer writing; // 正在送出（可能只送出一部分）的資料，只在所屬的 I/O 執行緒存取
+        private volatile ByteBuffer compressAfter; // 這則訊息送完之後開始壓縮
+        private volatile Deflater pendingDeflater;
+        private final AtomicBoolean compressionRequested = new AtomicBoolean(); // 每條連線只能切換一次
+        private Deflater deflater; // 以下只在所屬的 I/O 執行緒存取，null 表示不壓縮
+        private boolean switchAfterWriting = false;
+        private byte[] deflated = new byte[1024];
+        private volatile long backlogSince = 0; // socket 開始送不出去的時間，0 表示沒有積壓
+        private volatile long bytesSent = 0; // 只由所屬的 I/O 執行緒寫入
+        private volatile long messagesSent = 0;
+        private volatile boolean closing = false;
+        private boolean closed = false; // 只在所屬的 I/O 執行緒存取
+        private volatile Object attachment;
+
+        Connection(SocketChannel channel, IoLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        public Object attachment() {
+            return attachment;
+        }
+
+        public void attach(Object attachment) {
+            this.attachment = attachment;
+        }
+
+        public String remoteAddress() {
+            return String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+
+        // 必須送達的訊息，可由任何執行緒呼叫，資料會先複製再排入佇列
+        public void send(byte[] buf, int offset, int length) {
+            if (closing) return;
+            if (!outbound.offer(copy(buf, offset, length))) {
+                closeSlowConsumer("送出佇列已滿");
+                return;
+            }
+            scheduleFlush();
+        }
+
+        // 必須送達的訊息，送出後這條連線之後的資料都以 deflater 壓縮（deflater 交給連線管理，關閉時釋放）
+        // 已經要求過壓縮的連線不再切換，直接釋放傳入的 deflater
+        public void sendThenCompress(byte[] buf, int offset, int length, Deflater deflater) {
+            if (closing || !compressionRequested.compareAndSet(false, true)) {
+                deflater.end();
+                return;
+            }
+            ByteBuffer message = copy(buf, offset, length);
+            pendingDeflater = deflater;
+            compressAfter = message;
+            if (!outbound.offer(message)) {
+                closeSlowConsumer("送出佇列已滿");
+                return;
+            }
+            scheduleFlush();
+        }
+
+        // 快照訊息，依 SlowConsumerPolicy 決定是覆蓋舊快照或排隊
+        public void sendSnapshot(byte[] buf, int offset, int length) {
+            if (closing) return;
+            if (policy == SlowConsumerPolicy.DROP_STALE) {
+                if (latestSnapshot.getAndSet(copy(buf, offset, length)) != null) {
+                    droppedSnapshots.increment();
+                }
+            } else {
+                long since = backlogSince;
+                if (since != 0 && System.currentTimeMillis() - since > maxBacklogMillis) {
+                    closeSlowConsumer("積壓超過 " + maxBacklogMillis + " ms");
+                    return;
+                }
+                if (!outbound.offer(copy(buf, offset, length))) {
+                    closeSlowConsumer("送出佇列已滿");
+                    return;
+                }
+            }
+            scheduleFlush();
+        }
+
+        // 排隊中的訊息數量（含尚未送出的最新快照）
+        public int queueDepth() {
+            return outbound.size() + (latestSnapshot.get() != null ? 1 : 0);
+        }
+
+        public long droppedSnapshots() {
+            return droppedSnapshots.sum();
+        }
+
+        // 已寫入 socket 的位元組數
+        public long bytesSent() {
+            return bytesSent;
+        }
+
+        // 已完整寫入 socket 的訊息數
+        public long messagesSent() {
+            return messagesSent;
+        }
+
+        // 目前積壓的時間，沒有積壓時為 0
+        public long backlogMillis() {
+            long since = backlogSince;
+            return since == 0 ? 0 : System.currentTimeMillis() - since;
+        }
+
+        public void close() {
+            closing = true;
+            loop.execute(this::closeNow);
+        }
+
+        private void closeSlowConsumer(String reason) {
+            EventLog.log("客戶端 " + remoteAddress() + " 消化太慢（" + reason + "），中斷連線");
+            close();
+        }
+
+        private ByteBuffer copy(byte[] buf, int offset, int length) {
+            ByteBuffer copy = ByteBuffer.allocate(length);
+            copy.put(buf, offset, length).flip();
+            return copy;
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                loop.execute(flushTask);
+            }
+        }
+
+        private void read() {
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                closeNow();
+                return;
+            }
+            byte[] buf = in.array();
+            int end = in.position();
+            int start = 0;
+            for (int i = 0; i < end; i++) {
+                if (buf[i] == '\n') {
+                    int length = i - start;
+                    if (length > 0 && buf[i - 1] == '\r') length--;
+                    handler.onMessage(this, buf, start, length);
+                    start = i + 1;
+                }
+            }
+            if (start == 0 && end == buf.length) {
+                closeNow(); // 指令過長，視為異常連線
+                return;
+            }
+            in.position(start);
+            in.limit(end);
+            in.compact();
+        }
+
+        private void flush() {
+            flushScheduled.set(false);
+            if (closed) return;
+            try {
+                while (true) {
+                    if (writing == null) {
+                        ByteBuffer next = outbound.poll();
+                        if (next == null) next = latestSnapshot.getAndSet(null);
+                        if (next == null) break;
+                        switchAfterWriting = next == compressAfter;
+                        writing = deflater != null ? deflate(next) : next;
+                    }
+                    bytesSent += channel.write(writing);
+                    if (writing.hasRemaining()) {
+                        // socket 送出緩衝區已滿，等可寫入時再繼續
+                        if (backlogSince == 0) backlogSince = System.currentTimeMillis();
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    writing = null;
+                    messagesSent++;
+                    if (switchAfterWriting) {
+                        deflater = pendingDeflater;
+                        pendingDeflater = null;
+                        compressAfter = null;
+                        switchAfterWriting = false;
+                    }
+                }
+                backlogSince = 0;
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (IOException e) {
+                closeNow();
+            }
+        }
+
+        // 壓縮一則訊息並 SYNC_FLUSH，結果放在重複使用的陣列中（上一則送完之前不會再壓縮）
+        private ByteBuffer deflate(ByteBuffer message) {
+            long start = System.nanoTime();
+            deflater.setInput(message.array(), message.position(), message.remaining());
+            int n = 0;
+            while (true) {
+                n += deflater.deflate(deflated, n, deflated.length - n, Deflater.SYNC_FLUSH);
+                if (n < deflated.length) break; // 輸出沒有填滿，表示已經全部輸出
+                deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            }
+            compressionNanos.add(System.nanoTime() - start);
+            compressionInput.add(message.remaining());
+            compressionOutput.add(n);
+            return ByteBuffer.wrap(deflated, 0, n);
+        }
+
+        private void closeNow() {
+            if (closed) return;
+            closed = true;
+            closing = true;
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // 連線已關閉
+            }
+            outbound.clear();
+            latestSnapshot.set(null);
+            writing = null;
+            if (deflater != null) deflater.end();
+            Deflater pending = pendingDeflater;
+            if (pending != null) pending.end();
+            try {
+                handler.onDisconnect(this);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // 處理這條連線時發生未預期的例外：記錄後只關閉這一條連線，I/O 執行緒繼續服務其他連線
+        private void fail(RuntimeException e) {
+            EventLog.log("連線 " + remoteAddress() + " 處理時發生例外，中斷連線：" + e);
+            e.printStackTrace();
+            closeNow();
+        }
+    }
+}
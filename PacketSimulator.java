@@ -0,0 +1,74 @@
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// 在本機測試 UDP 時模擬不良的網路：依機率丟棄送出的封包，或延遲一段時間（含隨機抖動）才送出
+//
+// 以系統屬性設定，伺服器與客戶端各自套用在自己送出的封包上：
+//   -Dnet.loss=0.05      丟棄 5% 的封包
+//   -Dnet.latency=40     每個封包延遲 40 ms
+//   -Dnet.jitter=10      延遲再加上 0 到 10 ms 的隨機值（封包可能因此亂序）
+// 都沒有設定時直接送出，不會建立額外的執行緒。
+public class PacketSimulator {
+    private final double loss;
+    private final int latencyMillis;
+    private final int jitterMillis;
+    private ScheduledExecutorService delayer; // 有延遲時才建立
+
+    public PacketSimulator(double loss, int latencyMillis, int jitterMillis) {
+        this.loss = loss;
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        if (latencyMillis > 0 || jitterMillis > 0) {
+            delayer = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "packet-delay");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    public static PacketSimulator fromSystemProperties() {
+        return new PacketSimulator(
+                Double.parseDouble(System.getProperty("net.loss", "0")),
+                Integer.getInteger("net.latency", 0),
+                Integer.getInteger("net.jitter", 0));
+    }
+
+    public boolean enabled() {
+        return loss > 0 || delayer != null;
+    }
+
+    @Override
+    public String toString() {
+        return "丟包 " + Math.round(loss * 100) + "%，延遲 " + latencyMillis + " ms，抖動 " + jitterMillis + " ms";
+    }
+
+    // 送出 packet 中 position 到 limit 的資料，呼叫後 packet 可以立即重複使用
+    public void send(DatagramChannel channel, ByteBuffer packet, SocketAddress target) throws IOException {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (loss > 0 && random.nextDouble() < loss) {
+            packet.position(packet.limit()); // 當作已送出
+            return;
+        }
+        if (delayer == null) {
+            channel.send(packet, target);
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(packet.remaining());
+        copy.put(packet).flip();
+        long delay = latencyMillis + (jitterMillis > 0 ? random.nextInt(jitterMillis + 1) : 0);
+        delayer.schedule(() -> {
+            try {
+                channel.send(copy, target);
+            } catch (IOException e) {
+                // 通道已關閉，模擬的封包直接丟棄
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,162 @@
+// 以平行陣列（structure of arrays）存放房間內所有子彈，不為每顆子彈建立物件
+//
+// 玩家子彈與黑色子彈放在同一個容器中，以 kind 區分。移除時把最後一顆搬到被移除的位置（swap-remove），
+// 所以順序不固定；走訪時若要在迴圈中移除，需由後往前走。容量固定，建立後不會再配置記憶體。
+//
+// 速度以定點數表示（每像素 SUBPIXELS 單位），黑色子彈另外保存不足一像素的餘數，
+// 所以移動的結果只有整數運算，不論平台或方向，捨入方式都一致（一律向下取整）。
+public class ProjectileStore {
+    static final int KIND_BULLET = 0; // 玩家子彈，水平直線飛行
+    static final int KIND_BLACK = 1; // 黑色子彈，碰到邊界會反彈
+
+    static final int BULLET_SPEED = 4;
+    static final int BLACK_BULLET_SPEED = 4;
+    static final int BLACK_BULLET_SIZE = 20;
+    static final int SUBPIXEL_BITS = 8;
+    static final int SUBPIXELS = 1 << SUBPIXEL_BITS;
+
+    final int capacity;
+    int count;
+    final int[] id;
+    final int[] kind;
+    final int[] owner; // 發射的玩家，黑色子彈為 -1
+    final int[] x;
+    final int[] y;
+    final int[] vx; // 每一步的位移（定點數），玩家子彈只有水平方向
+    final int[] vy;
+    final int[] fracX; // 黑色子彈不足一像素的位移（0 到 SUBPIXELS - 1）
+    final int[] fracY;
+    final int[] color;
+    final int[] rewind; // 延遲補償：玩家子彈以發射者畫面上的時間判定命中，比目前回溯的步數
+
+    ProjectileStore(int capacity) {
+        this.capacity = capacity;
+        id = new int[capacity];
+        kind = new int[capacity];
+        owner = new int[capacity];
+        x = new int[capacity];
+        y = new int[capacity];
+        vx = new int[capacity];
+        vy = new int[capacity];
+        fracX = new int[capacity];
+        fracY = new int[capacity];
+        color = new int[capacity];
+        rewind = new int[capacity];
+    }
+
+    // 回傳新子彈的位置，容器已滿時回傳 -1
+    int addBullet(int id, int owner, int x, int y, int direction, int color) {
+        int i = add(id, KIND_BULLET, owner, x, y, color);
+        if (i >= 0) {
+            vx[i] = direction * BULLET_SPEED * SUBPIXELS;
+            vy[i] = 0;
+        }
+        return i;
+    }
+
+    int addBlackBullet(int id, int x, int y, double dirX, double dirY) {
+        int i = add(id, KIND_BLACK, -1, x, y, 0xFF000000);
+        if (i >= 0) {
+            setDirection(i, dirX, dirY);
+        }
+        return i;
+    }
+
+    private int add(int id, int kind, int owner, int x, int y, int color) {
+        if (count == capacity) return -1;
+        int i = count++;
+        this.id[i] = id;
+        this.kind[i] = kind;
+        this.owner[i] = owner;
+        this.x[i] = x;
+        this.y[i] = y;
+        this.color[i] = color;
+        this.fracX[i] = 0;
+        this.fracY[i] = 0;
+        this.rewind[i] = 0;
+        return i;
+    }
+
+    void remove(int i) {
+        int last = --count;
+        if (i != last) {
+            id[i] = id[last];
+            kind[i] = kind[last];
+            owner[i] = owner[last];
+            x[i] = x[last];
+            y[i] = y[last];
+            vx[i] = vx[last];
+            vy[i] = vy[last];
+            fracX[i] = fracX[last];
+            fracY[i] = fracY[last];
+            color[i] = color[last];
+            rewind[i] = rewind[last];
+        }
+    }
+
+    void removeOwnedBy(int userId) {
+        for (int i = count - 1; i >= 0; i--) {
+            if (kind[i] == KIND_BULLET && owner[i] == userId) {
+                remove(i);
+            }
+        }
+    }
+
+    void clear() {
+        count = 0;
+    }
+
+    void moveBullets() {
+        for (int i = 0; i < count; i++) {
+            if (kind[i] == KIND_BULLET) {
+                x[i] += vx[i] >> SUBPIXEL_BITS; // 玩家子彈的速度是整數像素
+            }
+        }
+    }
+
+    // 反彈角度的隨機調整使用對戰自己的亂數，結果可以重現
+    void moveBlackBullets(MatchRandom random) {
+        int maxX = GameProtocol.ARENA_WIDTH - BLACK_BULLET_SIZE;
+        int maxY = GameProtocol.ARENA_HEIGHT - BLACK_BULLET_SIZE;
+        for (int i = 0; i < count; i++) {
+            if (kind[i] != KIND_BLACK) continue;
+            int fx = (x[i] << SUBPIXEL_BITS) + fracX[i] + vx[i];
+            int fy = (y[i] << SUBPIXEL_BITS) + fracY[i] + vy[i];
+            x[i] = fx >> SUBPIXEL_BITS;
+            fracX[i] = fx & (SUBPIXELS - 1);
+            y[i] = fy >> SUBPIXEL_BITS;
+            fracY[i] = fy & (SUBPIXELS - 1);
+
+            if (x[i] <= 0 || x[i] >= maxX) {
+                vx[i] = -vx[i];
+                randomizeDirection(i, random);
+            }
+            if (y[i] <= 0 || y[i] >= maxY) {
+                vy[i] = -vy[i];
+                randomizeDirection(i, random);
+            }
+        }
+    }
+
+    // 設置方向並單位化，換算成黑色子彈的定點數速度
+    private void setDirection(int i, double dirX, double dirY) {
+        double length = StrictMath.sqrt(dirX * dirX + dirY * dirY);
+        vx[i] = (int) StrictMath.round(dirX / length * BLACK_BULLET_SPEED * SUBPIXELS);
+        vy[i] = (int) StrictMath.round(dirY / length * BLACK_BULLET_SPEED * SUBPIXELS);
+    }
+
+    // 隨機調整反彈角度（以 StrictMath 計算，各平台結果相同）
+    private void randomizeDirection(int i, MatchRandom random) {
+        double angle = random.nextDouble() * Math.PI / 4;
+        double cos = StrictMath.cos(angle);
+        double sin = StrictMath.sin(angle);
+        double newDx = vx[i] * cos - vy[i] * sin;
+        double newDy = vx[i] * sin + vy[i] * cos;
+
+        // 隨機反轉方向
+        if (random.nextBoolean()) newDx = -newDx;
+        if (random.nextBoolean()) newDy = -newDy;
+
+        setDirection(i, newDx, newDy); // 更新方向向量
+    }
+}
@@ -0,0 +1,452 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+
+// 一場兩人對戰：座位、連線與快照的傳送，遊戲規則本身在 Simulation
+//
+// 房間的狀態只在所屬的 RoomScheduler 工作執行緒上修改；其他執行緒（網路 I/O）
+// 透過 execute 把工作排入佇列，在下一步模擬開始前執行。
+// 每一步把玩家的輸入交給 Simulation，再依照產生的事件廣播訊息與輸出紀錄。
+// 設定了紀錄目錄時（-Drecord.dir），每場對戰從開始到結束都以 MatchRecorder 記錄，可以用 MatchReplay 重播。
+// 設定了觀戰目錄時，送給玩家的訊息也寫入 SpectatorFeed（每次快照只編碼一份完整快照），由 SpectatorRelay 轉送給觀戰者。
+// 興趣範圍過濾（-Daoi.radius）開啟時，每位玩家只收到自己附近幾格內的實體，見 InterestGrid。
+// 延遲補償：以快照送出到收到 ACK 的時間估計每位玩家的 RTT，加上客戶端的內插延遲，就是玩家射擊時看到的畫面
+// 比伺服器晚了多久，換算成步數交給 Simulation 回溯命中判定（上限 REWIND_LIMIT_MILLIS）。
+// 對戰結束後房間會中斷玩家連線、清空狀態並交還給 Server 重複使用，不再結束整個程式。
+public class Room {
+    static final int MAX_PLAYERS = Simulation.MAX_PLAYERS;
+    static final int FINISH_LINGER_STEPS = 1000 / Simulation.TICK_RATE; // 遊戲結束後保留一秒讓訊息送出
+
+    private static final int SNAPSHOT_HISTORY = 64; // 保留最近幾個快照作為差異基準
+
+    // 延遲補償的設定，可以用系統屬性調整（-Dlag.rewindLimit=0 關閉）
+    static final int REWIND_LIMIT_MILLIS = Math.min(Integer.getInteger("lag.rewindLimit", 200),
+            Simulation.MAX_REWIND_STEPS * Simulation.TICK_RATE); // 最多回溯的時間
+    static final int VIEW_DELAY_MILLIS = Integer.getInteger("lag.viewDelay", 100); // 客戶端畫面比最新快照晚的時間（內插延遲）
+    static final int FIXED_RTT_MILLIS = Integer.getInteger("lag.rtt", -1); // 指定固定的 RTT，-1 表示依 ACK 估計
+    private static final double RTT_SMOOTHING = 0.1;
+    private static final int REWIND_GRANULARITY_STEPS = 10 / Simulation.TICK_RATE; // 以 10 ms 為單位調整，RTT 的小幅變動不必每次都寫入紀錄
+
+    // 興趣範圍過濾的設定：格子邊長（像素）與可見的格數，radius 為 -1 時關閉（送出整個場地）
+    static final int AOI_CELL_SIZE = Integer.getInteger("aoi.cellSize", 160);
+    static final int AOI_RADIUS = Integer.getInteger("aoi.radius", -1);
+
+    enum Status {
+        OPEN, // 等待玩家加入
+        PLAYING,
+        FINISHED,
+        CLOSED // 已交還，等待重複使用
+    }
+
+    final int id;
+    private final Path recordingDirectory; // null 表示不記錄對戰
+    private final Path spectatorDirectory; // null 表示不開放觀戰
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private volatile Status status = Status.OPEN;
+    private final boolean[] reserved = new boolean[MAX_PLAYERS]; // 以 this 同步，由 I/O 執行緒保留座位
+
+    // 以下狀態只在工作執行緒上存取
+    private final Simulation simulation = new Simulation(newSeed());
+    private final int[] inputs = new int[MAX_PLAYERS];
+    private final Simulation.Events events = new Simulation.Events();
+    private final List<Server.ClientHandler> clients = new ArrayList<>();
+    private final Snapshot[] snapshotHistory = new Snapshot[SNAPSHOT_HISTORY];
+    private final long[] snapshotSentAt = new long[SNAPSHOT_HISTORY]; // 與 snapshotHistory 對應的送出時間（奈秒）
+    private final GameProtocol.Writer spectatorWriter = new GameProtocol.Writer();
+    private final InterestGrid interest = AOI_RADIUS < 0 ? null
+            : new InterestGrid(GameProtocol.ARENA_WIDTH, GameProtocol.ARENA_HEIGHT, AOI_CELL_SIZE, AOI_RADIUS);
+    private int tick = 0; // 快照序號
+    private int finishedSteps = 0;
+    private MatchRecorder recorder; // 對戰進行中才有
+    private SpectatorFeed spectators; // 第一位玩家加入時才建立，無法建立時維持 null
+    private boolean spectatorFeedOpened = false;
+    RoomScheduler.Worker worker; // 由 RoomScheduler 設定
+    boolean measureCollision = false; // 由工作執行緒每隔幾步設定，量測這一步的碰撞耗時
+    long collisionNanos = 0; // 上一步碰撞檢查的耗時，沒有量測時為 0
+
+    Room(int id, Path recordingDirectory, Path spectatorDirectory) {
+        this.id = id;
+        this.recordingDirectory = recordingDirectory;
+        this.spectatorDirectory = spectatorDirectory;
+    }
+
+    // 建立觀戰的檔案（在工作執行緒上，每個房間只做一次）。房間由大廳執行緒在持有鎖的情況下建立，
+    // 建立目錄與映射檔案不放在那裡，以免 I/O 執行緒處理斷線時等待同一把鎖
+    private void openSpectatorFeed() {
+        if (spectatorFeedOpened) return;
+        spectatorFeedOpened = true;
+        if (spectatorDirectory == null) return;
+        try {
+            spectators = SpectatorFeed.create(spectatorDirectory, id);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.out.println("房間 " + id + " 無法開放觀戰");
+            return;
+        }
+        // 伺服器重新啟動時檔案沿用原本的位置，但快照序號與模擬時間從頭開始，先讓還在讀取的觀戰者清空
+        broadcastReset();
+    }
+
+    // 每場對戰的種子，模擬本身不再使用共用的亂數；記錄下來就能重現整場對戰
+    private static long newSeed() {
+        return ThreadLocalRandom.current().nextLong();
+    }
+
+    Status status() {
+        return status;
+    }
+
+    // 保留一個座位並回傳玩家編號，房間已滿或已開始時回傳 -1（在 I/O 執行緒呼叫）
+    synchronized int reserveSlot() {
+        if (status != Status.OPEN) return -1;
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            if (!reserved[i]) {
+                reserved[i] = true;
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    synchronized boolean hasFreeSlot() {
+        if (status != Status.OPEN) return false;
+        for (boolean r : reserved) {
+            if (!r) return true;
+        }
+        return false;
+    }
+
+    private synchronized void releaseSlot(int userId) {
+        reserved[userId] = false;
+    }
+
+    // 可由任何執行緒呼叫，工作會在下一步模擬前於房間的執行緒上執行
+    void execute(Runnable task) {
+        tasks.add(task);
+    }
+
+    void join(Server.ClientHandler handler) {
+        int userId = handler.userId;
+        openSpectatorFeed();
+
+        // 設定玩家初始位置與顏色
+        simulation.addPlayer(userId);
+        clients.add(handler);
+        EventLog.log("房間 " + id + "：玩家 " + userId + " 已連接！");
+
+        if (clients.size() >= MAX_PLAYERS) {
+            status = Status.PLAYING;
+            EventLog.log("房間 " + id + "：玩家數量已達到上限！（種子 " + simulation.seed() + "）");
+            simulation.start(); // 當兩位玩家都連接時，開始計時生成補包
+            startRecording();
+        }
+    }
+
+    void leave(Server.ClientHandler handler) {
+        if (!clients.remove(handler)) return;
+        simulation.removePlayer(handler.userId);
+        if (recorder != null) {
+            recorder.removePlayer(simulation.steps(), handler.userId);
+        }
+        handler.room = null;
+        if (status == Status.OPEN) {
+            releaseSlot(handler.userId);
+        } else if (clients.isEmpty()) {
+            recycle();
+        }
+    }
+
+    // x 小於 0 表示補包已被撿走
+    private void broadcastHealthPack(int x, int y) {
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        writeHealthPack(w, x, y);
+        broadcastFrame(w);
+    }
+
+    private static void writeHealthPack(GameProtocol.Writer w, int x, int y) {
+        w.begin(GameProtocol.MSG_HEALTH_PACK);
+        if (x >= 0) {
+            w.writeByte(1);
+            GameProtocol.writePoint(w, x, y);
+        } else {
+            w.writeByte(0);
+        }
+        w.finish();
+    }
+
+    private void broadcastFrame(GameProtocol.Writer w) {
+        for (int i = 0; i < clients.size(); i++) {
+            clients.get(i).sendFrame(w.buffer(), w.frameOffset(), w.frameLength());
+        }
+        if (spectators != null) {
+            spectators.begin();
+            spectators.append(w.buffer(), w.frameOffset(), w.frameLength());
+            spectators.commit(false);
+        }
+    }
+
+    // 觀戰者的一筆：目前的補包與完整快照，觀戰者從任何一筆開始都能看到完整的畫面。
+    // 只是寫入映射的記憶體，與觀戰人數無關
+    private void publishForSpectators(Snapshot current) {
+        GameProtocol.Writer w = spectatorWriter;
+        Simulation.HealthPack pack = simulation.healthPack;
+        spectators.begin();
+        writeHealthPack(w, pack != null ? pack.x : -1, pack != null ? pack.y : -1);
+        spectators.append(w.buffer(), w.frameOffset(), w.frameLength());
+        w.begin(GameProtocol.MSG_SNAPSHOT);
+        w.writeVarInt(0); // 觀戰者沒有輸入
+        current.writeFull(w);
+        w.finish();
+        spectators.append(w.buffer(), w.frameOffset(), w.frameLength());
+        spectators.commit(true);
+    }
+
+    // 執行一步模擬（在工作執行緒上呼叫）
+    void step() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+        collisionNanos = 0;
+        if (status == Status.CLOSED) return;
+        if (status == Status.FINISHED) {
+            if (++finishedSteps >= FINISH_LINGER_STEPS) {
+                closeAndRecycle();
+            }
+            return;
+        }
+        Arrays.fill(inputs, 0);
+        if (status == Status.PLAYING) {
+            for (int i = 0; i < clients.size(); i++) {
+                Server.ClientHandler client = clients.get(i);
+                updateRewind(client);
+                inputs[client.userId] = client.input.consume();
+            }
+        }
+        if (recorder != null) {
+            recorder.input(simulation.steps(), inputs);
+        }
+        simulation.measureCollision = measureCollision;
+        boolean running = simulation.step(inputs, events);
+        collisionNanos = simulation.collisionNanos;
+        publishEvents();
+        if (!running) {
+            status = Status.FINISHED;
+            finishedSteps = 0;
+            closeRecording();
+        } else if (recorder != null && simulation.steps() % MatchRecorder.KEYFRAME_INTERVAL_STEPS == 0) {
+            recorder.keyframe(simulation);
+        }
+    }
+
+    // 客戶端確認了新的快照時更新 RTT 的估計，換算成這位玩家射擊時要回溯的步數
+    private void updateRewind(Server.ClientHandler client) {
+        int acked = client.ackedTick;
+        if (acked != client.rttTick && baselineFor(acked) != null) {
+            client.rttTick = acked;
+            double sample = (System.nanoTime() - snapshotSentAt[acked % SNAPSHOT_HISTORY]) / 1e6;
+            client.rttMillis = client.rttMillis < 0 ? sample : client.rttMillis + (sample - client.rttMillis) * RTT_SMOOTHING;
+        }
+        double rtt = FIXED_RTT_MILLIS >= 0 ? FIXED_RTT_MILLIS : client.rttMillis;
+        if (rtt < 0) return; // 還沒有樣本
+        int millis = REWIND_LIMIT_MILLIS > 0 ? Math.min((int) rtt + VIEW_DELAY_MILLIS, REWIND_LIMIT_MILLIS) : 0;
+        int steps = millis / Simulation.TICK_RATE / REWIND_GRANULARITY_STEPS * REWIND_GRANULARITY_STEPS;
+        if (simulation.setRewind(client.userId, steps) && recorder != null) {
+            recorder.rewind(simulation.steps(), client.userId, steps);
+        }
+    }
+
+    // 檔案由 MatchRecorder 的寫入執行緒建立，失敗時由那裡記錄
+    private void startRecording() {
+        if (recordingDirectory == null) return;
+        recorder = MatchRecorder.open(recordingDirectory, id, simulation);
+        EventLog.log("房間 " + id + "：記錄對戰至 " + recorder.path());
+    }
+
+    private void closeRecording() {
+        if (recorder == null) return;
+        recorder.close(simulation.steps());
+        recorder = null;
+    }
+
+    // 模擬產生的事件轉成廣播與紀錄
+    private void publishEvents() {
+        Simulation.Events e = events;
+        for (int k = 0; k < e.count; k++) {
+            switch (e.type[k]) {
+                case Simulation.Events.BLACK_HIT:
+                    EventLog.log("房間 " + id + "：玩家 " + e.a[k] + " 被黑色子彈擊中，剩餘血量：" + e.b[k]);
+                    break;
+                case Simulation.Events.HIT:
+                    EventLog.log("房間 " + id + "：玩家 " + e.a[k] + " 被擊中！剩餘血量：" + e.b[k]);
+                    break;
+                case Simulation.Events.PICKUP:
+                    EventLog.log("房間 " + id + "：玩家 " + e.a[k] + " 撿取補包，恢復血量至: " + e.b[k]);
+                    break;
+                case Simulation.Events.HEALTH_PACK:
+                    broadcastHealthPack(e.a[k], e.b[k]); // 同步到所有客戶端
+                    break;
+                case Simulation.Events.GAME_OVER:
+                    broadcastGameOver(e.a[k]); // 廣播遊戲結束
+                    break;
+            }
+        }
+    }
+
+    private void broadcastGameOver(int winnerId) {
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        w.begin(GameProtocol.MSG_GAME_OVER);
+        w.writeVarInt(winnerId);
+        w.finish();
+        broadcastFrame(w);
+        EventLog.log("房間 " + id + "：遊戲結束！玩家 " + winnerId + " 獲勝！");
+    }
+
+    // 重新開始這一局（RESTART 指令），玩家留在房間內
+    void resetGame() {
+        if (status == Status.FINISHED) return;
+        simulation.restart();
+        if (recorder != null) {
+            recorder.restart(simulation.steps());
+        }
+        broadcastReset();
+        broadcastHealthPack(-1, -1);
+    }
+
+    // 對戰結束：中斷所有連線後把房間交還重複使用
+    private void closeAndRecycle() {
+        for (Server.ClientHandler client : new ArrayList<>(clients)) {
+            client.room = null;
+            client.close();
+        }
+        clients.clear();
+        recycle();
+    }
+
+    private void recycle() {
+        status = Status.CLOSED;
+        closeRecording();
+        EventLog.log("房間 " + id + " 已結束，等待重複使用");
+        worker.remove(this);
+    }
+
+    // 清空狀態讓房間可以重新開放（由 RoomScheduler 移出工作執行緒時呼叫）
+    void reset() {
+        tasks.clear();
+        simulation.reset(newSeed());
+        clients.clear();
+        Arrays.fill(snapshotHistory, null);
+        if (interest != null) interest.clear();
+        // 快照序號不歸零：觀戰者沿用同一個檔案，模擬時間歸零的部分由 MSG_RESET 讓客戶端清空
+        finishedSteps = 0;
+        synchronized (this) {
+            Arrays.fill(reserved, false);
+            status = Status.OPEN;
+        }
+        // 告訴還在觀看的觀戰者上一場已經結束（這時沒有玩家，只寫入觀戰的檔案）
+        broadcastReset();
+    }
+
+    // 客戶端收到後清除遊戲結束畫面與已收到的快照
+    private void broadcastReset() {
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        w.begin(GameProtocol.MSG_RESET);
+        w.finish();
+        broadcastFrame(w);
+    }
+
+    // 不經過網路直接存取房間狀態，供基準測試在工作執行緒以外單獨驅動房間
+    ProjectileStore projectiles() {
+        return simulation.projectiles;
+    }
+
+    Simulation.PlayerState player(int userId) {
+        return simulation.players[userId];
+    }
+
+    // 送出快照（在工作執行緒上，依 RoomScheduler 設定的頻率呼叫），沒有送出時回傳 false
+    boolean broadcastGameState() {
+        if (clients.isEmpty() || status == Status.FINISHED) return false;
+        Snapshot current = captureSnapshot(++tick);
+        snapshotSentAt[tick % SNAPSHOT_HISTORY] = System.nanoTime();
+        if (spectators != null) publishForSpectators(current);
+        if (interest != null) {
+            broadcastCells(current);
+            return true;
+        }
+
+        for (int i = 0; i < clients.size(); i++) {
+            Server.ClientHandler client = clients.get(i);
+            GameProtocol.Writer w = client.writer;
+            Snapshot base = baselineFor(client.ackedTick);
+            int lastInput = client.input.lastProcessedSeq(); // 讓客戶端知道哪些輸入已經反映在這個快照
+            if (base != null) {
+                w.begin(GameProtocol.MSG_SNAPSHOT_DELTA);
+                w.writeVarInt(lastInput);
+                current.writeDelta(w, base);
+            } else {
+                // 新連線或落後太多的客戶端，送出完整快照
+                w.begin(GameProtocol.MSG_SNAPSHOT);
+                w.writeVarInt(lastInput);
+                current.writeFull(w);
+            }
+            w.finish();
+            client.sendSnapshot(w.buffer(), w.frameOffset(), w.frameLength());
+        }
+        return true;
+    }
+
+    // 依每位客戶端的位置只送出附近的格子，相同的格子片段在客戶端之間共用
+    private void broadcastCells(Snapshot current) {
+        interest.capture(current);
+        for (int i = 0; i < clients.size(); i++) {
+            Server.ClientHandler client = clients.get(i);
+            Simulation.PlayerState player = simulation.players[client.userId];
+            long view = player != null ? interest.viewOf(player.x, player.y) : interest.allCells();
+            GameProtocol.Writer w = client.writer;
+            w.begin(GameProtocol.MSG_SNAPSHOT_CELLS);
+            w.writeVarInt(client.input.lastProcessedSeq());
+            interest.writeCells(w, client.view, tick, view, client.ackedTick);
+            w.finish();
+            client.sendSnapshot(w.buffer(), w.frameOffset(), w.frameLength());
+        }
+    }
+
+    private Snapshot captureSnapshot(int tick) {
+        int slot = tick % SNAPSHOT_HISTORY;
+        Snapshot snapshot = snapshotHistory[slot];
+        if (snapshot == null) {
+            snapshot = snapshotHistory[slot] = new Snapshot();
+        }
+        capture(simulation, tick, snapshot);
+        return snapshot;
+    }
+
+    // 把模擬目前的狀態寫入 snapshot（依 id 排序），壓縮字典的訓練也以此產生與實際相同的快照
+    static void capture(Simulation simulation, int tick, Snapshot snapshot) {
+        snapshot.clear(tick);
+        snapshot.time = simulation.time;
+        for (Simulation.PlayerState player : simulation.players) {
+            if (player == null) continue;
+            snapshot.addPlayer(player.userId, player.x, player.y, player.health, player.playerColor, player.bulletColor);
+        }
+        ProjectileStore p = simulation.projectiles;
+        for (int i = 0; i < p.count; i++) {
+            if (p.kind[i] == ProjectileStore.KIND_BULLET) {
+                snapshot.addBullet(p.id[i], p.owner[i], p.x[i], p.y[i]);
+            } else {
+                snapshot.addBlackBullet(p.id[i], p.x[i], p.y[i]);
+            }
+        }
+        snapshot.sortById();
+    }
+
+    // 找出客戶端已確認且仍在歷史緩衝區內的快照
+    private Snapshot baselineFor(int ackedTick) {
+        if (ackedTick <= 0 || tick - ackedTick >= SNAPSHOT_HISTORY) return null;
+        Snapshot base = snapshotHistory[ackedTick % SNAPSHOT_HISTORY];
+        return base != null && base.tick == ackedTick ? base : null;
+    }
+}
@@ -0,0 +1,135 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+// 把大量房間分散到固定數量（預設為 CPU 核心數）的工作執行緒上執行
+//
+// 每個工作執行緒以一個 FixedStepLoop 驅動它負責的所有房間：每一步依序模擬每個房間，
+// 到了傳送時間再依序送出每個房間的快照。新房間會分配給目前房間數最少的工作執行緒。
+public class RoomScheduler {
+    private final Worker[] workers;
+    private final Consumer<Room> onRemoved;
+    private final ServerMetrics metrics;
+
+    // onRemoved 會在房間移出工作執行緒、狀態清空之後呼叫，用來回收房間
+    public RoomScheduler(int threads, long stepMillis, int sendRateHz, int maxCatchUpSteps, Consumer<Room> onRemoved,
+                         ServerMetrics metrics) {
+        this.onRemoved = onRemoved;
+        this.metrics = metrics;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i, stepMillis, sendRateHz, maxCatchUpSteps);
+        }
+    }
+
+    public void start() {
+        for (Worker worker : workers) {
+            new Thread(worker.loop, "room-worker-" + worker.index).start();
+        }
+    }
+
+    public void add(Room room) {
+        Worker target = workers[0];
+        for (Worker worker : workers) {
+            if (worker.roomCount.get() < target.roomCount.get()) {
+                target = worker;
+            }
+        }
+        target.roomCount.incrementAndGet();
+        room.worker = target;
+        target.added.add(room);
+    }
+
+    public int roomCount() {
+        int total = 0;
+        for (Worker worker : workers) {
+            total += worker.roomCount.get();
+        }
+        return total;
+    }
+
+    // 所有工作執行緒因為追不上而丟棄的模擬步數
+    public long droppedSteps() {
+        long total = 0;
+        for (Worker worker : workers) {
+            total += worker.loop.droppedSteps();
+        }
+        return total;
+    }
+
+    class Worker {
+        final int index;
+        final FixedStepLoop loop;
+        final AtomicInteger roomCount = new AtomicInteger();
+        private final Queue<Room> added = new ConcurrentLinkedQueue<>();
+        private final Queue<Room> removed = new ConcurrentLinkedQueue<>();
+        private final List<Room> rooms = new ArrayList<>(); // 只在這個工作執行緒上存取
+        private final ServerMetrics.Recorder recorder = metrics.newRecorder();
+        private long steps = 0;
+
+        Worker(int index, long stepMillis, int sendRateHz, int maxCatchUpSteps) {
+            this.index = index;
+            this.loop = new FixedStepLoop(stepMillis, sendRateHz, maxCatchUpSteps, this::step, this::send);
+        }
+
+        // 由房間自己在工作執行緒上呼叫，下一步開始時移除
+        void remove(Room room) {
+            removed.add(room);
+        }
+
+        private boolean step() {
+            long start = System.nanoTime();
+            Room room;
+            while ((room = added.poll()) != null) {
+                rooms.add(room);
+            }
+            while ((room = removed.poll()) != null) {
+                if (rooms.remove(room)) {
+                    roomCount.decrementAndGet();
+                    room.worker = null;
+                    room.reset();
+                    onRemoved.accept(room);
+                }
+            }
+            boolean measureCollision = ++steps % ServerMetrics.COLLISION_SAMPLE_INTERVAL == 0;
+            for (int i = 0; i < rooms.size(); i++) {
+                room = rooms.get(i);
+                try {
+                    room.measureCollision = measureCollision;
+                    room.step();
+                    if (measureCollision && room.collisionNanos > 0) {
+                        recorder.collision.record(room.collisionNanos);
+                    }
+                } catch (RuntimeException e) {
+                    // 單一房間出錯不影響同一個執行緒上的其他房間
+                    e.printStackTrace();
+                }
+            }
+            long end = System.nanoTime();
+            recorder.tick.record(end - start);
+            metrics.maybePublish(recorder, end);
+            return true;
+        }
+
+        // 序列化耗時以房間為單位，包含編碼每位玩家的快照與放入送出佇列
+        private void send() {
+            int projectiles = 0;
+            for (int i = 0; i < rooms.size(); i++) {
+                Room room = rooms.get(i);
+                try {
+                    long start = System.nanoTime();
+                    if (room.broadcastGameState()) {
+                        recorder.serialization.record(System.nanoTime() - start);
+                    }
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                projectiles += room.projectiles().count;
+            }
+            recorder.liveProjectiles = projectiles;
+        }
+    }
+}
@@ -1,422 +1,356 @@
 import java.io.*;
-import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
-import com.google.gson.Gson;
-import java.awt.Color;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.TimeUnit;
-import javax.sound.sampled.*;
+import java.util.zip.Deflater;
 
 public class Server {
     private static final int PORT = 5000;
-    private static final int TICK_RATE = 2;
-
-    private static final int MAX_PLAYERS = 2; // 限制遊戲人數為兩人
-    private static final int PLAYER_HEALTH = 100; // 初始血量
-    private static final int HEALTH_PACK_RESPAWN_TIME = 10; // 補包重生時間（秒）
-    private static final int HEALTH_PACK_HEAL_AMOUNT = 10; // 補包恢復血量
-
-    private static Map<Integer, PlayerState> playerStates = Collections.synchronizedMap(new HashMap<>());
-    private static List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
-    private static Gson gson = new Gson();
-    private static HealthPack healthPack;
-    private static ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
-
-    private static final int SCREEN_WIDTH = 1280;
-    private static final int SCREEN_HEIGHT = 680;
-    private static List<BlackBullet> blackBullets = Collections.synchronizedList(new ArrayList<>());
+    private static final int SNAPSHOT_SEND_RATE = 20; // 每秒送出快照次數，與模擬頻率無關（客戶端會在快照之間內插）
+    private static final int MAX_CATCH_UP_STEPS = 50; // 落後時一次最多補跑的模擬步數（100 ms）
+    private static final int IO_THREADS = 4; // 網路 I/O 執行緒數量上限
+    private static final int OUTBOUND_QUEUE_CAPACITY = 256; // 每個客戶端送出佇列的訊息數上限
+    private static final NetServer.SlowConsumerPolicy SLOW_CLIENT_POLICY = NetServer.SlowConsumerPolicy.DROP_STALE;
+    private static final int MAX_BACKLOG_MILLIS = 3000; // DISCONNECT 模式下允許的積壓時間
+    private static final int METRICS_DUMP_SECONDS = 10; // 定期輸出統計的間隔
+    private static final int LOBBY_CAPACITY = Integer.getInteger("lobby.capacity", 4096); // 等候分配房間的連線數上限，超過時拒絕
+    private static final int LOBBY_TARGET_MILLIS = Integer.getInteger("lobby.targetMillis", 50); // 進入大廳到分配完成的目標時間
+    // 對戰紀錄的位置（-Drecord.dir=recordings），沒有指定時不記錄
+    private static final Path RECORDING_DIRECTORY = System.getProperty("record.dir") != null
+            ? Paths.get(System.getProperty("record.dir")) : null;
+    private static final boolean ENABLE_UDP = true; // 另外開啟同一個埠號的 UDP，客戶端連得上時快照與輸入改走 UDP
+    private static final Path SPECTATOR_DIRECTORY = SpectatorRelay.DEFAULT_DIRECTORY; // 觀戰用的環狀緩衝區檔案，設為 null 則不開放觀戰
+    private static final int SPECTATOR_PORT = PORT + 1;
+    // 在同一個程序中啟動觀戰轉送，設為 false 時另外執行 java SpectatorRelay
+    private static final boolean RUN_SPECTATOR_RELAY = Boolean.parseBoolean(System.getProperty("spectate.relay", "true"));
+    // 客戶端要求時以 deflate + 預設字典壓縮 TCP 上的資料，設為 false 則一律不壓縮
+    static final boolean ENABLE_COMPRESSION = Boolean.parseBoolean(System.getProperty("compress", "true"));
+
+    private static final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(1);
+    private static final ServerMetrics metrics = new ServerMetrics();
+    private static RoomScheduler rooms;
+    private static UdpTransport udp; // 未開啟 UDP 時為 null
+    private static Lobby lobby;
+
+    // 房間配置，以 roomLock 同步
+    private static final Object roomLock = new Object();
+    private static final Deque<Room> openRooms = new ArrayDeque<>(); // 尚有空位的房間
+    private static final Deque<Room> freeRooms = new ArrayDeque<>(); // 已結束、可重複使用的房間
+    private static int nextRoomId = 1;
 
     public static void main(String[] args) {
-        boolean flag = true;
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            System.out.println("伺服器已啟動，等待連線...");
-
-            // 啟動遊戲邏輯更新執行緒
-            new Thread(Server::gameLoop).start();
-            scheduler.schedule(Server::spawnHealthPack, 5, TimeUnit.SECONDS); // 5秒後生成補包
-
-            while (true) {
-                if (clients.size() >= MAX_PLAYERS && flag) {
-                    checkPlayersAndSpawnHealthPack();
-                    System.out.println("玩家數量已達到上限！");
-                    flag = false;
-                    continue;
-                }
-
-                Socket clientSocket = serverSocket.accept();
-                int userId = clients.size(); // 每個玩家一個唯一 ID
-
-                // 設定玩家初始位置與顏色
-                int startX, startY;
-                int playerColor, bulletColor;
-                if (userId == 0) { // 玩家 1
-                    startX = 50;
-                    startY = SCREEN_HEIGHT / 2;
-                    playerColor = Color.YELLOW.getRGB();
-                    bulletColor = Color.BLUE.getRGB();
-                } else if (userId == 1) { // 玩家 2
-                    startX = SCREEN_WIDTH - 90;
-                    startY = SCREEN_HEIGHT / 2;
-                    playerColor = Color.GREEN.getRGB();
-                    bulletColor = Color.RED.getRGB();
-                } else {
-                    continue; // 不允許更多玩家加入
-                }
-
-                // 初始化玩家狀態
-                PlayerState playerState = new PlayerState(userId, startX, startY, playerColor, bulletColor, PLAYER_HEALTH);
-                playerStates.put(userId, playerState);
-
-                ClientHandler handler = new ClientHandler(clientSocket, userId);
-                clients.add(handler);
-                new Thread(handler).start();
-
-                System.out.println("玩家 " + userId + " 已連接！");
+        try {
+            int cores = Runtime.getRuntime().availableProcessors();
+            rooms = new RoomScheduler(cores, Simulation.TICK_RATE, SNAPSHOT_SEND_RATE, MAX_CATCH_UP_STEPS, Server::recycleRoom, metrics);
+            rooms.start();
+            metrics.start(rooms, scheduler, METRICS_DUMP_SECONDS);
+            if (ENABLE_COMPRESSION) CompressionDictionary.get(); // 先產生字典，不讓第一位要求壓縮的客戶端等待
+            if (ENABLE_UDP) {
+                udp = new UdpTransport(PORT, PacketSimulator.fromSystemProperties());
+                udp.start();
+            }
+            if (SPECTATOR_DIRECTORY != null && RUN_SPECTATOR_RELAY) {
+                new SpectatorRelay(SPECTATOR_DIRECTORY).start(SPECTATOR_PORT);
             }
+            lobby = new Lobby(LOBBY_CAPACITY, LOBBY_TARGET_MILLIS, Server::assignRoom);
+            lobby.start();
+            metrics.setLobby(lobby);
+
+            int ioThreads = Math.max(1, Math.min(IO_THREADS, cores));
+            NetServer netServer = new NetServer(PORT, ioThreads, new ConnectionListener());
+            netServer.setOutboundLimits(OUTBOUND_QUEUE_CAPACITY, SLOW_CLIENT_POLICY, MAX_BACKLOG_MILLIS);
+            metrics.setNetServer(netServer);
+            netServer.start();
+            System.out.println("伺服器已啟動，等待連線...");
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    private static void spawnHealthPack() {
-        // 只有當玩家數量達到最大值時，才生成補包
-        if (clients.size() == 2) {
-            int padding = 40; // 確保補包完全在畫面內
-            int x = new Random().nextInt(SCREEN_WIDTH - padding * 2) + padding;
-            int y = new Random().nextInt(SCREEN_HEIGHT - padding * 2) + padding;
-            healthPack = new HealthPack(x, y);
-            broadcastHealthPack();
-        }
-    }
-    
-    private static void broadcastHealthPack() {
-        if (healthPack != null) {
-            String json = gson.toJson(healthPack);
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    client.sendMessage("HEALTH_PACK " + json);
-                }
-            }
-        }else {
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    client.sendMessage("HEALTH_PACK " + "{\"x\":0,\"y\":0}");
+    // 大廳執行緒：找一個還有空位的房間並保留座位，沒有的話開新房間（優先重複使用已結束的房間），之後加入房間。
+    // 以 handler 同步，斷線處理（onDisconnect）要嘛看到已分配的房間並離開，要嘛讓這裡直接略過（回傳 false）
+    private static boolean assignRoom(ClientHandler handler) {
+        synchronized (handler) {
+            if (handler.disconnected) return false;
+            synchronized (roomLock) {
+                while (true) {
+                    Room room = openRooms.peekFirst();
+                    if (room == null) {
+                        room = freeRooms.pollFirst();
+                        if (room == null) {
+                            room = new Room(nextRoomId++, RECORDING_DIRECTORY, SPECTATOR_DIRECTORY);
+                        }
+                        openRooms.addFirst(room);
+                        rooms.add(room);
+                    }
+                    int userId = room.reserveSlot();
+                    if (!room.hasFreeSlot()) {
+                        openRooms.pollFirst();
+                    }
+                    if (userId >= 0) {
+                        handler.room = room;
+                        handler.userId = userId;
+                        break;
+                    }
                 }
             }
+            handler.sendWelcome();
+            Room room = handler.room;
+            room.execute(() -> room.join(handler));
+            return true;
         }
     }
 
-    
-    
-    private static void checkPlayersAndSpawnHealthPack() {
-        // 當兩位玩家都連接時，開始生成補包
-        if (clients.size() == 2 && healthPack == null) {
-            scheduler.schedule(Server::spawnHealthPack, 5, TimeUnit.SECONDS);
+    // 玩家在開始前離開時，房間重新開放
+    private static void reopenRoom(Room room) {
+        synchronized (roomLock) {
+            if (room.hasFreeSlot() && !openRooms.contains(room)) {
+                openRooms.addLast(room);
+            }
         }
     }
-    
-    
 
-    private static void gameLoop() {
-        while (true) {
-            try {
-                Thread.sleep(TICK_RATE);
-                synchronized (blackBullets) {
-                    Iterator<BlackBullet> it = blackBullets.iterator();
-                    while (it.hasNext()) {
-                        BlackBullet bullet = it.next();
-                        bullet.move();
-                        // 檢測黑色子彈是否擊中玩家
-                        for (PlayerState player : playerStates.values()) {
-                            if (bullet.x >= player.x && bullet.x <= player.x + 40 &&
-                                bullet.y >= player.y && bullet.y <= player.y + 40) {
-                                player.health -= 20;
-                                it.remove(); // 子彈消失
-                                System.out.println("玩家 " + player.userId + " 被黑色子彈擊中，剩餘血量：" + player.health);
-
-                                if (player.health <= 0) {
-                                    broadcastGameOver(player.userId); // 廣播遊戲結束
-                                    resetGame(); // 重置遊戲
-                                    return;
-                                }
-                                break;
-                            }
-                        }
-                    }
-                }
-                synchronized (playerStates) {
-                    for (PlayerState player : playerStates.values()) {
-                        Set<String> keys = player.keysPressed;
-
-                        // 處理移動邏輯
-                        if (keys.contains("w")) player.y = Math.max(0, player.y - player.speed);
-                        if (keys.contains("a")) player.x = Math.max(0, player.x - player.speed);
-                        if (keys.contains("s")) player.y = Math.min(SCREEN_HEIGHT - 40, player.y + player.speed);
-                        if (keys.contains("d")) player.x = Math.min(SCREEN_WIDTH - 40, player.x + player.speed);
-
-                        // 處理射擊邏輯
-                        if (keys.contains(" ")) {
-                            if (player.fireCooldown == 0) {
-                                int direction = player.userId == 0 ? 1 : -1; // 玩家 1 向右，玩家 2 向左
-                                if (player.bullets.size() < 10) {
-                                    player.bullets.add(new Bullet(player.x + 20, player.y + 20, direction, player.bulletColor));
-                                }
-                                player.fireCooldown = 100;
-                            }
-                        }
+    private static void recycleRoom(Room room) {
+        synchronized (roomLock) {
+            openRooms.remove(room);
+            freeRooms.addLast(room);
+        }
+    }
 
-                        // 減少射擊冷卻時間
-                        if (player.fireCooldown > 0) {
-                            player.fireCooldown -= TICK_RATE;
-                        }
-                    }
+    // ClientHandler 送出資料的對象。正式執行時是 NetServer 的連線，基準測試可以換成不經過網路的實作
+    interface Outbound {
+        void send(byte[] buf, int offset, int length); // 可靠傳送，依序送達
+        void sendSnapshot(byte[] buf, int offset, int length); // 可以被較新的快照取代
+        void sendThenCompress(byte[] buf, int offset, int length, Deflater deflater); // 可靠傳送，之後的資料改為壓縮
+        int queueDepth();
+        long droppedSnapshots();
+        long bytesSent();
+        long messagesSent();
+        void close();
+    }
 
-                    // 更新子彈並檢測碰撞
-                    for (PlayerState player : playerStates.values()) {
-                        Iterator<Bullet> it = player.bullets.iterator();
-                        while (it.hasNext()) {
-                            Bullet bullet = it.next();
-                            bullet.move();
-
-                            // 檢測子彈是否擊中對方玩家
-                            for (PlayerState target : playerStates.values()) {
-                                if (target.userId != player.userId) { // 不能擊中自己
-                                    if (bullet.x >= target.x && bullet.x <= target.x + 40 &&
-                                        bullet.y >= target.y && bullet.y <= target.y + 40) {
-                                        target.health -= 10; // 擊中時扣血
-                                        it.remove(); // 移除子彈
-                                        System.out.println("玩家 " + target.userId + " 被擊中！剩餘血量：" + target.health);
-                                        if (target.health <= 0) {
-                                            broadcastGameOver(player.userId); // 廣播勝利者
-                                            resetGame();
-                                            return; // 結束遊戲迴圈
-                                        }
-                                        break;
-                                    }
-                                }
-                            }
-
-                            // 檢測子彈是否出界
-                            if (bullet.x > SCREEN_WIDTH || bullet.x < 0) {
-                                it.remove();
-                            }
-                        }
-                    }
+    private static Outbound outbound(NetServer.Connection connection) {
+        return new Outbound() {
+            @Override
+            public void send(byte[] buf, int offset, int length) {
+                connection.send(buf, offset, length);
+            }
 
-                    // 檢測玩家是否碰到補包
-                    // 檢測玩家是否碰到補包
-                    if (healthPack != null) {
-                        for (PlayerState player : playerStates.values()) {
-                            if (player.x < healthPack.x + 40 && player.x + 40 > healthPack.x &&
-                                player.y < healthPack.y + 40 && player.y + 40 > healthPack.y) {
-                                player.health = Math.min(PLAYER_HEALTH, player.health + HEALTH_PACK_HEAL_AMOUNT);
-                                System.out.println("玩家 " + player.userId + " 撿取補包，恢復血量至: " + player.health);
-                                healthPack = null; // 移除補包
-                                broadcastHealthPack(); // 同步到所有客戶端
-                                spawnBlackBullet(); // 生成黑色子彈
-                                scheduler.schedule(Server::spawnHealthPack, HEALTH_PACK_RESPAWN_TIME, TimeUnit.SECONDS);
-                                break;
-                            }
-                        }
-                    }
+            @Override
+            public void sendSnapshot(byte[] buf, int offset, int length) {
+                connection.sendSnapshot(buf, offset, length);
+            }
 
-                }
+            @Override
+            public void sendThenCompress(byte[] buf, int offset, int length, Deflater deflater) {
+                connection.sendThenCompress(buf, offset, length, deflater);
+            }
 
-                // 廣播遊戲狀態
-                broadcastGameState();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            @Override
+            public int queueDepth() {
+                return connection.queueDepth();
             }
-        }
-    }
-    private static void broadcastGameOver(int winnerId) {
-        String message = "GAME_OVER " + winnerId;
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                client.sendMessage(message);
+
+            @Override
+            public long droppedSnapshots() {
+                return connection.droppedSnapshots();
             }
-        }
-        System.out.println("遊戲結束！玩家 " + winnerId + " 獲勝！");
-        System.exit(0);
-    }
 
+            @Override
+            public long bytesSent() {
+                return connection.bytesSent();
+            }
 
+            @Override
+            public long messagesSent() {
+                return connection.messagesSent();
+            }
 
-    private static void resetGame() {
-        playerStates.clear();
-        for (ClientHandler client : clients) {
-            client.sendMessage("RESET");
-        }
+            @Override
+            public void close() {
+                connection.close();
+            }
+        };
     }
 
-    static class ClientHandler implements Runnable {
-        private Socket socket;
-        private int userId;
-        private PrintWriter out;
-
-        public ClientHandler(Socket socket, int userId) {
-            this.socket = socket;
-            this.userId = userId;
+    // 網路層的事件都在 I/O 執行緒上呼叫，不可在這裡做阻塞的操作
+    static class ConnectionListener implements NetServer.Handler {
+        // 先送出標頭並放入大廳，房間由大廳執行緒分配；等候期間的指令（COMPRESS、INPUT 等）照常處理
+        @Override
+        public void onConnect(NetServer.Connection connection) {
+            ClientHandler handler;
+            if (udp == null) {
+                handler = new ClientHandler(outbound(connection));
+            } else {
+                UdpTransport.Session session = udp.open(outbound(connection));
+                handler = new ClientHandler(session);
+                session.attach(handler);
+            }
+            connection.attach(handler);
+            metrics.clientConnected(handler);
+            handler.sendHeader();
+            if (udp != null) handler.offerUdp(udp.port());
+            if (!lobby.admit(handler)) {
+                EventLog.log("大廳已滿（" + LOBBY_CAPACITY + " 人），拒絕 " + connection.remoteAddress());
+                connection.close();
+            }
         }
 
         @Override
-        public void run() {
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8"))) {
-                out = new PrintWriter(socket.getOutputStream(), true);
-
-                String command;
-                while ((command = in.readLine()) != null) {
-                    if (command.startsWith("PRESS ")) {
-                        String key = command.substring(6);
-                        playerStates.get(userId).keysPressed.add(key);
-                    } else if (command.startsWith("RELEASE ")) {
-                        String key = command.substring(8);
-                        playerStates.get(userId).keysPressed.remove(key);
-                    } else if (command.equals("RESTART")) {
-                        resetGame();
-                    }
-                }
-            } catch (IOException e) {
-                System.out.println("玩家 " + userId + " 已斷線");
-            } finally {
-                playerStates.remove(userId);
-                clients.remove(this);
+        public void onMessage(NetServer.Connection connection, byte[] buf, int offset, int length) {
+            ClientHandler handler = (ClientHandler) connection.attachment();
+            if (handler != null) {
+                handler.handleCommand(new String(buf, offset, length, StandardCharsets.UTF_8));
             }
         }
 
-        public void sendMessage(String msg) {
-            if (out != null) {
-                out.println(msg);
+        @Override
+        public void onDisconnect(NetServer.Connection connection) {
+            ClientHandler handler = (ClientHandler) connection.attachment();
+            if (handler == null) return;
+            metrics.clientDisconnected(handler);
+            handler.close(); // 連線已經關閉，這裡只是讓 UDP 工作階段一併結束
+            Room room;
+            synchronized (handler) {
+                handler.disconnected = true; // 還在大廳中的話，大廳執行緒之後會略過
+                room = handler.room;
+            }
+            if (handler.userId < 0) {
+                EventLog.log("大廳中的連線 " + connection.remoteAddress() + " 已斷線");
+                return;
+            }
+            EventLog.log("玩家 " + handler.userId + " 已斷線（丟棄快照 " + handler.droppedSnapshots() + " 個）");
+            if (room != null) {
+                room.execute(() -> {
+                    room.leave(handler);
+                    if (room.status() == Room.Status.OPEN) {
+                        reopenRoom(room);
+                    }
+                });
             }
         }
     }
 
-    static class PlayerState {
-        int userId;
-        int x, y;
-        int speed = 2;
-        int fireCooldown = 0;
-        int health; // 玩家血量
-        List<Bullet> bullets = new ArrayList<>();
-        Set<String> keysPressed = Collections.synchronizedSet(new HashSet<>());
-        int playerColor;
-        int bulletColor;
-
-        PlayerState(int userId, int x, int y, int playerColor, int bulletColor, int health) {
+    static class ClientHandler {
+        private final Outbound connection;
+        volatile int userId = -1; // 大廳分配房間時決定
+        volatile Room room; // 大廳分配之前與房間結束後為 null
+        long admittedAt; // 進入大廳的時間（System.nanoTime），由大廳使用
+        boolean disconnected = false; // 以 this 同步
+        private boolean compressionNegotiated = false; // 只在所屬的 I/O 執行緒存取，重複的 COMPRESS 直接略過
+        volatile int ackedTick = -1; // 客戶端最後確認收到的快照
+        final InputBuffer input = new InputBuffer(); // 由所屬的 I/O 執行緒寫入，改走 UDP 後由 UDP 的接收執行緒寫入
+        volatile boolean inputOverUdp = false; // 收到 UDP 的輸入之後，TCP 上較晚到的 PRESS / RELEASE 已包含在其中，直接略過
+        final GameProtocol.Writer writer = new GameProtocol.Writer(); // 只在房間的執行緒上使用
+        int rttTick = -1; // 上一次用來估計 RTT 的快照，只在房間的執行緒上使用
+        double rttMillis = -1; // 估計的 RTT，-1 表示還沒有樣本
+        final InterestGrid.Viewer view = new InterestGrid.Viewer(); // 開啟興趣範圍過濾時才使用，只在房間的執行緒上使用
+
+        public ClientHandler(Outbound connection) {
+            this.connection = connection;
+        }
+
+        public ClientHandler(Outbound connection, Room room, int userId) {
+            this.connection = connection;
+            this.room = room;
             this.userId = userId;
-            this.x = x;
-            this.y = y;
-            this.playerColor = playerColor;
-            this.bulletColor = bulletColor;
-            this.health = health;
         }
-    }
 
-    static class Bullet {
-        int x, y;
-        int speed = 4;
-        int direction;
-        int color;
-
-        Bullet(int x, int y, int direction, int color) {
-            this.x = x;
-            this.y = y;
-            this.direction = direction;
-            this.color = color;
+        // 送出通訊協定標頭
+        void sendHeader() {
+            ByteArrayOutputStream header = new ByteArrayOutputStream(8);
+            try {
+                GameProtocol.writeHeader(header);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            connection.send(header.toByteArray(), 0, header.size());
+        }
+
+        // 分配到房間後送出玩家編號
+        void sendWelcome() {
+            GameProtocol.Writer w = new GameProtocol.Writer();
+            w.begin(GameProtocol.MSG_WELCOME);
+            w.writeVarInt(userId);
+            w.finish();
+            connection.send(w.buffer(), w.frameOffset(), w.frameLength());
         }
 
-        void move() {
-            x += speed * direction;
+        // 告訴客戶端可以改用 UDP，token 用來對應這條 TCP 連線
+        void offerUdp(int port) {
+            if (!(connection instanceof UdpTransport.Session)) return;
+            GameProtocol.Writer w = new GameProtocol.Writer();
+            w.begin(GameProtocol.MSG_UDP_OFFER);
+            w.writeVarInt(port);
+            w.writeInt(((UdpTransport.Session) connection).token);
+            w.finish();
+            connection.send(w.buffer(), w.frameOffset(), w.frameLength());
         }
-    }
 
-    static class GameState {
-        List<PlayerState> players;
-        List<BlackBullet> blackBullets;
-        GameState(List<PlayerState> players) {
-            this.players = players;
-            this.blackBullets = new ArrayList<>();
+        // 按鍵以 "INPUT <序號> <遮罩>" 送來（客戶端每一幀最多一個），序號不大於已收到的輸入直接略過，
+        // 所以改走 UDP 之後 TCP 上較晚到的輸入不需要另外判斷；PRESS / RELEASE 是舊客戶端的逐鍵指令
+        void handleCommand(String command) {
+            if (command.startsWith("INPUT ")) {
+                int space = command.indexOf(' ', 6);
+                if (space < 0) return;
+                try {
+                    input.publish(Integer.parseInt(command, 6, space, 10),
+                            Integer.parseInt(command, space + 1, command.length(), 10));
+                } catch (NumberFormatException e) {
+                    // 忽略格式錯誤的輸入
+                }
+            } else if (command.startsWith("PRESS ")) {
+                if (!inputOverUdp) input.press(InputBuffer.keyBit(command.substring(6)));
+            } else if (command.startsWith("RELEASE ")) {
+                if (!inputOverUdp) input.release(InputBuffer.keyBit(command.substring(8)));
+            } else if (command.startsWith("ACK ")) {
+                try {
+                    ackedTick = Integer.parseInt(command.substring(4));
+                } catch (NumberFormatException e) {
+                    // 忽略格式錯誤的確認
+                }
+            } else if (command.equals("RESTART")) {
+                Room room = this.room;
+                if (room != null) room.execute(room::resetGame);
+            } else if (command.startsWith("COMPRESS ")) {
+                if (ENABLE_COMPRESSION && !compressionNegotiated && CompressionDictionary.matches(command)) {
+                    compressionNegotiated = true;
+                    byte[] frame = CompressionDictionary.acceptFrame();
+                    connection.sendThenCompress(frame, 0, frame.length, CompressionDictionary.newDeflater());
+                }
+            }
         }
-    }
 
-    static class HealthPack {
-        int x, y;
+        public void sendFrame(byte[] buf, int offset, int length) {
+            connection.send(buf, offset, length);
+        }
 
-        HealthPack(int x, int y) {
-            this.x = x;
-            this.y = y;
+        // 快照可以被較新的快照取代，不保證每一個都送達
+        public void sendSnapshot(byte[] buf, int offset, int length) {
+            connection.sendSnapshot(buf, offset, length);
         }
-    }
-    private static void broadcastGameState() {
-        GameState gameState = new GameState(new ArrayList<>(playerStates.values()));
-        gameState.blackBullets = new ArrayList<>(blackBullets); // 添加黑色子彈狀態
-        String json = gson.toJson(gameState);
-    
-        synchronized (clients) {
-            for (ClientHandler client : clients) {
-                client.sendMessage(json);
-            }
+
+        public int queueDepth() {
+            return connection.queueDepth();
         }
-    }
-    
-    private static void spawnBlackBullet() {
-        int[][] corners = {{0, 0}, {0, SCREEN_HEIGHT - 20}, {SCREEN_WIDTH - 20, 0}, {SCREEN_WIDTH - 20, SCREEN_HEIGHT - 20}};
-        Random rand = new Random();
-        int[] corner = corners[rand.nextInt(4)];
-        int dx = rand.nextBoolean() ? 1 : -1; // 隨機方向
-        int dy = rand.nextBoolean() ? 1 : -1;
-    
-        BlackBullet bullet = new BlackBullet(corner[0], corner[1], dx, dy);
-        blackBullets.add(bullet);
-    }
-    
-    static class BlackBullet {
-        int x, y;
-        double dx, dy; // 使用 double 表示更細緻的方向向量
-        int speed = 4; // 子彈速度
-    
-        BlackBullet(int x, int y, double dx, double dy) {
-            this.x = x;
-            this.y = y;
-            setDirection(dx, dy);
+
+        public long droppedSnapshots() {
+            return connection.droppedSnapshots();
         }
-    
-        // 設置方向並單位化
-        private void setDirection(double dx, double dy) {
-            double length = Math.sqrt(dx * dx + dy * dy);
-            this.dx = dx / length;
-            this.dy = dy / length;
+
+        public long bytesSent() {
+            return connection.bytesSent();
         }
-    
-        // 子彈移動
-        void move() {
-            x += dx * speed;
-            y += dy * speed;
-    
-            if (x <= 0 || x >= SCREEN_WIDTH - 20) {
-                dx = -dx;
-                randomizeDirection(); 
-            }
-            if (y <= 0 || y >= SCREEN_HEIGHT - 20) {
-                dy = -dy; 
-                randomizeDirection(); 
-            }
+
+        public long messagesSent() {
+            return connection.messagesSent();
         }
-    
-        // 隨機調整反彈角度
-        private void randomizeDirection() {
-            double angle = Math.random() * Math.PI / 4;
-            double newDx = dx * Math.cos(angle) - dy * Math.sin(angle);
-            double newDy = dx * Math.sin(angle) + dy * Math.cos(angle);
-    
-            // 隨機反轉方向
-            if (Math.random() > 0.5) newDx = -newDx;
-            if (Math.random() > 0.5) newDy = -newDy;
-    
-            setDirection(newDx, newDy); // 更新方向向量
+
+        void close() {
+            connection.close();
         }
     }
-    
-    
-}
\ No newline at end of file
+}
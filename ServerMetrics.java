@@ -0,0 +1,359 @@
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+// 伺服器的執行統計：模擬一步、碰撞與快照序列化的耗時分佈，各客戶端的流量，連線數與子彈數
+//
+// 工作執行緒各自以 Recorder 記錄，不需要同步；每秒把累積的結果合併進這裡一次（以 this 同步），
+// 所以讀取端（JMX、定期輸出）看到的是最多落後一秒的快照，遊戲迴圈不會因為讀取而被卡住。
+// 流量直接讀取各連線的計數器，斷線的連線在離開前併入累計值。
+// 壓縮的統計來自 NetServer：壓縮前後的位元組數，以及每省下 1 byte 花費的 CPU 時間。
+// 大廳的統計來自 Lobby：等候中的人數、進入大廳到分配房間的時間分佈、超過目標時間與被拒絕的次數。
+public class ServerMetrics implements ServerMetricsMBean {
+    static final long PUBLISH_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final int COLLISION_SAMPLE_INTERVAL = 16; // 每幾步量測一次碰撞耗時，避免每一步都多呼叫 nanoTime
+
+    private final List<Recorder> recorders = new CopyOnWriteArrayList<>();
+    private final Set<Server.ClientHandler> clients = ConcurrentHashMap.newKeySet();
+    private final LongAdder retiredBytes = new LongAdder(); // 已斷線的連線送出的資料
+    private final LongAdder retiredMessages = new LongAdder();
+    private final LongAdder retiredDropped = new LongAdder();
+    private RoomScheduler rooms;
+    private volatile NetServer netServer; // 設定之後才有壓縮的統計
+    private volatile Lobby lobby; // 設定之後才有大廳的統計
+
+    // 以 this 同步：total 從啟動（或 resetHistograms）起累計，interval 在每次定期輸出後清空
+    private final Histogram totalTick = new Histogram();
+    private final Histogram totalCollision = new Histogram();
+    private final Histogram totalSerialization = new Histogram();
+    private final Histogram intervalTick = new Histogram();
+    private final Histogram intervalCollision = new Histogram();
+    private final Histogram intervalSerialization = new Histogram();
+
+    // 只在定期輸出的執行緒上存取
+    private long lastDumpNanos = System.nanoTime();
+    private long lastDumpBytes;
+    private long lastDumpMessages;
+    private long lastDumpCompressionInput;
+    private long lastDumpCompressionOutput;
+    private long lastDumpCompressionNanos;
+
+    // 每個工作執行緒一份，只由該執行緒寫入（單位為奈秒）
+    static class Recorder {
+        final Histogram tick = new Histogram();
+        final Histogram collision = new Histogram();
+        final Histogram serialization = new Histogram();
+        volatile int liveProjectiles;
+        private long lastPublish = System.nanoTime();
+    }
+
+    Recorder newRecorder() {
+        Recorder recorder = new Recorder();
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    // 在工作執行緒上呼叫，距離上次合併超過一秒才會真的合併
+    void maybePublish(Recorder recorder, long now) {
+        if (now - recorder.lastPublish < PUBLISH_INTERVAL_NANOS) return;
+        recorder.lastPublish = now;
+        synchronized (this) {
+            totalTick.add(recorder.tick);
+            totalCollision.add(recorder.collision);
+            totalSerialization.add(recorder.serialization);
+            intervalTick.add(recorder.tick);
+            intervalCollision.add(recorder.collision);
+            intervalSerialization.add(recorder.serialization);
+        }
+        recorder.tick.reset();
+        recorder.collision.reset();
+        recorder.serialization.reset();
+    }
+
+    void clientConnected(Server.ClientHandler client) {
+        clients.add(client);
+    }
+
+    void clientDisconnected(Server.ClientHandler client) {
+        if (clients.remove(client)) {
+            retiredBytes.add(client.bytesSent());
+            retiredMessages.add(client.messagesSent());
+            retiredDropped.add(client.droppedSnapshots());
+        }
+    }
+
+    // 註冊 JMX 並每 dumpSeconds 秒輸出一行統計
+    void start(RoomScheduler rooms, ScheduledExecutorService scheduler, int dumpSeconds) {
+        this.rooms = rooms;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("nuk.game:type=ServerMetrics"));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        scheduler.scheduleAtFixedRate(this::dump, dumpSeconds, dumpSeconds, TimeUnit.SECONDS);
+    }
+
+    void setNetServer(NetServer netServer) {
+        this.netServer = netServer;
+    }
+
+    void setLobby(Lobby lobby) {
+        this.lobby = lobby;
+    }
+
+    // 定期輸出：耗時為這段期間的分佈，流量為這段期間的平均
+    private void dump() {
+        long tickCount, tickP50, tickP99, tickMax, collisionP99, serializationP99;
+        synchronized (this) {
+            tickCount = intervalTick.count();
+            tickP50 = intervalTick.percentile(50);
+            tickP99 = intervalTick.percentile(99);
+            tickMax = intervalTick.max();
+            collisionP99 = intervalCollision.percentile(99);
+            serializationP99 = intervalSerialization.percentile(99);
+            intervalTick.reset();
+            intervalCollision.reset();
+            intervalSerialization.reset();
+        }
+        long now = System.nanoTime();
+        long bytes = getBytesSent();
+        long messages = getMessagesSent();
+        double seconds = (now - lastDumpNanos) / 1e9;
+        double bytesPerSecond = (bytes - lastDumpBytes) / seconds;
+        double messagesPerSecond = (messages - lastDumpMessages) / seconds;
+        lastDumpNanos = now;
+        lastDumpBytes = bytes;
+        lastDumpMessages = messages;
+        long compressionInput = getCompressionInputBytes();
+        long compressionOutput = getCompressionOutputBytes();
+        long compressionNanos = getCompressionNanos();
+        long rawBytes = compressionInput - lastDumpCompressionInput;
+        long savedBytes = rawBytes - (compressionOutput - lastDumpCompressionOutput);
+        long spentNanos = compressionNanos - lastDumpCompressionNanos;
+        lastDumpCompressionInput = compressionInput;
+        lastDumpCompressionOutput = compressionOutput;
+        lastDumpCompressionNanos = compressionNanos;
+        // 訊息很小時（例如快照改走 UDP，TCP 上只剩零星的短訊息），每次 flush 的額外位元組可能讓資料變大
+        String compression = rawBytes == 0 ? "" : String.format("｜壓縮 %.1f KB → %.1f KB（省 %.0f%%）",
+                rawBytes / 1024.0, (rawBytes - savedBytes) / 1024.0, 100.0 * savedBytes / rawBytes)
+                + (savedBytes > 0 ? String.format("，每省 1 byte %.1f ns", nanosPerSavedByte(spentNanos, savedBytes)) : "");
+
+        System.out.println(String.format(
+                "[統計] 連線 %d，房間 %d，子彈 %d｜一步 %d 次 p50/p99/max = %d/%d/%d µs｜碰撞 p99 %d µs｜序列化 p99 %d µs"
+                        + "｜送出 %.1f KB/s、%.0f 則/s｜丟棄快照 %d，丟棄步數 %d，略過事件 %d",
+                getConnectedClients(), getRooms(), getLiveProjectiles(),
+                tickCount, micros(tickP50), micros(tickP99), micros(tickMax),
+                micros(collisionP99), micros(serializationP99),
+                bytesPerSecond / 1024, messagesPerSecond,
+                getDroppedSnapshots(), getDroppedSteps(), getSuppressedEvents()) + compression + lobbySummary());
+    }
+
+    // 這段期間的大廳等候時間
+    private String lobbySummary() {
+        Lobby lobby = this.lobby;
+        if (lobby == null) return "";
+        Histogram waits = new Histogram();
+        lobby.harvestWait(waits);
+        if (waits.count() == 0 && lobby.queued() == 0) return "";
+        return String.format("｜大廳 等候 %d 人，分配 %d 人 p50/p99/max = %.1f/%.1f/%.1f ms，超過 %d ms 共 %d 次，拒絕 %d",
+                lobby.queued(), waits.count(), waits.percentile(50) / 1e6, waits.percentile(99) / 1e6, waits.max() / 1e6,
+                lobby.targetMillis(), lobby.overTarget(), lobby.rejected());
+    }
+
+    // 沒有省下任何位元組時回傳 -1
+    private static double nanosPerSavedByte(long nanos, long savedBytes) {
+        return savedBytes > 0 ? (double) nanos / savedBytes : -1;
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    @Override
+    public int getConnectedClients() {
+        return clients.size();
+    }
+
+    @Override
+    public int getRooms() {
+        return rooms == null ? 0 : rooms.roomCount();
+    }
+
+    @Override
+    public int getLiveProjectiles() {
+        int total = 0;
+        for (Recorder recorder : recorders) {
+            total += recorder.liveProjectiles;
+        }
+        return total;
+    }
+
+    @Override
+    public synchronized long getTickCount() {
+        return totalTick.count();
+    }
+
+    @Override
+    public synchronized double getTickMeanMicros() {
+        return totalTick.mean() / 1000.0;
+    }
+
+    @Override
+    public synchronized long getTickP50Micros() {
+        return micros(totalTick.percentile(50));
+    }
+
+    @Override
+    public synchronized long getTickP99Micros() {
+        return micros(totalTick.percentile(99));
+    }
+
+    @Override
+    public synchronized long getTickP999Micros() {
+        return micros(totalTick.percentile(99.9));
+    }
+
+    @Override
+    public synchronized long getTickMaxMicros() {
+        return micros(totalTick.max());
+    }
+
+    @Override
+    public synchronized long getCollisionP99Micros() {
+        return micros(totalCollision.percentile(99));
+    }
+
+    @Override
+    public synchronized long getCollisionMaxMicros() {
+        return micros(totalCollision.max());
+    }
+
+    @Override
+    public synchronized long getSerializationP99Micros() {
+        return micros(totalSerialization.percentile(99));
+    }
+
+    @Override
+    public synchronized long getSerializationMaxMicros() {
+        return micros(totalSerialization.max());
+    }
+
+    @Override
+    public long getBytesSent() {
+        long total = retiredBytes.sum();
+        for (Server.ClientHandler client : clients) {
+            total += client.bytesSent();
+        }
+        return total;
+    }
+
+    @Override
+    public long getMessagesSent() {
+        long total = retiredMessages.sum();
+        for (Server.ClientHandler client : clients) {
+            total += client.messagesSent();
+        }
+        return total;
+    }
+
+    @Override
+    public long getDroppedSnapshots() {
+        long total = retiredDropped.sum();
+        for (Server.ClientHandler client : clients) {
+            total += client.droppedSnapshots();
+        }
+        return total;
+    }
+
+    @Override
+    public long getDroppedSteps() {
+        return rooms == null ? 0 : rooms.droppedSteps();
+    }
+
+    @Override
+    public long getSuppressedEvents() {
+        return EventLog.suppressed();
+    }
+
+    @Override
+    public long getCompressionInputBytes() {
+        NetServer netServer = this.netServer;
+        return netServer == null ? 0 : netServer.compressionInput();
+    }
+
+    @Override
+    public long getCompressionOutputBytes() {
+        NetServer netServer = this.netServer;
+        return netServer == null ? 0 : netServer.compressionOutput();
+    }
+
+    @Override
+    public long getCompressionNanos() {
+        NetServer netServer = this.netServer;
+        return netServer == null ? 0 : netServer.compressionNanos();
+    }
+
+    @Override
+    public double getCompressionNanosPerSavedByte() {
+        return nanosPerSavedByte(getCompressionNanos(), getCompressionInputBytes() - getCompressionOutputBytes());
+    }
+
+    @Override
+    public int getLobbyQueued() {
+        Lobby lobby = this.lobby;
+        return lobby == null ? 0 : lobby.queued();
+    }
+
+    @Override
+    public long getLobbyWaitP99Micros() {
+        return micros(lobbyWaits().percentile(99));
+    }
+
+    @Override
+    public long getLobbyWaitMaxMicros() {
+        return micros(lobbyWaits().max());
+    }
+
+    @Override
+    public long getLobbyOverTarget() {
+        Lobby lobby = this.lobby;
+        return lobby == null ? 0 : lobby.overTarget();
+    }
+
+    @Override
+    public long getLobbyRejected() {
+        Lobby lobby = this.lobby;
+        return lobby == null ? 0 : lobby.rejected();
+    }
+
+    private Histogram lobbyWaits() {
+        Histogram waits = new Histogram();
+        Lobby lobby = this.lobby;
+        if (lobby != null) lobby.totalWait(waits);
+        return waits;
+    }
+
+    @Override
+    public String[] getClients() {
+        return clients.stream().map(client -> {
+            Room room = client.room;
+            return "房間 " + (room != null ? room.id : "-") + " 玩家 " + client.userId
+                    + "：送出 " + client.bytesSent() + " bytes / " + client.messagesSent() + " 則"
+                    + "，佇列 " + client.queueDepth() + "，丟棄快照 " + client.droppedSnapshots();
+        }).toArray(String[]::new);
+    }
+
+    @Override
+    public synchronized void resetHistograms() {
+        totalTick.reset();
+        totalCollision.reset();
+        totalSerialization.reset();
+    }
+}
@@ -0,0 +1,65 @@
+// ServerMetrics 透過 JMX 公開的屬性（jconsole / VisualVM 的 nuk.game:type=ServerMetrics）
+//
+// 時間類的數值單位為微秒，百分位數從伺服器啟動或上次 resetHistograms 起累計
+public interface ServerMetricsMBean {
+    int getConnectedClients();
+
+    int getRooms();
+
+    int getLiveProjectiles();
+
+    long getTickCount();
+
+    double getTickMeanMicros();
+
+    long getTickP50Micros();
+
+    long getTickP99Micros();
+
+    long getTickP999Micros();
+
+    long getTickMaxMicros();
+
+    long getCollisionP99Micros();
+
+    long getCollisionMaxMicros();
+
+    long getSerializationP99Micros();
+
+    long getSerializationMaxMicros();
+
+    long getBytesSent();
+
+    long getMessagesSent();
+
+    long getDroppedSnapshots();
+
+    long getDroppedSteps();
+
+    long getSuppressedEvents();
+
+    // 開啟壓縮的連線：壓縮前、後的位元組數，壓縮花費的時間（奈秒），以及每省下 1 byte 的平均時間（-1 表示還沒有省下）
+    long getCompressionInputBytes();
+
+    long getCompressionOutputBytes();
+
+    long getCompressionNanos();
+
+    double getCompressionNanosPerSavedByte();
+
+    // 大廳：等候中的人數，進入大廳到分配房間的時間，超過目標時間與佇列已滿被拒絕的次數
+    int getLobbyQueued();
+
+    long getLobbyWaitP99Micros();
+
+    long getLobbyWaitMaxMicros();
+
+    long getLobbyOverTarget();
+
+    long getLobbyRejected();
+
+    // 每個連線中的客戶端一行：玩家、房間、已送出的位元組與訊息數、佇列長度、丟棄的快照
+    String[] getClients();
+
+    void resetHistograms();
+}
@@ -0,0 +1,484 @@
+import java.awt.Color;
+import java.io.IOException;
+import java.util.Arrays;
+
+// 一場對戰的模擬核心：不做 I/O、不讀時鐘、不使用共用的亂數
+//
+// 狀態只由 step 推進。給定相同的種子與相同順序的輸入（每一步每位玩家的按鍵遮罩），
+// 每一步的狀態與事件都完全相同：計時以模擬時間計算，亂數來自這場對戰自己的 MatchRandom，
+// 子彈以定點數移動。送出訊息、輸出紀錄等副作用由呼叫端依照 Events 處理，
+// 所以可以不經過網路、大量平行地執行（基準測試、模糊測試），也是重播與回溯的基礎。
+//
+// 延遲補償：玩家按下射擊時看到的是對手稍早的位置（快照傳過來的時間加上客戶端的內插延遲），
+// 所以每顆玩家子彈帶有發射者當時的回溯步數，命中判定改用對手在那麼多步以前的外框（HitboxHistory），
+// 以發射者畫面上的情況為準。回溯步數由房間依 RTT 估計後以 setRewind 設定，屬於模擬的輸入，也會寫入對戰紀錄。
+//
+// 延時的事件（補包生成與重生）由這場對戰自己的 TimingWheel 以步數計時，在 step 中觸發，不經過其他執行緒。
+public class Simulation {
+    public static final int TICK_RATE = GameProtocol.STEP_MILLIS; // 每一步模擬代表的時間（毫秒），移動速度與冷卻時間都以此為單位
+
+    static final int MAX_PLAYERS = 2; // 限制遊戲人數為兩人
+    static final int PLAYER_HEALTH = 100; // 初始血量
+    static final int HEALTH_PACK_RESPAWN_TIME = 10; // 補包重生時間（秒）
+    static final int HEALTH_PACK_HEAL_AMOUNT = 10; // 補包恢復血量
+    static final int HEALTH_PACK_FIRST_SPAWN_TIME = 5; // 兩位玩家到齊後第一次生成補包的時間（秒）
+
+    static final int SCREEN_WIDTH = GameProtocol.ARENA_WIDTH;
+    static final int SCREEN_HEIGHT = GameProtocol.ARENA_HEIGHT;
+
+    private static final int MAX_PROJECTILES = 256; // 房間內子彈總數上限
+    private static final int MAX_BULLETS_PER_PLAYER = 10;
+    private static final int PLAYER_SIZE = GameProtocol.PLAYER_SIZE;
+    private static final int HEALTH_PACK_SIZE = 40;
+    private static final int GRID_CELL_SIZE = 80; // 空間索引的格子大小，約為玩家外框的兩倍
+    private static final int TIMER_HEALTH_PACK = 1; // 生成補包
+
+    static final int MAX_REWIND_STEPS = 500 / TICK_RATE; // 延遲補償最多回溯的步數，也是位置歷史的長度
+
+    final PlayerState[] players = new PlayerState[MAX_PLAYERS];
+    final ProjectileStore projectiles = new ProjectileStore(MAX_PROJECTILES);
+    private final SpatialGrid playerGrid = new SpatialGrid(SCREEN_WIDTH, SCREEN_HEIGHT, GRID_CELL_SIZE);
+    private final int[] gridPlayer = new int[MAX_PLAYERS]; // 空間索引的實體編號 -> 玩家編號
+    private final int[] candidates = new int[MAX_PLAYERS];
+    private final SpatialGrid.Hits hits = new SpatialGrid.Hits();
+    private final HitboxHistory hitboxes = new HitboxHistory(MAX_REWIND_STEPS + 1, MAX_PLAYERS, PLAYER_SIZE);
+    final int[] rewind = new int[MAX_PLAYERS]; // 每位玩家目前的回溯步數，新發射的子彈沿用
+    private final MatchRandom random;
+    private long seed;
+    HealthPack healthPack;
+    int time = 0; // 模擬時間（毫秒），每一步增加 TICK_RATE
+    private int nextEntityId = 1; // 子彈與黑色子彈的唯一編號
+    private boolean started = false; // 玩家到齊後才開始模擬，之前只推進時間
+    private final TimingWheel timers = new TimingWheel(8);
+    private final TimingWheel.Due due = new TimingWheel.Due();
+    private int healthPackTimer = -1; // 下一次生成補包的計時器，-1 表示沒有排定
+
+    // 只用於統計，不影響模擬結果
+    boolean measureCollision = false;
+    long collisionNanos = 0; // 上一步碰撞檢查的耗時，沒有量測時為 0
+
+    public Simulation(long seed) {
+        this.seed = seed;
+        this.random = new MatchRandom(seed);
+    }
+
+    public long seed() {
+        return seed;
+    }
+
+    // 清空所有狀態，以新的種子開始下一場
+    void reset(long seed) {
+        this.seed = seed;
+        random.setSeed(seed);
+        Arrays.fill(players, null);
+        projectiles.clear();
+        healthPack = null;
+        time = 0;
+        nextEntityId = 1;
+        started = false;
+        timers.reset(0);
+        healthPackTimer = -1;
+        hitboxes.clear();
+        Arrays.fill(rewind, 0);
+    }
+
+    // 已經執行過的模擬步數
+    int steps() {
+        return time / TICK_RATE;
+    }
+
+    PlayerState addPlayer(int userId) {
+        return players[userId] = createPlayer(userId);
+    }
+
+    void removePlayer(int userId) {
+        players[userId] = null;
+        rewind[userId] = 0;
+        projectiles.removeOwnedBy(userId); // 玩家離開時一併移除該玩家的子彈
+    }
+
+    // 設定玩家之後發射的子彈要回溯的步數（限制在 0 到 MAX_REWIND_STEPS），有改變時回傳 true
+    boolean setRewind(int userId, int steps) {
+        steps = Math.max(0, Math.min(steps, MAX_REWIND_STEPS));
+        if (rewind[userId] == steps) return false;
+        rewind[userId] = steps;
+        return true;
+    }
+
+    // 玩家到齊，開始對戰並排定第一次生成補包
+    void start() {
+        started = true;
+        scheduleHealthPack(HEALTH_PACK_FIRST_SPAWN_TIME);
+    }
+
+    // 重新開始這一局，玩家回到初始位置與血量，補包重新計時
+    void restart() {
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            if (players[i] != null) {
+                players[i] = createPlayer(i);
+            }
+        }
+        projectiles.clear();
+        healthPack = null;
+        hitboxes.clear(); // 玩家回到初始位置，之前的位置不再回溯
+        if (started) {
+            scheduleHealthPack(HEALTH_PACK_FIRST_SPAWN_TIME);
+        }
+    }
+
+    // 取消已排定的補包，改在 seconds 秒後生成
+    private void scheduleHealthPack(int seconds) {
+        timers.cancel(healthPackTimer);
+        healthPackTimer = timers.schedule(seconds * 1000 / TICK_RATE, TIMER_HEALTH_PACK, 0);
+    }
+
+    private PlayerState createPlayer(int userId) {
+        if (userId == 0) { // 玩家 1
+            return new PlayerState(userId, 50, SCREEN_HEIGHT / 2, Color.YELLOW.getRGB(), Color.BLUE.getRGB(), PLAYER_HEALTH);
+        } else { // 玩家 2
+            return new PlayerState(userId, SCREEN_WIDTH - 90, SCREEN_HEIGHT / 2, Color.GREEN.getRGB(), Color.RED.getRGB(), PLAYER_HEALTH);
+        }
+    }
+
+    // 執行一步模擬。inputs[userId] 為這一步的按鍵遮罩，events 會先清空再填入這一步發生的事件。
+    // 回傳 false 表示遊戲結束
+    boolean step(int[] inputs, Events events) {
+        events.clear();
+        collisionNanos = 0;
+        time += TICK_RATE;
+        timers.advance(steps(), due);
+        if (!started) return true;
+
+        for (int k = 0; k < due.count; k++) {
+            if (due.kind[k] == TIMER_HEALTH_PACK) {
+                healthPackTimer = -1;
+                spawnHealthPack(events);
+            }
+        }
+
+        ProjectileStore p = projectiles;
+        p.moveBlackBullets(random);
+        long collisionStart = collisionClock();
+        rebuildPlayerGrid();
+        // 檢測黑色子彈是否擊中玩家
+        collectProjectileHits(ProjectileStore.KIND_BLACK);
+        collisionNanos = collisionClock() - collisionStart;
+        for (int k = 0; k < hits.count; k++) {
+            PlayerState player = players[hits.target[k]];
+            player.health -= 20;
+            p.remove(hits.source[k]); // 子彈消失
+            events.add(Events.BLACK_HIT, player.userId, player.health);
+
+            if (player.health <= 0) {
+                events.add(Events.GAME_OVER, player.userId, 0); // 沿用原本的行為：送出被擊中的玩家編號
+                return false;
+            }
+        }
+
+        for (PlayerState player : players) {
+            if (player == null) continue;
+            int keys = inputs[player.userId];
+
+            // 處理移動邏輯（與客戶端預測共用同一套規則）
+            player.x = GameProtocol.moveX(player.x, keys, player.speed);
+            player.y = GameProtocol.moveY(player.y, keys, player.speed);
+
+            // 處理射擊邏輯
+            if ((keys & InputBuffer.KEY_FIRE) != 0) {
+                if (player.fireCooldown == 0) {
+                    int direction = player.userId == 0 ? 1 : -1; // 玩家 1 向右，玩家 2 向左
+                    int b;
+                    if (player.bulletCount < MAX_BULLETS_PER_PLAYER
+                            && (b = p.addBullet(nextEntityId, player.userId, player.x + 20, player.y + 20, direction, player.bulletColor)) >= 0) {
+                        p.rewind[b] = rewind[player.userId];
+                        nextEntityId++;
+                        player.bulletCount++;
+                    }
+                    player.fireCooldown = 100;
+                }
+            }
+
+            // 減少射擊冷卻時間
+            if (player.fireCooldown > 0) {
+                player.fireCooldown -= TICK_RATE;
+            }
+        }
+
+        // 更新子彈並檢測碰撞（玩家已移動，記錄位置並重建索引）
+        p.moveBullets();
+        hitboxes.record(players);
+        collisionStart = collisionClock();
+        rebuildPlayerGrid();
+        collectProjectileHits(ProjectileStore.KIND_BULLET);
+        collisionNanos += collisionClock() - collisionStart;
+        for (int k = 0; k < hits.count; k++) {
+            int i = hits.source[k];
+            int ownerId = p.owner[i];
+            PlayerState target = players[hits.target[k]];
+            target.health -= 10; // 擊中時扣血
+            p.remove(i); // 移除子彈
+            if (players[ownerId] != null) players[ownerId].bulletCount--;
+            events.add(Events.HIT, target.userId, target.health);
+            if (target.health <= 0) {
+                events.add(Events.GAME_OVER, ownerId, 0); // 勝利者
+                return false;
+            }
+        }
+        // 檢測子彈是否出界
+        for (int i = p.count - 1; i >= 0; i--) {
+            if (p.kind[i] == ProjectileStore.KIND_BULLET && (p.x[i] > SCREEN_WIDTH || p.x[i] < 0)) {
+                PlayerState owner = players[p.owner[i]];
+                p.remove(i);
+                if (owner != null) owner.bulletCount--;
+            }
+        }
+
+        // 檢測玩家是否碰到補包
+        if (healthPack != null) {
+            int n = playerGrid.queryOverlap(healthPack.x, healthPack.y,
+                    healthPack.x + HEALTH_PACK_SIZE, healthPack.y + HEALTH_PACK_SIZE, candidates);
+            if (n > 0) {
+                PlayerState player = players[gridPlayer[candidates[0]]];
+                player.health = Math.min(PLAYER_HEALTH, player.health + HEALTH_PACK_HEAL_AMOUNT);
+                events.add(Events.PICKUP, player.userId, player.health);
+                healthPack = null; // 移除補包
+                events.add(Events.HEALTH_PACK, -1, -1);
+                spawnBlackBullet(); // 生成黑色子彈
+                scheduleHealthPack(HEALTH_PACK_RESPAWN_TIME);
+            }
+        }
+        return true;
+    }
+
+    // 寫出完整狀態（包含亂數的狀態），readState 還原後繼續模擬的結果與原本完全相同
+    void writeState(GameProtocol.Writer w) {
+        writeLong(w, seed);
+        writeLong(w, random.state());
+        w.writeVarInt(time);
+        w.writeVarInt(nextEntityId);
+        w.writeByte(started ? 1 : 0);
+        timers.write(w);
+        if (healthPack != null) {
+            w.writeByte(1);
+            GameProtocol.writePoint(w, healthPack.x, healthPack.y);
+        } else {
+            w.writeByte(0);
+        }
+        for (PlayerState player : players) {
+            if (player == null) {
+                w.writeByte(0);
+                continue;
+            }
+            w.writeByte(1);
+            GameProtocol.writePoint(w, player.x, player.y);
+            w.writeVarInt(player.speed);
+            w.writeSignedVarInt(player.fireCooldown);
+            w.writeSignedVarInt(player.health);
+            w.writeVarInt(player.bulletCount);
+            w.writeInt(player.playerColor);
+            w.writeInt(player.bulletColor);
+        }
+        for (int steps : rewind) {
+            w.writeVarInt(steps);
+        }
+        hitboxes.write(w);
+        ProjectileStore p = projectiles;
+        w.writeVarInt(p.count);
+        for (int i = 0; i < p.count; i++) {
+            w.writeVarInt(p.id[i]);
+            w.writeByte(p.kind[i]);
+            w.writeSignedVarInt(p.owner[i]);
+            GameProtocol.writePoint(w, p.x[i], p.y[i]);
+            w.writeSignedVarInt(p.vx[i]);
+            w.writeSignedVarInt(p.vy[i]);
+            w.writeByte(p.fracX[i]);
+            w.writeByte(p.fracY[i]);
+            w.writeInt(p.color[i]);
+            w.writeVarInt(p.rewind[i]);
+        }
+    }
+
+    void readState(GameProtocol.Reader r) throws IOException {
+        seed = readLong(r);
+        random.setState(readLong(r));
+        time = r.readVarInt();
+        nextEntityId = r.readVarInt();
+        started = r.readByte() != 0;
+        timers.read(r);
+        healthPackTimer = timers.find(TIMER_HEALTH_PACK, 0);
+        healthPack = r.readByte() != 0 ? new HealthPack(r.readSignedVarInt(), r.readSignedVarInt()) : null;
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            if (r.readByte() == 0) {
+                players[i] = null;
+                continue;
+            }
+            PlayerState player = createPlayer(i);
+            player.x = r.readSignedVarInt();
+            player.y = r.readSignedVarInt();
+            player.speed = r.readVarInt();
+            player.fireCooldown = r.readSignedVarInt();
+            player.health = r.readSignedVarInt();
+            player.bulletCount = r.readVarInt();
+            player.playerColor = r.readInt();
+            player.bulletColor = r.readInt();
+            players[i] = player;
+        }
+        for (int i = 0; i < MAX_PLAYERS; i++) {
+            rewind[i] = r.readVarInt();
+        }
+        hitboxes.read(r);
+        ProjectileStore p = projectiles;
+        int count = r.readVarInt();
+        if (count > p.capacity) throw new IOException("子彈數量超過上限：" + count);
+        p.count = count;
+        for (int i = 0; i < count; i++) {
+            p.id[i] = r.readVarInt();
+            p.kind[i] = r.readByte();
+            p.owner[i] = r.readSignedVarInt();
+            p.x[i] = r.readSignedVarInt();
+            p.y[i] = r.readSignedVarInt();
+            p.vx[i] = r.readSignedVarInt();
+            p.vy[i] = r.readSignedVarInt();
+            p.fracX[i] = r.readByte();
+            p.fracY[i] = r.readByte();
+            p.color[i] = r.readInt();
+            p.rewind[i] = r.readVarInt();
+        }
+    }
+
+    static void writeLong(GameProtocol.Writer w, long v) {
+        w.writeInt((int) (v >>> 32));
+        w.writeInt((int) v);
+    }
+
+    static long readLong(GameProtocol.Reader r) throws IOException {
+        return (long) r.readInt() << 32 | (r.readInt() & 0xFFFFFFFFL);
+    }
+
+    private long collisionClock() {
+        return measureCollision ? System.nanoTime() : 0;
+    }
+
+    private void spawnHealthPack(Events events) {
+        // 只有當玩家數量達到最大值時，才生成補包
+        for (PlayerState player : players) {
+            if (player == null) return;
+        }
+        int padding = 40; // 確保補包完全在畫面內
+        int x = random.nextInt(SCREEN_WIDTH - padding * 2) + padding;
+        int y = random.nextInt(SCREEN_HEIGHT - padding * 2) + padding;
+        healthPack = new HealthPack(x, y);
+        events.add(Events.HEALTH_PACK, x, y);
+    }
+
+    private void spawnBlackBullet() {
+        int corner = random.nextInt(4);
+        int x = (corner & 2) == 0 ? 0 : SCREEN_WIDTH - 20;
+        int y = (corner & 1) == 0 ? 0 : SCREEN_HEIGHT - 20;
+        int dx = random.nextBoolean() ? 1 : -1; // 隨機方向
+        int dy = random.nextBoolean() ? 1 : -1;
+
+        if (projectiles.addBlackBullet(nextEntityId, x, y, dx, dy) >= 0) {
+            nextEntityId++;
+        }
+    }
+
+    // 以玩家目前位置重建空間索引，依玩家編號順序加入
+    private void rebuildPlayerGrid() {
+        playerGrid.clear();
+        for (PlayerState player : players) {
+            if (player == null) continue;
+            int e = playerGrid.insert(player.x, player.y, player.x + PLAYER_SIZE, player.y + PLAYER_SIZE);
+            gridPlayer[e] = player.userId;
+        }
+        playerGrid.build();
+    }
+
+    // 找出指定種類的子彈擊中的玩家，每顆子彈最多擊中一位（編號最小者），玩家子彈不會擊中自己。
+    // 帶有回溯步數的玩家子彈改與對手當時的外框比對（位置歷史已包含這一步）。
+    // 結果依子彈位置由大到小排列，依序移除不會影響尚未處理的編號
+    private void collectProjectileHits(int kind) {
+        hits.clear();
+        ProjectileStore p = projectiles;
+        for (int i = p.count - 1; i >= 0; i--) {
+            if (p.kind[i] != kind) continue;
+            if (kind == ProjectileStore.KIND_BULLET && p.rewind[i] > 0) {
+                int slot = hitboxes.slot(p.rewind[i]);
+                for (int target = 0; target < MAX_PLAYERS; target++) {
+                    if (target == p.owner[i] || players[target] == null) continue;
+                    if (hitboxes.contains(slot, target, p.x[i], p.y[i])) {
+                        hits.add(i, target);
+                        break;
+                    }
+                }
+                continue;
+            }
+            int n = playerGrid.queryPoint(p.x[i], p.y[i], candidates);
+            for (int c = 0; c < n; c++) {
+                int target = gridPlayer[candidates[c]];
+                if (kind == ProjectileStore.KIND_BULLET && target == p.owner[i]) continue; // 不能擊中自己
+                hits.add(i, target);
+                break;
+            }
+        }
+    }
+
+    // 一步模擬產生的事件，依發生順序排列。陣列會重複使用，只在容量不足時擴充
+    static class Events {
+        static final int BLACK_HIT = 1; // a：被擊中的玩家，b：剩餘血量
+        static final int HIT = 2; // a：被擊中的玩家，b：剩餘血量
+        static final int PICKUP = 3; // a：撿到補包的玩家，b：恢復後的血量
+        static final int HEALTH_PACK = 4; // 補包出現（a、b 為位置）或被撿走（a 為 -1）
+        static final int GAME_OVER = 5; // a：結果（玩家編號）
+
+        int count;
+        int[] type = new int[8];
+        int[] a = new int[8];
+        int[] b = new int[8];
+
+        void clear() {
+            count = 0;
+        }
+
+        void add(int type, int a, int b) {
+            if (count == this.type.length) {
+                this.type = Arrays.copyOf(this.type, count * 2);
+                this.a = Arrays.copyOf(this.a, count * 2);
+                this.b = Arrays.copyOf(this.b, count * 2);
+            }
+            this.type[count] = type;
+            this.a[count] = a;
+            this.b[count] = b;
+            count++;
+        }
+    }
+
+    static class PlayerState {
+        int userId;
+        int x, y;
+        int speed = GameProtocol.PLAYER_SPEED;
+        int fireCooldown = 0;
+        int health; // 玩家血量
+        int bulletCount = 0; // 場上屬於這位玩家的子彈數
+        int playerColor;
+        int bulletColor;
+
+        PlayerState(int userId, int x, int y, int playerColor, int bulletColor, int health) {
+            this.userId = userId;
+            this.x = x;
+            this.y = y;
+            this.playerColor = playerColor;
+            this.bulletColor = bulletColor;
+            this.health = health;
+        }
+    }
+
+    static class HealthPack {
+        int x, y;
+
+        HealthPack(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+}
@@ -0,0 +1,479 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+// 某一個 tick 的世界狀態，伺服器與客戶端共用
+//
+// 所有實體都以 id 遞增排序存放在平行陣列中，方便以合併（merge）的方式比對兩個快照產生差異。
+// 物件可重複使用，伺服器與客戶端各自保留一個環狀歷史緩衝區，不需要每個 tick 重新配置。
+//
+// 完整快照：tick, time, 玩家區段, 子彈區段, 黑色子彈區段（每個區段為 數量 + 每個實體的完整資料）
+// 差異快照：tick, baseTick, time 與基準的差值, 玩家區段, 子彈區段, 黑色子彈區段
+//   每個區段為 變更數量 + {id 間距, flags, 有變動的欄位...}
+//   新增的實體送出完整資料，移除的實體只送 id，其餘欄位以與基準快照的差值（zigzag）編碼
+// 三個區段（不含 tick 等標頭）也可以單獨寫入與讀取，InterestGrid 以此編碼每一格的片段
+public final class Snapshot {
+    static final int FLAG_REMOVED = 1;
+    static final int FLAG_NEW = 2;
+    static final int FLAG_X = 4;
+    static final int FLAG_Y = 8;
+    static final int FLAG_HEALTH = 16;
+    static final int FLAG_COLOR = 32;
+
+    int tick;
+    int time; // 伺服器的模擬時間（毫秒），客戶端依此在快照之間內插
+
+    int playerCount;
+    int[] playerId = new int[4];
+    int[] playerX = new int[4];
+    int[] playerY = new int[4];
+    int[] playerHealth = new int[4];
+    int[] playerColor = new int[4];
+    int[] bulletColor = new int[4];
+
+    int bulletCount;
+    int[] bulletId = new int[32];
+    int[] bulletOwner = new int[32];
+    int[] bulletX = new int[32];
+    int[] bulletY = new int[32];
+
+    int blackCount;
+    int[] blackId = new int[16];
+    int[] blackX = new int[16];
+    int[] blackY = new int[16];
+
+    public void clear(int tick) {
+        this.tick = tick;
+        playerCount = 0;
+        bulletCount = 0;
+        blackCount = 0;
+    }
+
+    public void addPlayer(int id, int x, int y, int health, int color, int bColor) {
+        if (playerCount == playerId.length) {
+            int n = playerCount * 2;
+            playerId = Arrays.copyOf(playerId, n);
+            playerX = Arrays.copyOf(playerX, n);
+            playerY = Arrays.copyOf(playerY, n);
+            playerHealth = Arrays.copyOf(playerHealth, n);
+            playerColor = Arrays.copyOf(playerColor, n);
+            bulletColor = Arrays.copyOf(bulletColor, n);
+        }
+        int i = playerCount++;
+        playerId[i] = id;
+        playerX[i] = x;
+        playerY[i] = y;
+        playerHealth[i] = health;
+        playerColor[i] = color;
+        bulletColor[i] = bColor;
+    }
+
+    public void addBullet(int id, int owner, int x, int y) {
+        if (bulletCount == bulletId.length) {
+            int n = bulletCount * 2;
+            bulletId = Arrays.copyOf(bulletId, n);
+            bulletOwner = Arrays.copyOf(bulletOwner, n);
+            bulletX = Arrays.copyOf(bulletX, n);
+            bulletY = Arrays.copyOf(bulletY, n);
+        }
+        int i = bulletCount++;
+        bulletId[i] = id;
+        bulletOwner[i] = owner;
+        bulletX[i] = x;
+        bulletY[i] = y;
+    }
+
+    public void addBlackBullet(int id, int x, int y) {
+        if (blackCount == blackId.length) {
+            int n = blackCount * 2;
+            blackId = Arrays.copyOf(blackId, n);
+            blackX = Arrays.copyOf(blackX, n);
+            blackY = Arrays.copyOf(blackY, n);
+        }
+        int i = blackCount++;
+        blackId[i] = id;
+        blackX[i] = x;
+        blackY[i] = y;
+    }
+
+    // 依 id 排序（插入排序，資料量小且通常已接近排序）
+    public void sortById() {
+        for (int i = 1; i < playerCount; i++) {
+            for (int j = i; j > 0 && playerId[j - 1] > playerId[j]; j--) {
+                swap(playerId, j); swap(playerX, j); swap(playerY, j);
+                swap(playerHealth, j); swap(playerColor, j); swap(bulletColor, j);
+            }
+        }
+        for (int i = 1; i < bulletCount; i++) {
+            for (int j = i; j > 0 && bulletId[j - 1] > bulletId[j]; j--) {
+                swap(bulletId, j); swap(bulletOwner, j); swap(bulletX, j); swap(bulletY, j);
+            }
+        }
+        for (int i = 1; i < blackCount; i++) {
+            for (int j = i; j > 0 && blackId[j - 1] > blackId[j]; j--) {
+                swap(blackId, j); swap(blackX, j); swap(blackY, j);
+            }
+        }
+    }
+
+    private static void swap(int[] a, int j) {
+        int t = a[j];
+        a[j] = a[j - 1];
+        a[j - 1] = t;
+    }
+
+    public void copyFrom(Snapshot other) {
+        clear(other.tick);
+        time = other.time;
+        append(other);
+    }
+
+    // 把 other 的實體加在目前的內容之後，不改變 tick 與 time（合併多個快照後需再呼叫 sortById）
+    public void append(Snapshot other) {
+        for (int i = 0; i < other.playerCount; i++) {
+            addPlayer(other.playerId[i], other.playerX[i], other.playerY[i], other.playerHealth[i], other.playerColor[i], other.bulletColor[i]);
+        }
+        for (int i = 0; i < other.bulletCount; i++) {
+            addBullet(other.bulletId[i], other.bulletOwner[i], other.bulletX[i], other.bulletY[i]);
+        }
+        for (int i = 0; i < other.blackCount; i++) {
+            addBlackBullet(other.blackId[i], other.blackX[i], other.blackY[i]);
+        }
+    }
+
+    public void writeFull(GameProtocol.Writer w) {
+        w.writeVarInt(tick);
+        w.writeVarInt(time);
+        writeEntities(w);
+    }
+
+    // 只寫入三個區段的完整資料
+    public void writeEntities(GameProtocol.Writer w) {
+        w.writeVarInt(playerCount);
+        for (int i = 0; i < playerCount; i++) {
+            w.writeVarInt(playerId[i]);
+            w.writeSignedVarInt(playerX[i]);
+            w.writeSignedVarInt(playerY[i]);
+            w.writeSignedVarInt(playerHealth[i]);
+            w.writeInt(playerColor[i]);
+            w.writeInt(bulletColor[i]);
+        }
+        w.writeVarInt(bulletCount);
+        for (int i = 0; i < bulletCount; i++) {
+            w.writeVarInt(bulletId[i]);
+            w.writeVarInt(bulletOwner[i]);
+            w.writeSignedVarInt(bulletX[i]);
+            w.writeSignedVarInt(bulletY[i]);
+        }
+        w.writeVarInt(blackCount);
+        for (int i = 0; i < blackCount; i++) {
+            w.writeVarInt(blackId[i]);
+            w.writeSignedVarInt(blackX[i]);
+            w.writeSignedVarInt(blackY[i]);
+        }
+    }
+
+    public void readFull(GameProtocol.Reader r) throws IOException {
+        clear(r.readVarInt());
+        time = r.readVarInt();
+        readEntities(r);
+    }
+
+    // 讀取 writeEntities 寫入的區段，加在目前的內容之後（呼叫端負責 clear）
+    public void readEntities(GameProtocol.Reader r) throws IOException {
+        int n = r.readVarInt();
+        for (int i = 0; i < n; i++) {
+            addPlayer(r.readVarInt(), r.readSignedVarInt(), r.readSignedVarInt(), r.readSignedVarInt(), r.readInt(), r.readInt());
+        }
+        n = r.readVarInt();
+        for (int i = 0; i < n; i++) {
+            addBullet(r.readVarInt(), r.readVarInt(), r.readSignedVarInt(), r.readSignedVarInt());
+        }
+        n = r.readVarInt();
+        for (int i = 0; i < n; i++) {
+            addBlackBullet(r.readVarInt(), r.readSignedVarInt(), r.readSignedVarInt());
+        }
+    }
+
+    // 以 base 為基準寫入差異，base.tick 必須是客戶端已確認收到的快照
+    public void writeDelta(GameProtocol.Writer w, Snapshot base) {
+        w.writeVarInt(tick);
+        w.writeVarInt(base.tick);
+        w.writeSignedVarInt(time - base.time);
+        writeEntityDelta(w, base);
+    }
+
+    // 所有實體是否與 other 完全相同（不比較 tick 與 time）
+    public boolean sameEntities(Snapshot other) {
+        if (playerCount != other.playerCount || bulletCount != other.bulletCount || blackCount != other.blackCount) {
+            return false;
+        }
+        for (int i = 0; i < playerCount; i++) {
+            if (playerId[i] != other.playerId[i] || playerX[i] != other.playerX[i] || playerY[i] != other.playerY[i]
+                    || playerHealth[i] != other.playerHealth[i] || playerColor[i] != other.playerColor[i]
+                    || bulletColor[i] != other.bulletColor[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < bulletCount; i++) {
+            if (bulletId[i] != other.bulletId[i] || bulletOwner[i] != other.bulletOwner[i]
+                    || bulletX[i] != other.bulletX[i] || bulletY[i] != other.bulletY[i]) {
+                return false;
+            }
+        }
+        for (int i = 0; i < blackCount; i++) {
+            if (blackId[i] != other.blackId[i] || blackX[i] != other.blackX[i] || blackY[i] != other.blackY[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 只寫入三個區段與 base 的差異
+    public void writeEntityDelta(GameProtocol.Writer w, Snapshot base) {
+        // 玩家
+        int countPos = reserveCount(w);
+        int changes = 0;
+        int lastId = 0;
+        int i = 0, j = 0;
+        while (i < playerCount || j < base.playerCount) {
+            int id = i < playerCount ? playerId[i] : Integer.MAX_VALUE;
+            int baseId = j < base.playerCount ? base.playerId[j] : Integer.MAX_VALUE;
+            if (id == baseId) {
+                int flags = 0;
+                if (playerX[i] != base.playerX[j]) flags |= FLAG_X;
+                if (playerY[i] != base.playerY[j]) flags |= FLAG_Y;
+                if (playerHealth[i] != base.playerHealth[j]) flags |= FLAG_HEALTH;
+                if (playerColor[i] != base.playerColor[j] || bulletColor[i] != base.bulletColor[j]) flags |= FLAG_COLOR;
+                if (flags != 0) {
+                    w.writeVarInt(id - lastId);
+                    w.writeByte(flags);
+                    if ((flags & FLAG_X) != 0) w.writeSignedVarInt(playerX[i] - base.playerX[j]);
+                    if ((flags & FLAG_Y) != 0) w.writeSignedVarInt(playerY[i] - base.playerY[j]);
+                    if ((flags & FLAG_HEALTH) != 0) w.writeSignedVarInt(playerHealth[i] - base.playerHealth[j]);
+                    if ((flags & FLAG_COLOR) != 0) {
+                        w.writeInt(playerColor[i]);
+                        w.writeInt(bulletColor[i]);
+                    }
+                    lastId = id;
+                    changes++;
+                }
+                i++;
+                j++;
+            } else if (id < baseId) {
+                w.writeVarInt(id - lastId);
+                w.writeByte(FLAG_NEW);
+                w.writeSignedVarInt(playerX[i]);
+                w.writeSignedVarInt(playerY[i]);
+                w.writeSignedVarInt(playerHealth[i]);
+                w.writeInt(playerColor[i]);
+                w.writeInt(bulletColor[i]);
+                lastId = id;
+                changes++;
+                i++;
+            } else {
+                w.writeVarInt(baseId - lastId);
+                w.writeByte(FLAG_REMOVED);
+                lastId = baseId;
+                changes++;
+                j++;
+            }
+        }
+        writeCount(w, countPos, changes);
+
+        // 玩家子彈
+        countPos = reserveCount(w);
+        changes = 0;
+        lastId = 0;
+        i = 0;
+        j = 0;
+        while (i < bulletCount || j < base.bulletCount) {
+            int id = i < bulletCount ? bulletId[i] : Integer.MAX_VALUE;
+            int baseId = j < base.bulletCount ? base.bulletId[j] : Integer.MAX_VALUE;
+            if (id == baseId) {
+                int flags = 0;
+                if (bulletX[i] != base.bulletX[j]) flags |= FLAG_X;
+                if (bulletY[i] != base.bulletY[j]) flags |= FLAG_Y;
+                if (flags != 0) {
+                    w.writeVarInt(id - lastId);
+                    w.writeByte(flags);
+                    if ((flags & FLAG_X) != 0) w.writeSignedVarInt(bulletX[i] - base.bulletX[j]);
+                    if ((flags & FLAG_Y) != 0) w.writeSignedVarInt(bulletY[i] - base.bulletY[j]);
+                    lastId = id;
+                    changes++;
+                }
+                i++;
+                j++;
+            } else if (id < baseId) {
+                w.writeVarInt(id - lastId);
+                w.writeByte(FLAG_NEW);
+                w.writeVarInt(bulletOwner[i]);
+                w.writeSignedVarInt(bulletX[i]);
+                w.writeSignedVarInt(bulletY[i]);
+                lastId = id;
+                changes++;
+                i++;
+            } else {
+                w.writeVarInt(baseId - lastId);
+                w.writeByte(FLAG_REMOVED);
+                lastId = baseId;
+                changes++;
+                j++;
+            }
+        }
+        writeCount(w, countPos, changes);
+
+        // 黑色子彈
+        countPos = reserveCount(w);
+        changes = 0;
+        lastId = 0;
+        i = 0;
+        j = 0;
+        while (i < blackCount || j < base.blackCount) {
+            int id = i < blackCount ? blackId[i] : Integer.MAX_VALUE;
+            int baseId = j < base.blackCount ? base.blackId[j] : Integer.MAX_VALUE;
+            if (id == baseId) {
+                int flags = 0;
+                if (blackX[i] != base.blackX[j]) flags |= FLAG_X;
+                if (blackY[i] != base.blackY[j]) flags |= FLAG_Y;
+                if (flags != 0) {
+                    w.writeVarInt(id - lastId);
+                    w.writeByte(flags);
+                    if ((flags & FLAG_X) != 0) w.writeSignedVarInt(blackX[i] - base.blackX[j]);
+                    if ((flags & FLAG_Y) != 0) w.writeSignedVarInt(blackY[i] - base.blackY[j]);
+                    lastId = id;
+                    changes++;
+                }
+                i++;
+                j++;
+            } else if (id < baseId) {
+                w.writeVarInt(id - lastId);
+                w.writeByte(FLAG_NEW);
+                w.writeSignedVarInt(blackX[i]);
+                w.writeSignedVarInt(blackY[i]);
+                lastId = id;
+                changes++;
+                i++;
+            } else {
+                w.writeVarInt(baseId - lastId);
+                w.writeByte(FLAG_REMOVED);
+                lastId = baseId;
+                changes++;
+                j++;
+            }
+        }
+        writeCount(w, countPos, changes);
+    }
+
+    // 以 base 加上差異還原出完整快照，this 不可與 base 為同一個物件
+    public void readDelta(GameProtocol.Reader r, Snapshot base) throws IOException {
+        clear(r.readVarInt());
+        r.readVarInt(); // baseTick，已由呼叫端確認
+        time = base.time + r.readSignedVarInt();
+        readEntityDelta(r, base);
+    }
+
+    // 讀取 writeEntityDelta 寫入的區段（呼叫端負責 clear 與設定 tick、time）
+    public void readEntityDelta(GameProtocol.Reader r, Snapshot base) throws IOException {
+        int changes = r.readVarInt();
+        int id = 0;
+        int j = 0;
+        for (int k = 0; k < changes; k++) {
+            id += r.readVarInt();
+            int flags = r.readByte();
+            while (j < base.playerCount && base.playerId[j] < id) {
+                addPlayer(base.playerId[j], base.playerX[j], base.playerY[j], base.playerHealth[j], base.playerColor[j], base.bulletColor[j]);
+                j++;
+            }
+            if ((flags & FLAG_NEW) != 0) {
+                addPlayer(id, r.readSignedVarInt(), r.readSignedVarInt(), r.readSignedVarInt(), r.readInt(), r.readInt());
+                continue;
+            }
+            if (j >= base.playerCount || base.playerId[j] != id) throw new IOException("差異快照與基準不符");
+            if ((flags & FLAG_REMOVED) == 0) {
+                int x = base.playerX[j], y = base.playerY[j], health = base.playerHealth[j];
+                int color = base.playerColor[j], bColor = base.bulletColor[j];
+                if ((flags & FLAG_X) != 0) x += r.readSignedVarInt();
+                if ((flags & FLAG_Y) != 0) y += r.readSignedVarInt();
+                if ((flags & FLAG_HEALTH) != 0) health += r.readSignedVarInt();
+                if ((flags & FLAG_COLOR) != 0) {
+                    color = r.readInt();
+                    bColor = r.readInt();
+                }
+                addPlayer(id, x, y, health, color, bColor);
+            }
+            j++;
+        }
+        for (; j < base.playerCount; j++) {
+            addPlayer(base.playerId[j], base.playerX[j], base.playerY[j], base.playerHealth[j], base.playerColor[j], base.bulletColor[j]);
+        }
+
+        changes = r.readVarInt();
+        id = 0;
+        j = 0;
+        for (int k = 0; k < changes; k++) {
+            id += r.readVarInt();
+            int flags = r.readByte();
+            while (j < base.bulletCount && base.bulletId[j] < id) {
+                addBullet(base.bulletId[j], base.bulletOwner[j], base.bulletX[j], base.bulletY[j]);
+                j++;
+            }
+            if ((flags & FLAG_NEW) != 0) {
+                addBullet(id, r.readVarInt(), r.readSignedVarInt(), r.readSignedVarInt());
+                continue;
+            }
+            if (j >= base.bulletCount || base.bulletId[j] != id) throw new IOException("差異快照與基準不符");
+            if ((flags & FLAG_REMOVED) == 0) {
+                int x = base.bulletX[j], y = base.bulletY[j];
+                if ((flags & FLAG_X) != 0) x += r.readSignedVarInt();
+                if ((flags & FLAG_Y) != 0) y += r.readSignedVarInt();
+                addBullet(id, base.bulletOwner[j], x, y);
+            }
+            j++;
+        }
+        for (; j < base.bulletCount; j++) {
+            addBullet(base.bulletId[j], base.bulletOwner[j], base.bulletX[j], base.bulletY[j]);
+        }
+
+        changes = r.readVarInt();
+        id = 0;
+        j = 0;
+        for (int k = 0; k < changes; k++) {
+            id += r.readVarInt();
+            int flags = r.readByte();
+            while (j < base.blackCount && base.blackId[j] < id) {
+                addBlackBullet(base.blackId[j], base.blackX[j], base.blackY[j]);
+                j++;
+            }
+            if ((flags & FLAG_NEW) != 0) {
+                addBlackBullet(id, r.readSignedVarInt(), r.readSignedVarInt());
+                continue;
+            }
+            if (j >= base.blackCount || base.blackId[j] != id) throw new IOException("差異快照與基準不符");
+            if ((flags & FLAG_REMOVED) == 0) {
+                int x = base.blackX[j], y = base.blackY[j];
+                if ((flags & FLAG_X) != 0) x += r.readSignedVarInt();
+                if ((flags & FLAG_Y) != 0) y += r.readSignedVarInt();
+                addBlackBullet(id, x, y);
+            }
+            j++;
+        }
+        for (; j < base.blackCount; j++) {
+            addBlackBullet(base.blackId[j], base.blackX[j], base.blackY[j]);
+        }
+    }
+
+    // 變更數量在寫完區段之前未知，先預留固定 3 bytes 的 varint（上限約兩百萬筆）
+    private static int reserveCount(GameProtocol.Writer w) {
+        int pos = w.len;
+        w.writeByte(0x80);
+        w.writeByte(0x80);
+        w.writeByte(0);
+        return pos;
+    }
+
+    private static void writeCount(GameProtocol.Writer w, int pos, int count) {
+        w.buf[pos] = (byte) ((count & 0x7F) | 0x80);
+        w.buf[pos + 1] = (byte) (((count >>> 7) & 0x7F) | 0x80);
+        w.buf[pos + 2] = (byte) ((count >>> 14) & 0x7F);
+    }
+}
@@ -0,0 +1,158 @@
+import java.util.Arrays;
+
+// 均勻格子（uniform grid）空間索引，用於碰撞偵測的粗略篩選（broadphase）
+//
+// 每個 tick 先 clear，再以 insert 放入所有實體的外框（AABB），最後 build 一次建立索引。
+// 索引以計數排序的方式存成連續陣列（每格的起點 + 實體編號），重建時不會配置記憶體。
+// 查詢時只檢查相關格子內的實體，並在回傳前做精確的比對（narrowphase）。
+public class SpatialGrid {
+    private final int cellSize;
+    private final int cols;
+    private final int rows;
+    private final int[] cellStart; // 第 c 格的實體位於 cellItems[cellStart[c], cellStart[c + 1])
+    private final int[] cellCursor;
+    private int[] cellItems = new int[64];
+
+    private int entityCount;
+    private int[] minX = new int[16];
+    private int[] minY = new int[16];
+    private int[] maxX = new int[16];
+    private int[] maxY = new int[16];
+    private int[] stamp = new int[16]; // 查詢時避免同一個實體因跨格而重複回傳
+    private int queryStamp = 0;
+
+    public SpatialGrid(int width, int height, int cellSize) {
+        this.cellSize = cellSize;
+        this.cols = (width + cellSize - 1) / cellSize;
+        this.rows = (height + cellSize - 1) / cellSize;
+        this.cellStart = new int[cols * rows + 1];
+        this.cellCursor = new int[cols * rows];
+    }
+
+    public void clear() {
+        entityCount = 0;
+    }
+
+    public int size() {
+        return entityCount;
+    }
+
+    // 加入一個外框為 [minX, maxX] x [minY, maxY]（含邊界）的實體，回傳實體編號（依加入順序從 0 開始）
+    public int insert(int minX, int minY, int maxX, int maxY) {
+        if (entityCount == this.minX.length) {
+            int n = entityCount * 2;
+            this.minX = Arrays.copyOf(this.minX, n);
+            this.minY = Arrays.copyOf(this.minY, n);
+            this.maxX = Arrays.copyOf(this.maxX, n);
+            this.maxY = Arrays.copyOf(this.maxY, n);
+            this.stamp = Arrays.copyOf(this.stamp, n);
+        }
+        int e = entityCount++;
+        this.minX[e] = minX;
+        this.minY[e] = minY;
+        this.maxX[e] = maxX;
+        this.maxY[e] = maxY;
+        return e;
+    }
+
+    public void build() {
+        Arrays.fill(cellStart, 0);
+        int total = 0;
+        for (int e = 0; e < entityCount; e++) {
+            int c0 = col(minX[e]), c1 = col(maxX[e]);
+            int r0 = row(minY[e]), r1 = row(maxY[e]);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    cellStart[r * cols + c + 1]++;
+                    total++;
+                }
+            }
+        }
+        for (int i = 1; i < cellStart.length; i++) {
+            cellStart[i] += cellStart[i - 1];
+        }
+        if (cellItems.length < total) {
+            cellItems = new int[Math.max(total, cellItems.length * 2)];
+        }
+        System.arraycopy(cellStart, 0, cellCursor, 0, cellCursor.length);
+        // 依加入順序放入，同一格內的實體保持加入順序
+        for (int e = 0; e < entityCount; e++) {
+            int c0 = col(minX[e]), c1 = col(maxX[e]);
+            int r0 = row(minY[e]), r1 = row(maxY[e]);
+            for (int r = r0; r <= r1; r++) {
+                for (int c = c0; c <= c1; c++) {
+                    cellItems[cellCursor[r * cols + c]++] = e;
+                }
+            }
+        }
+    }
+
+    // 找出外框包含點 (x, y)（含邊界）的實體，依加入順序寫入 out，回傳數量
+    public int queryPoint(int x, int y, int[] out) {
+        int cell = row(y) * cols + col(x);
+        int n = 0;
+        for (int k = cellStart[cell], end = cellStart[cell + 1]; k < end && n < out.length; k++) {
+            int e = cellItems[k];
+            if (x >= minX[e] && x <= maxX[e] && y >= minY[e] && y <= maxY[e]) {
+                out[n++] = e;
+            }
+        }
+        return n;
+    }
+
+    // 找出外框與 (qMinX, qMinY)-(qMaxX, qMaxY) 重疊（不含只碰到邊）的實體，回傳數量
+    public int queryOverlap(int qMinX, int qMinY, int qMaxX, int qMaxY, int[] out) {
+        int current = ++queryStamp;
+        int c0 = col(qMinX), c1 = col(qMaxX);
+        int r0 = row(qMinY), r1 = row(qMaxY);
+        int n = 0;
+        for (int r = r0; r <= r1; r++) {
+            for (int c = c0; c <= c1; c++) {
+                int cell = r * cols + c;
+                for (int k = cellStart[cell], end = cellStart[cell + 1]; k < end && n < out.length; k++) {
+                    int e = cellItems[k];
+                    if (stamp[e] == current) continue;
+                    stamp[e] = current;
+                    if (minX[e] < qMaxX && maxX[e] > qMinX && minY[e] < qMaxY && maxY[e] > qMinY) {
+                        out[n++] = e;
+                    }
+                }
+            }
+        }
+        // 跨格查詢的結果依加入順序排列，與逐一檢查時的順序一致
+        Arrays.sort(out, 0, n);
+        return n;
+    }
+
+    // 碰撞事件（例如 子彈編號 與 被擊中的實體），可重複使用
+    public static final class Hits {
+        int count;
+        int[] source = new int[16];
+        int[] target = new int[16];
+
+        public void clear() {
+            count = 0;
+        }
+
+        public void add(int source, int target) {
+            if (count == this.source.length) {
+                this.source = Arrays.copyOf(this.source, count * 2);
+                this.target = Arrays.copyOf(this.target, count * 2);
+            }
+            this.source[count] = source;
+            this.target[count] = target;
+            count++;
+        }
+    }
+
+    // 超出場地的座標歸到最外圈的格子，精確比對時仍會使用原始座標
+    private int col(int x) {
+        int c = x / cellSize;
+        return c < 0 ? 0 : (c >= cols ? cols - 1 : c);
+    }
+
+    private int row(int y) {
+        int r = y / cellSize;
+        return r < 0 ? 0 : (r >= rows ? rows - 1 : r);
+    }
+}
@@ -0,0 +1,175 @@
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// 給觀戰者的環狀緩衝區，放在記憶體映射檔案中，每個房間一個
+//
+// 房間的工作執行緒每次送出快照時寫入一筆（補包狀態 + 完整快照，每一筆都能單獨顯示，稱為關鍵筆），
+// 補包、遊戲結束等訊息也各寫入一筆。寫入只是複製到映射的記憶體並更新位置，不等待任何讀取者，
+// 觀戰者再多也不會影響對戰的每一步。SpectatorRelay 以自己的步調讀取，可以在同一個程序或另一個本機程序中執行。
+//
+// 檔頭：MAGIC, VERSION, capacity, 已寫入的位置（writePos）, 最新關鍵筆的位置（keyPos）
+// 之後是 capacity 大小的環狀資料區，每筆為 長度(4 bytes) + 要原樣送給觀戰者的 frame；
+// 資料區結尾放不下一筆時寫入長度 -1（或剩不到 4 bytes）並從頭開始。位置一律是累計的位元組數，不會倒退，
+// 伺服器重新啟動時沿用檔案中的位置，另一個程序中的讀取者不會看到位置變小。
+// 讀取者落後太多（資料可能已被覆蓋）時跳到最新的關鍵筆，複製出一筆後也會再確認這段資料在複製期間沒有被覆寫。
+public class SpectatorFeed {
+    static final int MAGIC = 0x4E554B53; // "NUKS"
+    static final int VERSION = 1;
+    static final String FILE_SUFFIX = ".ring";
+
+    private static final int HEADER_SIZE = 64;
+    private static final int WRITE_POS = 16;
+    private static final int KEY_POS = 24;
+    private static final int DEFAULT_CAPACITY = 1 << 20;
+    private static final int PAD = -1;
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final MappedByteBuffer mapped;
+    private final int capacity;
+    private final int maxRecord; // 單筆上限，寫入中的資料最多超前 writePos 兩筆的長度
+    private long writePos;
+    private long recordStart = -1; // 正在寫入的一筆，-1 表示沒有
+
+    private SpectatorFeed(MappedByteBuffer mapped, int capacity) {
+        this.mapped = mapped;
+        this.capacity = capacity;
+        this.maxRecord = capacity / 8;
+    }
+
+    static Path path(Path directory, int roomId) {
+        return directory.resolve("room-" + roomId + FILE_SUFFIX);
+    }
+
+    // 建立或沿用房間的檔案（只由伺服器呼叫），檔案不截短，另一個程序已映射的內容仍然有效
+    static SpectatorFeed create(Path directory, int roomId) throws IOException {
+        Files.createDirectories(directory);
+        try (FileChannel channel = FileChannel.open(path(directory, roomId),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + DEFAULT_CAPACITY);
+            SpectatorFeed feed = new SpectatorFeed(mapped, DEFAULT_CAPACITY);
+            if (mapped.getInt(0) == MAGIC && mapped.getInt(4) == VERSION && mapped.getInt(8) == DEFAULT_CAPACITY) {
+                feed.writePos = (long) LONGS.getAcquire(mapped, WRITE_POS);
+            } else {
+                mapped.putInt(0, MAGIC);
+                mapped.putInt(4, VERSION);
+                mapped.putInt(8, DEFAULT_CAPACITY);
+                LONGS.setRelease(mapped, KEY_POS, -1L);
+                LONGS.setRelease(mapped, WRITE_POS, 0L);
+            }
+            return feed; // 映射在通道關閉後仍然有效
+        }
+    }
+
+    // 以唯讀方式映射伺服器建立的檔案，檔案還不存在或格式不符時回傳 null
+    static SpectatorFeed open(Path directory, int roomId) throws IOException {
+        Path path = path(directory, roomId);
+        if (!Files.exists(path)) return null;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) return null;
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) return null;
+            int capacity = header.getInt(8);
+            if (channel.size() < HEADER_SIZE + (long) capacity) return null;
+            return new SpectatorFeed(channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE + (long) capacity), capacity);
+        }
+    }
+
+    // ---- 寫入（房間的工作執行緒） ----
+
+    // 開始一筆，之後以 append 加入一個或多個 frame，最後 commit
+    void begin() {
+        recordStart = writePos;
+        if (capacity - index(writePos) < 4 + maxRecord) {
+            wrap();
+            recordStart = writePos;
+        }
+    }
+
+    void append(byte[] buf, int offset, int length) {
+        int used = (int) (writePos - recordStart) + length;
+        if (recordStart < 0 || 4 + used > maxRecord) {
+            recordStart = -1; // 超過上限的一筆直接放棄
+            return;
+        }
+        mapped.put(HEADER_SIZE + index(recordStart) + 4 + used - length, buf, offset, length);
+        writePos += length;
+    }
+
+    // 寫入長度並公開這一筆；key 表示這一筆可以作為讀取的起點
+    void commit(boolean key) {
+        if (recordStart < 0) {
+            writePos = (long) LONGS.getAcquire(mapped, WRITE_POS); // 放棄的一筆不公開
+            return;
+        }
+        mapped.putInt(HEADER_SIZE + index(recordStart), (int) (writePos - recordStart));
+        writePos += 4;
+        if (key) LONGS.setRelease(mapped, KEY_POS, recordStart);
+        LONGS.setRelease(mapped, WRITE_POS, writePos);
+        recordStart = -1;
+    }
+
+    // 資料區結尾剩下的空間不夠放一筆，標記後從頭開始
+    private void wrap() {
+        int index = index(writePos);
+        if (capacity - index >= 4) mapped.putInt(HEADER_SIZE + index, PAD);
+        writePos += capacity - index;
+    }
+
+    private int index(long position) {
+        return (int) (position % capacity);
+    }
+
+    // ---- 讀取（SpectatorRelay，不限執行緒數，各自持有 Cursor） ----
+
+    Cursor cursor() {
+        return new Cursor();
+    }
+
+    class Cursor {
+        private long position = -1; // -1 表示還沒有起點，從最新的關鍵筆開始
+        long skipped = 0; // 因為落後太多而跳過的次數
+
+        // 讀出下一筆到 out，回傳長度；沒有新資料時回傳 -1
+        int next(GameProtocol.Writer out) {
+            while (true) {
+                long end = (long) LONGS.getAcquire(mapped, WRITE_POS);
+                if (position < 0 || position > end || end - position > capacity - 2L * (4 + maxRecord)) {
+                    if (position >= 0) skipped++;
+                    long key = (long) LONGS.getAcquire(mapped, KEY_POS);
+                    if (key < 0) return -1;
+                    position = key;
+                    end = (long) LONGS.getAcquire(mapped, WRITE_POS);
+                }
+                if (position == end) return -1;
+                int index = index(position);
+                int length = capacity - index >= 4 ? mapped.getInt(HEADER_SIZE + index) : PAD;
+                if (length == PAD) {
+                    position += capacity - index;
+                    continue;
+                }
+                if (length < 0 || length > maxRecord) {
+                    position = -1; // 讀到被覆寫的資料
+                    continue;
+                }
+                out.len = 0;
+                if (out.buf.length < length) out.buf = new byte[Math.max(length, out.buf.length * 2)];
+                mapped.get(HEADER_SIZE + index + 4, out.buf, 0, length);
+                out.len = length;
+                // 複製期間寫入者若已經繞回這個位置，這一筆不可信，重新找起點
+                if ((long) LONGS.getAcquire(mapped, WRITE_POS) - position > capacity - 2L * (4 + maxRecord)) {
+                    position = -1;
+                    continue;
+                }
+                position += 4 + length;
+                return length;
+            }
+        }
+    }
+}
@@ -0,0 +1,168 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// 觀戰轉送：讀取房間寫入的 SpectatorFeed，轉送給任意數量的觀戰者
+//
+// 觀戰者連上後送出 "WATCH <房間編號>"（可以先送 "COMPRESS <字典>" 要求壓縮），之後只會收到訊息，
+// 送來的其他指令（按鍵、ACK）一律略過。
+// 所有觀戰者由一個轉送執行緒服務：每一輪為每位觀戰者從自己的 Cursor 讀出新的資料放入送出佇列，
+// 佇列中已有 MAX_QUEUED 筆時先跳過這位觀戰者；落後到資料被覆蓋時 Cursor 直接跳到最新的完整快照。
+// 同一個房間的觀戰者共用同一份映射的檔案，不會為每位觀戰者重新編碼。
+// 伺服器預設在同一個程序中啟動（埠號 PORT + 1），也可以 -Dspectate.relay=false 關閉後另外執行：
+//   java SpectatorRelay [埠號] [觀戰目錄]
+public class SpectatorRelay implements NetServer.Handler, Runnable {
+    static final int DEFAULT_PORT = 5001;
+    static final Path DEFAULT_DIRECTORY = Paths.get("spectate");
+    private static final int IO_THREADS = 2;
+    private static final int POLL_MILLIS = 5; // 沒有新資料時的等待時間，約為快照間隔的十分之一
+    private static final int MAX_QUEUED = 8; // 每位觀戰者送出佇列中最多的筆數
+    private static final int RETRY_OPEN_MILLIS = 1000; // 房間的檔案還不存在時，隔多久再試一次
+
+    private final Path directory;
+    private final Queue<Spectator> joining = new ConcurrentLinkedQueue<>();
+
+    // 以下只在轉送執行緒上存取
+    private final List<Spectator> spectators = new ArrayList<>();
+    private final Map<Integer, SpectatorFeed> feeds = new HashMap<>();
+    private final GameProtocol.Writer buffer = new GameProtocol.Writer();
+
+    SpectatorRelay(Path directory) {
+        this.directory = directory;
+    }
+
+    void start(int port) throws IOException {
+        NetServer netServer = new NetServer(port, IO_THREADS, this);
+        netServer.start();
+        Thread thread = new Thread(this, "spectator-relay");
+        thread.setDaemon(true);
+        thread.start();
+        System.out.println("觀戰轉送已啟動，埠號 " + port + "，讀取 " + directory.toAbsolutePath());
+    }
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        Path directory = args.length > 1 ? Paths.get(args[1]) : DEFAULT_DIRECTORY;
+        try {
+            new SpectatorRelay(directory).start(port); // I/O 執行緒不是 daemon，程序會持續執行
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static class Spectator {
+        final NetServer.Connection connection;
+        volatile boolean closed = false;
+        int roomId = -1;
+        boolean compressionNegotiated = false; // 只在 I/O 執行緒存取，重複的 COMPRESS 直接略過
+        SpectatorFeed.Cursor cursor; // 找到房間的檔案之後才有
+        long nextOpenAttempt = 0;
+
+        Spectator(NetServer.Connection connection) {
+            this.connection = connection;
+        }
+    }
+
+    // ---- 網路事件（I/O 執行緒） ----
+
+    @Override
+    public void onConnect(NetServer.Connection connection) {
+        ByteArrayOutputStream header = new ByteArrayOutputStream(8);
+        try {
+            GameProtocol.writeHeader(header);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        connection.send(header.toByteArray(), 0, header.size());
+        connection.attach(new Spectator(connection));
+    }
+
+    @Override
+    public void onMessage(NetServer.Connection connection, byte[] buf, int offset, int length) {
+        Spectator spectator = (Spectator) connection.attachment();
+        String command = new String(buf, offset, length, StandardCharsets.UTF_8);
+        if (spectator != null && spectator.roomId < 0 && CompressionDictionary.matches(command)) {
+            if (spectator.compressionNegotiated) return;
+            spectator.compressionNegotiated = true;
+            byte[] frame = CompressionDictionary.acceptFrame();
+            connection.sendThenCompress(frame, 0, frame.length, CompressionDictionary.newDeflater());
+            return;
+        }
+        if (spectator == null || spectator.roomId >= 0 || !command.startsWith("WATCH ")) return;
+        try {
+            spectator.roomId = Integer.parseInt(command.substring(6).trim());
+        } catch (NumberFormatException e) {
+            connection.close();
+            return;
+        }
+        joining.add(spectator);
+    }
+
+    @Override
+    public void onDisconnect(NetServer.Connection connection) {
+        Spectator spectator = (Spectator) connection.attachment();
+        if (spectator != null) spectator.closed = true;
+    }
+
+    // ---- 轉送執行緒 ----
+
+    @Override
+    public void run() {
+        while (true) {
+            Spectator joined;
+            while ((joined = joining.poll()) != null) {
+                spectators.add(joined);
+                EventLog.log("觀戰者 " + joined.connection.remoteAddress() + " 觀看房間 " + joined.roomId + "（共 " + spectators.size() + " 人）");
+            }
+            boolean sent = false;
+            long now = System.currentTimeMillis();
+            for (int i = spectators.size() - 1; i >= 0; i--) {
+                Spectator spectator = spectators.get(i);
+                if (spectator.closed) {
+                    spectators.remove(i);
+                    EventLog.log("觀戰者 " + spectator.connection.remoteAddress() + " 已離開（共 " + spectators.size() + " 人）");
+                    continue;
+                }
+                if (spectator.cursor == null && !attach(spectator, now)) continue;
+                while (spectator.connection.queueDepth() < MAX_QUEUED) {
+                    int length = spectator.cursor.next(buffer);
+                    if (length < 0) break;
+                    spectator.connection.send(buffer.buf, 0, length);
+                    sent = true;
+                }
+            }
+            if (!sent) {
+                try {
+                    Thread.sleep(POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // 找到房間的檔案後建立讀取位置，同一個房間的觀戰者共用一個映射
+    private boolean attach(Spectator spectator, long now) {
+        if (now < spectator.nextOpenAttempt) return false;
+        SpectatorFeed feed = feeds.get(spectator.roomId);
+        if (feed == null) {
+            try {
+                feed = SpectatorFeed.open(directory, spectator.roomId);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            if (feed == null) {
+                spectator.nextOpenAttempt = now + RETRY_OPEN_MILLIS;
+                return false;
+            }
+            feeds.put(spectator.roomId, feed);
+        }
+        spectator.cursor = feed.cursor();
+        return true;
+    }
+}
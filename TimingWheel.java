@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+// 以模擬步數為單位的階層式時間輪（hierarchical timing wheel），每場對戰一個，只在模擬的執行緒上使用
+//
+// LEVELS 層、每層 SLOTS 格：第 0 層一格一步，第 k 層一格 SLOTS^k 步。計時器依到期時間與目前的差距放進對應的層，
+// 上層的格子輪到時再重新分配到下層（cascade），所以排定與取消都是 O(1)，推進一步只需檢查一格。
+// 計時器放在平行陣列組成的雙向鏈結串列中，用完的位置重複使用，容量不足時才擴充，平常不配置記憶體。
+// 計時器只帶有整數的種類與參數，到期時交給呼叫端處理，不保存 callback 物件，所以可以與模擬的狀態一起保存與還原。
+// 同一步到期的計時器依排定的先後順序觸發，與串列中的位置無關，還原後的觸發順序也完全相同。
+public class TimingWheel {
+    private static final int SLOT_BITS = 8;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int SLOT_MASK = SLOTS - 1;
+    private static final int LEVELS = 4; // 涵蓋 2^32 步
+    private static final int INDEX_BITS = 16; // handle 的低位元為位置，高位元為世代，避免取消到已重複使用的位置
+    private static final int MAX_TIMERS = 1 << INDEX_BITS;
+
+    private final int[] head = new int[LEVELS * SLOTS]; // 每一格串列的第一個計時器，-1 表示空
+    private int[] deadline;
+    private int[] kind;
+    private int[] arg;
+    private int[] seq; // 排定的順序，決定同一步到期時的觸發順序
+    private int[] next;
+    private int[] prev;
+    private int[] bucket; // 所在的格子，-1 表示未使用
+    private int[] generation;
+    private int freeList = -1;
+    private int used = 0; // 曾經使用過的位置數（之後的位置都還沒用過）
+    private int count = 0;
+    private int now = 0; // 已經處理到的步數
+    private int nextSeq = 0;
+
+    TimingWheel(int initialCapacity) {
+        Arrays.fill(head, -1);
+        deadline = new int[initialCapacity];
+        kind = new int[initialCapacity];
+        arg = new int[initialCapacity];
+        seq = new int[initialCapacity];
+        next = new int[initialCapacity];
+        prev = new int[initialCapacity];
+        bucket = new int[initialCapacity];
+        generation = new int[initialCapacity];
+    }
+
+    int now() {
+        return now;
+    }
+
+    int size() {
+        return count;
+    }
+
+    // 清除所有計時器，從第 step 步開始計時
+    void reset(int step) {
+        Arrays.fill(head, -1);
+        freeList = -1;
+        used = 0;
+        count = 0;
+        now = step;
+        nextSeq = 0;
+    }
+
+    // 在 delaySteps 步之後到期（至少 1 步），回傳可用來取消的 handle
+    int schedule(int delaySteps, int kind, int arg) {
+        return add(now + Math.max(1, delaySteps), kind, arg, nextSeq++);
+    }
+
+    // 取消尚未到期的計時器，已到期或已取消時回傳 false
+    boolean cancel(int handle) {
+        int i = handle & (MAX_TIMERS - 1);
+        if (handle < 0 || i >= used || bucket[i] < 0 || generation[i] != handle >>> INDEX_BITS) return false;
+        unlink(i);
+        release(i);
+        return true;
+    }
+
+    // 找出第一個指定種類與參數的計時器（還原狀態後用來取回 handle），沒有時回傳 -1
+    int find(int kind, int arg) {
+        for (int i = 0; i < used; i++) {
+            if (bucket[i] >= 0 && this.kind[i] == kind && this.arg[i] == arg) return handle(i);
+        }
+        return -1;
+    }
+
+    // 推進到第 step 步，把期間到期的計時器依序放進 due
+    void advance(int step, Due due) {
+        due.clear();
+        while (now - step < 0) {
+            now++;
+            // 由上往下把輪到的格子重新分配，到期時間等於 now 的會落在第 0 層目前的格子
+            for (int level = LEVELS - 1; level > 0; level--) {
+                if ((now & ((1 << (SLOT_BITS * level)) - 1)) == 0) {
+                    cascade(level * SLOTS + ((now >>> (SLOT_BITS * level)) & SLOT_MASK));
+                }
+            }
+            int b = now & SLOT_MASK;
+            int start = due.count;
+            for (int i = head[b]; i >= 0; ) {
+                int n = next[i];
+                due.add(kind[i], arg[i], seq[i]);
+                release(i);
+                i = n;
+            }
+            head[b] = -1;
+            due.sortFrom(start);
+        }
+    }
+
+    private void cascade(int b) {
+        int i = head[b];
+        head[b] = -1;
+        while (i >= 0) {
+            int n = next[i];
+            link(i);
+            i = n;
+        }
+    }
+
+    private int add(int deadline, int kind, int arg, int seq) {
+        int i;
+        if (freeList >= 0) {
+            i = freeList;
+            freeList = next[i];
+        } else {
+            if (used == this.deadline.length) grow();
+            i = used++;
+        }
+        this.deadline[i] = deadline;
+        this.kind[i] = kind;
+        this.arg[i] = arg;
+        this.seq[i] = seq;
+        generation[i] = (generation[i] + 1) & 0x7FFF;
+        link(i);
+        count++;
+        return handle(i);
+    }
+
+    private int handle(int i) {
+        return generation[i] << INDEX_BITS | i;
+    }
+
+    // 依到期時間與目前的差距放進對應的層
+    private void link(int i) {
+        int delta = deadline[i] - now;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= 1 << (SLOT_BITS * (level + 1))) {
+            level++;
+        }
+        int b = level * SLOTS + ((deadline[i] >>> (SLOT_BITS * level)) & SLOT_MASK);
+        bucket[i] = b;
+        prev[i] = -1;
+        next[i] = head[b];
+        if (head[b] >= 0) prev[head[b]] = i;
+        head[b] = i;
+    }
+
+    private void unlink(int i) {
+        if (prev[i] >= 0) {
+            next[prev[i]] = next[i];
+        } else {
+            head[bucket[i]] = next[i];
+        }
+        if (next[i] >= 0) prev[next[i]] = prev[i];
+    }
+
+    private void release(int i) {
+        bucket[i] = -1;
+        next[i] = freeList;
+        freeList = i;
+        count--;
+    }
+
+    private void grow() {
+        int capacity = Math.min(deadline.length * 2, MAX_TIMERS);
+        if (capacity == deadline.length) throw new IllegalStateException("計時器數量超過上限：" + MAX_TIMERS);
+        deadline = Arrays.copyOf(deadline, capacity);
+        kind = Arrays.copyOf(kind, capacity);
+        arg = Arrays.copyOf(arg, capacity);
+        seq = Arrays.copyOf(seq, capacity);
+        next = Arrays.copyOf(next, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        bucket = Arrays.copyOf(bucket, capacity);
+        generation = Arrays.copyOf(generation, capacity);
+    }
+
+    // 保存所有計時器（依排定順序，與內部的位置無關），readState 還原後的行為與原本相同
+    void write(GameProtocol.Writer w) {
+        w.writeVarInt(now);
+        w.writeVarInt(nextSeq);
+        w.writeVarInt(count);
+        long[] order = new long[count]; // 只在關鍵影格配置
+        int n = 0;
+        for (int i = 0; i < used; i++) {
+            if (bucket[i] >= 0) order[n++] = (long) seq[i] << 32 | i;
+        }
+        Arrays.sort(order);
+        for (long key : order) {
+            int i = (int) key;
+            w.writeVarInt(deadline[i] - now);
+            w.writeVarInt(kind[i]);
+            w.writeSignedVarInt(arg[i]);
+            w.writeVarInt(seq[i]);
+        }
+    }
+
+    void read(GameProtocol.Reader r) throws IOException {
+        reset(r.readVarInt());
+        int savedSeq = r.readVarInt();
+        int n = r.readVarInt();
+        if (n > MAX_TIMERS) throw new IOException("計時器數量超過上限：" + n);
+        for (int k = 0; k < n; k++) {
+            int delay = r.readVarInt();
+            int kind = r.readVarInt();
+            int arg = r.readSignedVarInt();
+            add(now + delay, kind, arg, r.readVarInt());
+        }
+        nextSeq = savedSeq;
+    }
+
+    // 一次推進中到期的計時器，陣列重複使用，只在容量不足時擴充
+    static class Due {
+        int count;
+        int[] kind = new int[8];
+        int[] arg = new int[8];
+        private int[] seq = new int[8];
+
+        void clear() {
+            count = 0;
+        }
+
+        private void add(int kind, int arg, int seq) {
+            if (count == this.kind.length) {
+                this.kind = Arrays.copyOf(this.kind, count * 2);
+                this.arg = Arrays.copyOf(this.arg, count * 2);
+                this.seq = Arrays.copyOf(this.seq, count * 2);
+            }
+            this.kind[count] = kind;
+            this.arg[count] = arg;
+            this.seq[count] = seq;
+            count++;
+        }
+
+        // 同一步到期的計時器依排定順序排列（插入排序，通常只有幾個）
+        private void sortFrom(int start) {
+            for (int i = start + 1; i < count; i++) {
+                int k = kind[i], a = arg[i], s = seq[i];
+                int j = i - 1;
+                while (j >= start && seq[j] - s > 0) {
+                    kind[j + 1] = kind[j];
+                    arg[j + 1] = arg[j];
+                    seq[j + 1] = seq[j];
+                    j--;
+                }
+                kind[j + 1] = k;
+                arg[j + 1] = a;
+                seq[j + 1] = s;
+            }
+        }
+    }
+}
@@ -0,0 +1,249 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+// 客戶端的 UDP 傳輸，與 UdpTransport 對應（封包格式見 UdpTransport）
+//
+// 收到 TCP 上的 UDP_OFFER 後建立：每 HELLO_INTERVAL_MS 送一次 HELLO，收到 HELLO_ACK 後立即回一個 ACK 讓伺服器確認雙向都通了。
+// HELLO_ATTEMPTS 次都沒有回應（例如防火牆擋住 UDP）就關閉，客戶端繼續只用 TCP。
+// 連通之後超過 UdpTransport.TIMEOUT_MILLIS 沒有收到任何封包也會關閉，isActive 回傳 false，輸入與 ACK 改回 TCP；
+// 伺服器閒置時會送 HELLO_ACK 維持連線，收到後回一個 ACK，讓伺服器那一端也知道 UDP 仍然暢通。
+// 伺服器送來的 frame 以 Listener 交給呼叫端，與 TCP 上讀到的 frame 相同：
+//   SNAPSHOT 直接交出，可能遺失或亂序，由呼叫端丟棄比已套用的還舊的快照；
+//   RELIABLE 依序號交出，提早到的先暫存，缺少的由伺服器重送。
+// 輸入以 sendInput 送出，每個封包帶著伺服器還沒套用的最近 MAX_REDUNDANT_INPUTS 個輸入，遺失的會由之後的封包補上。
+public class UdpClient {
+    private static final int HELLO_ATTEMPTS = 10;
+    private static final int HELLO_INTERVAL_MS = 100;
+    private static final long INPUT_RESEND_NANOS = 50_000_000L; // 輸入尚未被套用時，收到快照後重送的最短間隔
+    private static final int INPUT_HISTORY = 64; // 必須大於 UdpTransport.MAX_REDUNDANT_INPUTS
+    private static final int MAX_BUFFERED_RELIABLE = 256;
+    private static final int RECEIVE_BUFFER_SIZE = 2048;
+    private static final long TIMEOUT_NANOS = UdpTransport.TIMEOUT_MILLIS * 1_000_000L;
+
+    // 伺服器透過 UDP 送來的 frame，在 UDP 的接收執行緒上呼叫
+    interface Listener {
+        void onFrame(int type, GameProtocol.Reader reader) throws IOException;
+    }
+
+    private final DatagramChannel channel;
+    private final SocketAddress server;
+    private final int token;
+    private final Listener listener;
+    private final PacketSimulator simulator;
+    private volatile boolean active = false; // 收到伺服器的 UDP 封包後為 true
+    private volatile long lastHeard; // 最後一次收到伺服器的封包（System.nanoTime）
+    private volatile boolean closed = false;
+
+    // 送出端，以 this 同步
+    private final GameProtocol.Writer writer = new GameProtocol.Writer();
+    private final int[] inputKeys = new int[INPUT_HISTORY]; // 以序號取餘數為索引
+    private int inputSeq = 0;
+    private int inputProcessed = 0; // 伺服器已套用的最後一個輸入
+    private long inputSentAt;
+    private int snapshotTick = 0;
+    private int reliableReceived = 0; // 已依序交出的最後一個 RELIABLE 序號
+
+    // 以下只在接收執行緒存取
+    private final GameProtocol.Reader reader = new GameProtocol.Reader();
+    private final GameProtocol.Reader bufferedReader = new GameProtocol.Reader();
+    private final Map<Integer, byte[]> earlyReliable = new HashMap<>(); // 提早到達的 RELIABLE frame
+
+    private UdpClient(DatagramChannel channel, SocketAddress server, int token, Listener listener, PacketSimulator simulator) {
+        this.channel = channel;
+        this.server = server;
+        this.token = token;
+        this.listener = listener;
+        this.simulator = simulator;
+    }
+
+    // 開始與伺服器建立 UDP 連線，不會等待結果；之後以 isActive 判斷是否改用 UDP
+    static UdpClient start(String host, int port, int token, Listener listener, PacketSimulator simulator) throws IOException {
+        SocketAddress server = new InetSocketAddress(host, port);
+        DatagramChannel channel = DatagramChannel.open();
+        channel.connect(server); // 只接收伺服器送來的封包
+        UdpClient client = new UdpClient(channel, server, token, listener, simulator);
+
+        Thread receiver = new Thread(client::receive, "udp-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread handshake = new Thread(client::handshake, "udp-handshake");
+        handshake.setDaemon(true);
+        handshake.start();
+        return client;
+    }
+
+    // 呼叫端每次送出輸入或 ACK 前都會呼叫，逾時在這裡檢查，不需要另外的執行緒
+    boolean isActive() {
+        if (!active || closed) return false;
+        if (System.nanoTime() - lastHeard > TIMEOUT_NANOS) {
+            expire();
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void expire() {
+        if (closed) return;
+        System.out.println("UDP 超過 " + UdpTransport.TIMEOUT_MILLIS + " ms 沒有收到封包，改回 TCP");
+        close();
+    }
+
+    void close() {
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void handshake() {
+        try {
+            for (int i = 0; i < HELLO_ATTEMPTS && !active && !closed; i++) {
+                synchronized (this) {
+                    writer.begin(UdpTransport.HELLO);
+                    writer.writeInt(token);
+                    transmit();
+                }
+                Thread.sleep(HELLO_INTERVAL_MS);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (!active && !closed) {
+            System.out.println("UDP 連線失敗，繼續使用 TCP");
+            close();
+        }
+    }
+
+    // 送出一個新的輸入（序號需與 TCP 的 INPUT 共用同一個計數）
+    synchronized void sendInput(int seq, int keys) {
+        inputSeq = seq;
+        inputKeys[seq % INPUT_HISTORY] = keys;
+        sendInputs(System.nanoTime());
+    }
+
+    // 伺服器已套用到 lastInput，之後的輸入還沒套用且距離上次送出夠久時重送（送出的封包可能遺失了）
+    synchronized void inputProcessed(int lastInput) {
+        if (lastInput - inputProcessed > 0) inputProcessed = lastInput;
+        long now = System.nanoTime();
+        if (inputSeq - inputProcessed > 0 && now - inputSentAt >= INPUT_RESEND_NANOS) {
+            sendInputs(now);
+        }
+    }
+
+    // 回報已套用的快照
+    synchronized void snapshotApplied(int tick) {
+        snapshotTick = tick;
+        sendAck();
+    }
+
+    // 在 this 同步中呼叫
+    private void sendInputs(long now) {
+        if (closed) return;
+        int count = Math.min(inputSeq - inputProcessed, UdpTransport.MAX_REDUNDANT_INPUTS);
+        if (count <= 0) return;
+        writer.begin(UdpTransport.INPUT);
+        writer.writeVarInt(inputSeq);
+        writer.writeVarInt(count);
+        for (int seq = inputSeq - count + 1; seq <= inputSeq; seq++) {
+            writer.writeVarInt(inputKeys[seq % INPUT_HISTORY]);
+        }
+        transmit();
+        inputSentAt = now;
+    }
+
+    // 在 this 同步中呼叫
+    private void sendAck() {
+        if (closed) return;
+        writer.begin(UdpTransport.ACK);
+        writer.writeVarInt(snapshotTick);
+        writer.writeVarInt(reliableReceived);
+        transmit();
+    }
+
+    // 在 this 同步中呼叫
+    private void transmit() {
+        writer.finish();
+        try {
+            simulator.send(channel, ByteBuffer.wrap(writer.buffer(), writer.frameOffset(), writer.frameLength()), server);
+        } catch (IOException e) {
+            // 送出失敗等同遺失
+        }
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        while (!closed) {
+            try {
+                buffer.clear();
+                channel.receive(buffer);
+                reader.wrap(buffer.array(), 0, buffer.position());
+                handle(reader);
+            } catch (IOException e) {
+                if (closed || !channel.isOpen()) return;
+                e.printStackTrace(); // 格式錯誤的封包，略過
+            }
+        }
+    }
+
+    private void handle(GameProtocol.Reader r) throws IOException {
+        r.readVarInt(); // frame 長度，一個封包只有一個 frame
+        int kind = r.readByte();
+        lastHeard = System.nanoTime(); // 先於 active，isActive 才不會以舊的時間判斷逾時
+        if (!active) {
+            active = true;
+            synchronized (this) {
+                sendAck(); // 讓伺服器知道 HELLO_ACK 已送達，開始改走 UDP
+            }
+        } else if (kind == UdpTransport.HELLO_ACK) {
+            synchronized (this) {
+                sendAck(); // 伺服器閒置時送來的，回覆讓伺服器知道客戶端仍然收得到
+            }
+        }
+        if (kind == UdpTransport.SNAPSHOT) {
+            deliver(r);
+        } else if (kind == UdpTransport.RELIABLE) {
+            int seq = r.readVarInt();
+            int expected;
+            synchronized (this) {
+                expected = reliableReceived + 1;
+            }
+            if (seq == expected) {
+                deliver(r);
+                // 接著交出之前提早到達的
+                int next = seq;
+                byte[] early;
+                while ((early = earlyReliable.remove(next + 1)) != null) {
+                    bufferedReader.wrap(early, 0, early.length);
+                    deliver(bufferedReader);
+                    next++;
+                }
+                synchronized (this) {
+                    reliableReceived = next;
+                }
+            } else if (seq - expected > 0 && earlyReliable.size() < MAX_BUFFERED_RELIABLE) {
+                byte[] copy = new byte[r.limit - r.pos];
+                System.arraycopy(r.buf, r.pos, copy, 0, copy.length);
+                earlyReliable.put(seq, copy);
+            }
+            synchronized (this) {
+                sendAck(); // 重複收到的也要回覆，之前的 ACK 可能遺失了
+            }
+        }
+    }
+
+    // r 目前指向一個完整的 frame（長度、類型、內容）
+    private void deliver(GameProtocol.Reader r) throws IOException {
+        int length = r.readVarInt();
+        int end = r.pos + length;
+        if (end > r.limit) throw new IOException("UDP frame 長度不合法：" + length);
+        r.limit = end;
+        listener.onFrame(r.readByte(), r);
+    }
+}
@@ -0,0 +1,403 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.Deflater;
+
+// 伺服器端的 UDP 傳輸（選用），TCP 連線仍然保留，作為控制通道與退路
+//
+// TCP 上一個封包遺失會讓之後所有快照一起延遲（head-of-line blocking），所以改以 UDP 傳送時：
+//   快照      : 不可靠，每個快照一個封包，遺失就算了，客戶端只採用最新的
+//   其他訊息  : GAME_OVER、RESET、補包等必須送達的 frame 依序編號，客戶端累積確認，逾時未確認就重送
+//   輸入      : 客戶端每次送出最近幾個輸入（序號與按鍵遮罩），任何一個封包送達就補齊之前遺失的
+//
+// 建立方式：TCP 連線建立後伺服器送出 UDP_OFFER（埠號與 token），客戶端以 HELLO 帶 token 從 UDP 連過來，
+// 伺服器記下位址並回覆 HELLO_ACK。收到客戶端之後送來的其他封包（ACK、INPUT），確認雙向都通了，才把輸出改走 UDP；
+// 在那之前或客戶端不支援 UDP 時，所有資料照舊走 TCP。token 只用來對應連線，不是安全機制。
+// 改走 UDP 之後兩端都會檢查最後一次收到封包的時間：伺服器有 KEEPALIVE_MILLIS 沒有送出任何封包時補送一個 HELLO_ACK，
+// 客戶端收到後回一個 ACK；任一端超過 TIMEOUT_MILLIS 沒有收到封包（NAT 重新對應、防火牆逾時等）就改回 TCP，
+// 伺服器這時把還沒確認的可靠訊息改由 TCP 送出。
+//
+// 與 NetServer 相同，房間的工作執行緒只把資料放入工作階段（快照只保留最新的一個，可靠訊息排入未確認的佇列），
+// 實際的 send 系統呼叫與重送都在 UDP 的送出執行緒上執行。
+//
+// 每個封包都是一個 GameProtocol 的 frame（長度、類型、內容），類型如下：
+//   HELLO     (客戶端) token(4 bytes)
+//   HELLO_ACK (伺服器) 也用來維持連線
+//   SNAPSHOT  (伺服器) 一個完整的 frame（與 TCP 上相同）
+//   RELIABLE  (伺服器) 序號, 一個完整的 frame
+//   INPUT     (客戶端) 最新的輸入序號, 個數 n, n 個按鍵遮罩（由舊到新）
+//   ACK       (客戶端) 已套用的快照 tick, 已依序收到的最後一個 RELIABLE 序號
+public class UdpTransport {
+    static final int HELLO = 1;
+    static final int HELLO_ACK = 2;
+    static final int SNAPSHOT = 3;
+    static final int RELIABLE = 4;
+    static final int INPUT = 5;
+    static final int ACK = 6;
+
+    // 超過這個大小的 frame 改走 TCP：封包被 IP 分段後，任何一段遺失整個封包就遺失
+    static final int MAX_DATAGRAM_PAYLOAD = 1200;
+    static final int MAX_REDUNDANT_INPUTS = 16;
+
+    private static final int RECEIVE_BUFFER_SIZE = 2048;
+    private static final long RESEND_INTERVAL_MILLIS = 100; // 可靠訊息未確認時的重送間隔
+    private static final long RESEND_CHECK_MILLIS = 20;
+    private static final int MAX_UNACKED = 256; // 超過就視為客戶端已經失聯，中斷連線
+    static final int TIMEOUT_MILLIS = 1000; // 超過這段時間沒有收到對方的封包就改回 TCP（兩端相同）
+    private static final int KEEPALIVE_MILLIS = 250; // 伺服器超過這段時間沒有送出封包時補送 HELLO_ACK
+
+    private final DatagramChannel channel;
+    private final int port;
+    private final PacketSimulator simulator;
+    private final Map<Integer, Session> byToken = new ConcurrentHashMap<>();
+    private final Map<SocketAddress, Session> byAddress = new ConcurrentHashMap<>();
+    private final BlockingQueue<Session> ready = new LinkedBlockingQueue<>(); // 有資料要送出的工作階段
+    private final List<byte[]> due = new ArrayList<>(); // 這一輪要重送的可靠訊息，只在送出執行緒上使用
+    private final byte[] helloAck;
+
+    public UdpTransport(int port, PacketSimulator simulator) throws IOException {
+        this.port = port;
+        this.simulator = simulator;
+        this.channel = DatagramChannel.open();
+        channel.bind(new InetSocketAddress(port));
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        w.begin(HELLO_ACK);
+        w.finish();
+        this.helloAck = w.toFrame();
+    }
+
+    public int port() {
+        return port;
+    }
+
+    public void start() {
+        Thread receiver = new Thread(this::receive, "udp-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+        Thread sender = new Thread(this::sendLoop, "udp-sender");
+        sender.setDaemon(true);
+        sender.start();
+        if (simulator.enabled()) {
+            System.out.println("UDP 網路模擬：" + simulator);
+        }
+    }
+
+    // 為新的 TCP 連線建立 UDP 工作階段，客戶端連過來之前所有資料都交給 tcp
+    Session open(Server.Outbound tcp) {
+        while (true) {
+            int token = ThreadLocalRandom.current().nextInt();
+            if (token == 0) continue;
+            Session session = new Session(token, tcp);
+            if (byToken.putIfAbsent(token, session) == null) return session;
+        }
+    }
+
+    private void unregister(Session session) {
+        byToken.remove(session.token);
+        SocketAddress address = session.address;
+        if (address != null) byAddress.remove(address, session);
+    }
+
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(RECEIVE_BUFFER_SIZE);
+        GameProtocol.Reader reader = new GameProtocol.Reader();
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress from = channel.receive(buffer);
+                reader.wrap(buffer.array(), 0, buffer.position());
+                handle(from, reader);
+            } catch (IOException e) {
+                // 格式錯誤的封包直接略過；通道關閉時結束迴圈
+                if (!channel.isOpen()) return;
+            }
+        }
+    }
+
+    private void handle(SocketAddress from, GameProtocol.Reader r) throws IOException {
+        r.readVarInt(); // frame 長度，一個封包只有一個 frame
+        int kind = r.readByte();
+        if (kind == HELLO) {
+            Session session = byToken.get(r.readInt());
+            if (session == null) return;
+            session.lastHeard = System.nanoTime();
+            session.bind(from);
+            transmit(helloAck, 0, helloAck.length, from);
+            return;
+        }
+        Session session = byAddress.get(from);
+        if (session == null) return;
+        session.lastHeard = System.nanoTime(); // 先於 active，送出執行緒才不會以舊的時間判斷逾時
+        session.active = true; // 客戶端收到了 HELLO_ACK，雙向都通了
+        Server.ClientHandler handler = session.handler;
+        if (handler == null) return;
+        if (kind == INPUT) {
+            handler.inputOverUdp = true;
+            int newest = r.readVarInt();
+            int count = Math.min(r.readVarInt(), MAX_REDUNDANT_INPUTS);
+            for (int i = 0; i < count; i++) {
+                handler.input.publish(newest - count + 1 + i, r.readVarInt()); // 已經收過的序號會被略過
+            }
+        } else if (kind == ACK) {
+            int tick = r.readVarInt();
+            if (tick > handler.ackedTick) handler.ackedTick = tick; // 封包可能亂序，只往前推進
+            session.acknowledge(r.readVarInt());
+        }
+    }
+
+    // 送出執行緒：送出排入的資料，每 RESEND_CHECK_MILLIS 檢查一次所有工作階段要重送的可靠訊息與是否逾時
+    private void sendLoop() {
+        long nextCheck = System.nanoTime();
+        while (channel.isOpen()) {
+            Session session;
+            try {
+                session = ready.poll(RESEND_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            if (session != null) session.flush(now);
+            if (now - nextCheck >= 0) {
+                nextCheck = now + TimeUnit.MILLISECONDS.toNanos(RESEND_CHECK_MILLIS);
+                for (Session s : byToken.values()) {
+                    s.resend(now);
+                    s.checkAlive(now);
+                }
+            }
+        }
+    }
+
+    private void transmit(byte[] buf, int offset, int length, SocketAddress target) {
+        try {
+            simulator.send(channel, ByteBuffer.wrap(buf, offset, length), target);
+        } catch (IOException e) {
+            // UDP 送出失敗等同遺失，可靠訊息會重送
+        }
+    }
+
+    // 尚未確認的可靠訊息
+    private static class Pending {
+        final int seq;
+        final byte[] packet;
+        final int frameOffset; // 原本的 frame 在 packet 中的位置，改回 TCP 時只送出這個部分
+        boolean sent = false; // 由送出執行緒第一次送出後為 true
+        long sentAt;
+
+        Pending(int seq, byte[] packet, int frameOffset) {
+            this.seq = seq;
+            this.packet = packet;
+            this.frameOffset = frameOffset;
+        }
+    }
+
+    // 一個客戶端的 UDP 工作階段，同時也是 ClientHandler 送出資料的對象
+    class Session implements Server.Outbound {
+        final int token;
+        private final Server.Outbound tcp;
+        volatile Server.ClientHandler handler;
+        private volatile SocketAddress address; // 收到 HELLO 之後才有
+        private volatile boolean active = false; // 雙向確認後才改走 UDP，逾時後改回 false
+        private volatile long lastHeard; // 最後一次收到這個客戶端的封包（System.nanoTime）
+        private long lastSentAt; // 最後一次送出封包，只在送出執行緒上使用
+        private volatile boolean closed = false;
+        private final AtomicReference<byte[]> latestSnapshot = new AtomicReference<>(); // 尚未送出的快照封包，新的直接取代
+        private final AtomicBoolean flushScheduled = new AtomicBoolean();
+        private final GameProtocol.Writer snapshotWriter = new GameProtocol.Writer(); // 只在房間的工作執行緒上使用
+        private volatile long bytesSent = 0; // UDP 的部分，只由送出執行緒寫入
+        private volatile long messagesSent = 0;
+        private volatile int unackedCount = 0;
+
+        // 以 this 同步
+        private final GameProtocol.Writer writer = new GameProtocol.Writer();
+        private final ArrayDeque<Pending> unacked = new ArrayDeque<>();
+        private int nextSeq = 1;
+
+        Session(int token, Server.Outbound tcp) {
+            this.token = token;
+            this.tcp = tcp;
+        }
+
+        void attach(Server.ClientHandler handler) {
+            this.handler = handler;
+        }
+
+        private void bind(SocketAddress from) {
+            SocketAddress previous = address;
+            if (from.equals(previous)) return;
+            address = from;
+            if (previous != null) byAddress.remove(previous, this);
+            byAddress.put(from, this);
+        }
+
+        // 只壓縮 TCP 上的資料，UDP 的封包各自獨立，沒有可以延續的串流
+        @Override
+        public void sendThenCompress(byte[] buf, int offset, int length, Deflater deflater) {
+            tcp.sendThenCompress(buf, offset, length, deflater);
+        }
+
+        @Override
+        public void send(byte[] buf, int offset, int length) {
+            if (active && !closed && queueReliable(buf, offset, length)) {
+                scheduleFlush();
+                return;
+            }
+            tcp.send(buf, offset, length);
+        }
+
+        // 在同步中再確認一次仍然走 UDP：改回 TCP 時未確認的訊息會一併改由 TCP 送出，這之後的也要走 TCP
+        private synchronized boolean queueReliable(byte[] buf, int offset, int length) {
+            if (!active) return false;
+            if (unacked.size() >= MAX_UNACKED) {
+                EventLog.log("UDP 客戶端 " + address + " 太久沒有確認可靠訊息，中斷連線");
+                close();
+                return true;
+            }
+            GameProtocol.Writer w = writer;
+            w.begin(RELIABLE);
+            w.writeVarInt(nextSeq);
+            w.writeBytes(buf, offset, length);
+            w.finish();
+            byte[] packet = w.toFrame();
+            unacked.addLast(new Pending(nextSeq++, packet, packet.length - length)); // 由送出執行緒送出
+            unackedCount = unacked.size();
+            return true;
+        }
+
+        @Override
+        public void sendSnapshot(byte[] buf, int offset, int length) {
+            if (!active || closed || length > MAX_DATAGRAM_PAYLOAD) {
+                tcp.sendSnapshot(buf, offset, length);
+                return;
+            }
+            GameProtocol.Writer w = snapshotWriter;
+            w.begin(SNAPSHOT);
+            w.writeBytes(buf, offset, length);
+            w.finish();
+            latestSnapshot.set(w.toFrame()); // 還沒送出的舊快照直接丟棄，與遺失相同
+            scheduleFlush();
+        }
+
+        private void scheduleFlush() {
+            if (flushScheduled.compareAndSet(false, true)) {
+                ready.add(this);
+            }
+        }
+
+        // 送出執行緒：送出最新的快照與還沒送過的可靠訊息
+        private void flush(long now) {
+            flushScheduled.set(false);
+            byte[] snapshot = latestSnapshot.getAndSet(null);
+            if (snapshot != null && !closed) transmitCounted(snapshot, 0, snapshot.length);
+            resend(now);
+        }
+
+        // 累積確認：seq 以前（含）的可靠訊息都已送達
+        synchronized void acknowledge(int seq) {
+            while (!unacked.isEmpty() && unacked.peekFirst().seq - seq <= 0) {
+                unacked.pollFirst();
+            }
+            unackedCount = unacked.size();
+        }
+
+        // 送出執行緒：還沒送過或逾時未確認的可靠訊息，先在同步中取出，送出時不持有 this
+        private void resend(long now) {
+            synchronized (this) {
+                if (closed) return;
+                for (Pending pending : unacked) {
+                    if (!pending.sent || now - pending.sentAt >= TimeUnit.MILLISECONDS.toNanos(RESEND_INTERVAL_MILLIS)) {
+                        pending.sent = true;
+                        pending.sentAt = now;
+                        due.add(pending.packet);
+                    }
+                }
+            }
+            for (int i = 0; i < due.size(); i++) {
+                byte[] packet = due.get(i);
+                transmitCounted(packet, 0, packet.length);
+            }
+            due.clear();
+        }
+
+        // 送出執行緒：太久沒有收到客戶端的封包就改回 TCP，太久沒有送出封包就補送 HELLO_ACK
+        private void checkAlive(long now) {
+            if (!active || closed) return;
+            if (now - lastHeard > TimeUnit.MILLISECONDS.toNanos(TIMEOUT_MILLIS)) {
+                fallBackToTcp();
+            } else if (now - lastSentAt >= TimeUnit.MILLISECONDS.toNanos(KEEPALIVE_MILLIS)) {
+                transmitCounted(helloAck, 0, helloAck.length);
+            }
+        }
+
+        // UDP 已經不通：之後的資料都走 TCP，還沒確認的可靠訊息改由 TCP 送出（客戶端可能收到重複的，內容都是狀態，重複套用沒有影響）。
+        // 位址的對應一併移除，舊位址較晚到的封包不會再讓這個工作階段改回 UDP
+        private void fallBackToTcp() {
+            SocketAddress lost;
+            synchronized (this) {
+                if (!active) return;
+                lost = address;
+                address = null;
+                if (lost != null) byAddress.remove(lost, this);
+                active = false;
+                for (Pending pending : unacked) {
+                    tcp.send(pending.packet, pending.frameOffset, pending.packet.length - pending.frameOffset);
+                }
+                unacked.clear();
+                unackedCount = 0;
+            }
+            latestSnapshot.set(null);
+            Server.ClientHandler handler = this.handler;
+            if (handler != null) handler.inputOverUdp = false;
+            EventLog.log("UDP 客戶端 " + lost + " 超過 " + TIMEOUT_MILLIS + " ms 沒有封包，改回 TCP");
+        }
+
+        // 只在送出執行緒上呼叫
+        private void transmitCounted(byte[] packet, int offset, int length) {
+            SocketAddress target = address;
+            if (target == null) return;
+            transmit(packet, offset, length, target);
+            lastSentAt = System.nanoTime();
+            bytesSent += length;
+            messagesSent++;
+        }
+
+        @Override
+        public int queueDepth() {
+            return tcp.queueDepth() + unackedCount + (latestSnapshot.get() != null ? 1 : 0);
+        }
+
+        @Override
+        public long droppedSnapshots() {
+            return tcp.droppedSnapshots();
+        }
+
+        @Override
+        public long bytesSent() {
+            return tcp.bytesSent() + bytesSent;
+        }
+
+        @Override
+        public long messagesSent() {
+            return tcp.messagesSent() + messagesSent;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+            unregister(this);
+            tcp.close();
+        }
+    }
+}
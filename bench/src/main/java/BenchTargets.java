@@ -0,0 +1,607 @@
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.function.IntSupplier;
+import java.util.zip.Deflater;
+
+// 基準測試要量測的工作
+//
+// 遊戲程式碼都在預設套件，這個類別也放在預設套件，才能直接使用 Room、Snapshot 等套件內可見的成員。
+// JMH 的基準測試類別必須放在具名套件（bench），所以由 bench.Targets 以反射呼叫這裡的工廠方法，
+// 取得 Runnable / IntSupplier 後每次量測都是一般的介面呼叫，不會有反射的成本。
+// 所有工作都不經過網路、也不會睡眠，房間以 Room.step 直接驅動。
+public final class BenchTargets {
+    private static final int FIRST_BENCH_ID = 1_000_000; // 補充的子彈使用的編號，避免與房間產生的編號重複
+    private static final int PLAYER_ROW_TOP = Simulation.SCREEN_HEIGHT / 2 - 40; // 玩家所在的高度範圍（含上下各 40 的餘裕）
+    private static final int PLAYER_ROW_BOTTOM = Simulation.SCREEN_HEIGHT / 2 + 80;
+    private static final int MAX_TIMER_DELAY_STEPS = 10_000; // 計時器基準測試的最長延遲（20 秒）
+    private static final int INTEREST_CELL_SIZE = 160; // 興趣範圍基準測試的格子邊長（場地為 8x5 格）
+    private static final Gson gson = new Gson();
+
+    private BenchTargets() {
+    }
+
+    // 不經過網路的連線，只累計送出的位元組數與訊息數
+    static final class DiscardOutbound implements Server.Outbound {
+        long bytes;
+        long messages;
+
+        @Override
+        public void send(byte[] buf, int offset, int length) {
+            bytes += length;
+            messages++;
+        }
+
+        @Override
+        public void sendThenCompress(byte[] buf, int offset, int length, Deflater deflater) {
+            deflater.end();
+            send(buf, offset, length);
+        }
+
+        @Override
+        public void sendSnapshot(byte[] buf, int offset, int length) {
+            bytes += length;
+            messages++;
+        }
+
+        @Override
+        public int queueDepth() {
+            return 0;
+        }
+
+        @Override
+        public long droppedSnapshots() {
+            return 0;
+        }
+
+        @Override
+        public long bytesSent() {
+            return bytes;
+        }
+
+        @Override
+        public long messagesSent() {
+            return messages;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    // 一步模擬：roomCount 個進行中的房間（每間兩位玩家）各執行一次 Room.step，每個房間維持 bulletsPerRoom 顆子彈
+    public static Runnable roomTick(int roomCount, int bulletsPerRoom) {
+        Room[] rooms = new Room[roomCount];
+        Random random = new Random(42);
+        int[] nextId = {FIRST_BENCH_ID};
+        for (int i = 0; i < roomCount; i++) {
+            rooms[i] = startedRoom(i + 1, new DiscardOutbound(), null);
+            nextId[0] = topUp(rooms[i], bulletsPerRoom, random, nextId[0]);
+        }
+        return () -> {
+            for (Room room : rooms) {
+                room.step();
+                nextId[0] = topUp(room, bulletsPerRoom, random, nextId[0]);
+            }
+        };
+    }
+
+    // 只有模擬核心、沒有房間與網路：matches 場對戰各走一步，輸入由固定種子的亂數產生，
+    // 結束的對戰以下一個種子重新開始，所以每次執行的結果都相同
+    public static Runnable simulationStep(int matches) {
+        Simulation[] sims = new Simulation[matches];
+        MatchRandom inputs = new MatchRandom(42);
+        long[] nextSeed = {1};
+        int[] keys = new int[Simulation.MAX_PLAYERS];
+        Simulation.Events events = new Simulation.Events();
+        for (int i = 0; i < matches; i++) {
+            sims[i] = new Simulation(nextSeed[0]++);
+            startMatch(sims[i]);
+        }
+        return () -> {
+            for (Simulation sim : sims) {
+                for (int p = 0; p < keys.length; p++) {
+                    keys[p] = inputs.nextInt(32); // 任意的移動與射擊組合
+                }
+                if (!sim.step(keys, events)) {
+                    sim.reset(nextSeed[0]++);
+                    startMatch(sim);
+                }
+            }
+        };
+    }
+
+    // 每場對戰的計時器走一步：rooms 場對戰各有 timersPerRoom 個計時器，到期的以隨機的延遲重新排定（冷卻、重生），
+    // 每一步另外取消一個計時器再排定新的。延遲的範圍到 MAX_TIMER_DELAY_STEPS，涵蓋時間輪的前兩層
+    public static IntSupplier timingWheel(int rooms, int timersPerRoom) {
+        TimingWheel[] wheels = new TimingWheel[rooms];
+        int[][] handles = new int[rooms][timersPerRoom];
+        TimingWheel.Due due = new TimingWheel.Due();
+        MatchRandom random = new MatchRandom(42);
+        for (int r = 0; r < rooms; r++) {
+            wheels[r] = new TimingWheel(timersPerRoom);
+            for (int t = 0; t < timersPerRoom; t++) {
+                handles[r][t] = wheels[r].schedule(1 + random.nextInt(MAX_TIMER_DELAY_STEPS), 0, t);
+            }
+        }
+        int[] step = {0};
+        return () -> {
+            step[0]++;
+            int fired = 0;
+            for (int r = 0; r < rooms; r++) {
+                TimingWheel wheel = wheels[r];
+                wheel.advance(step[0], due);
+                for (int k = 0; k < due.count; k++) {
+                    int t = due.arg[k];
+                    handles[r][t] = wheel.schedule(1 + random.nextInt(MAX_TIMER_DELAY_STEPS), 0, t);
+                }
+                fired += due.count;
+                int t = random.nextInt(timersPerRoom);
+                wheel.cancel(handles[r][t]);
+                handles[r][t] = wheel.schedule(1 + random.nextInt(MAX_TIMER_DELAY_STEPS), 0, t);
+            }
+            return fired;
+        };
+    }
+
+    // 與 timingWheel 相同的工作，改用優先佇列（O(log n) 排定，取消以標記延後刪除）作為比較
+    public static IntSupplier priorityQueueTimers(int rooms, int timersPerRoom) {
+        List<PriorityQueue<long[]>> queues = new ArrayList<>();
+        long[][][] live = new long[rooms][timersPerRoom][];
+        MatchRandom random = new MatchRandom(42);
+        Comparator<long[]> byDeadline = Comparator.comparingLong(e -> e[0]);
+        for (int r = 0; r < rooms; r++) {
+            PriorityQueue<long[]> queue = new PriorityQueue<>(byDeadline);
+            for (int t = 0; t < timersPerRoom; t++) {
+                live[r][t] = new long[] {1 + random.nextInt(MAX_TIMER_DELAY_STEPS), t};
+                queue.add(live[r][t]);
+            }
+            queues.add(queue);
+        }
+        int[] step = {0};
+        return () -> {
+            int now = ++step[0];
+            int fired = 0;
+            for (int r = 0; r < rooms; r++) {
+                PriorityQueue<long[]> queue = queues.get(r);
+                while (!queue.isEmpty() && queue.peek()[0] <= now) {
+                    long[] e = queue.poll();
+                    int t = (int) e[1];
+                    if (live[r][t] != e) continue; // 已取消
+                    live[r][t] = new long[] {now + 1 + random.nextInt(MAX_TIMER_DELAY_STEPS), t};
+                    queue.add(live[r][t]);
+                    fired++;
+                }
+                int t = random.nextInt(timersPerRoom);
+                live[r][t] = new long[] {now + 1 + random.nextInt(MAX_TIMER_DELAY_STEPS), t};
+                queue.add(live[r][t]);
+            }
+            return fired;
+        };
+    }
+
+    // 重播一場對戰紀錄（MatchReplay）：從開始的關鍵影格模擬到結尾。
+    // recording 為空字串時，先以固定種子與隨機輸入錄一場合成的對戰到暫存檔
+    public static IntSupplier replay(String recording) {
+        try {
+            Path path = recording.isEmpty() ? recordSyntheticMatch() : Paths.get(recording);
+            MatchReplay replay = MatchReplay.load(path);
+            return () -> {
+                try {
+                    replay.seek(0);
+                    return replay.runToEnd();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // 玩家每 50 步（100 ms）隨機換一次按鍵，記錄到對戰結束或 60 秒
+    private static Path recordSyntheticMatch() throws IOException {
+        Path directory = Files.createTempDirectory("bench-recording");
+        directory.toFile().deleteOnExit();
+        Simulation sim = new Simulation(42);
+        startMatch(sim);
+        MatchRecorder recorder = MatchRecorder.open(directory, 0, sim);
+        recorder.path().toFile().deleteOnExit();
+        MatchRandom random = new MatchRandom(7);
+        int[] keys = new int[Simulation.MAX_PLAYERS];
+        Simulation.Events events = new Simulation.Events();
+        int maxSteps = 60_000 / Simulation.TICK_RATE;
+        for (int step = 0; step < maxSteps; step++) {
+            if (step % 50 == 0) {
+                for (int p = 0; p < keys.length; p++) {
+                    keys[p] = random.nextInt(32);
+                }
+            }
+            recorder.input(sim.steps(), keys);
+            if (!sim.step(keys, events)) break;
+            if (sim.steps() % MatchRecorder.KEYFRAME_INTERVAL_STEPS == 0) {
+                recorder.keyframe(sim);
+            }
+        }
+        recorder.close(sim.steps());
+        if (!recorder.awaitClosed()) throw new IOException("對戰紀錄寫入失敗：" + recorder.path());
+        return recorder.path();
+    }
+
+    private static void startMatch(Simulation sim) {
+        for (int i = 0; i < Simulation.MAX_PLAYERS; i++) {
+            sim.addPlayer(i);
+        }
+        sim.start();
+    }
+
+    // 以空間索引做碰撞的粗略篩選（與 Room 相同：每次重建索引，再以每顆子彈查詢）
+    public static IntSupplier gridCollision(int players, int bullets) {
+        int[][] world = randomWorld(players, bullets);
+        SpatialGrid grid = new SpatialGrid(Simulation.SCREEN_WIDTH, Simulation.SCREEN_HEIGHT, 80);
+        int[] candidates = new int[players];
+        return () -> {
+            int[] px = world[0], py = world[1], bx = world[2], by = world[3];
+            grid.clear();
+            for (int p = 0; p < players; p++) {
+                grid.insert(px[p], py[p], px[p] + GameProtocol.PLAYER_SIZE, py[p] + GameProtocol.PLAYER_SIZE);
+            }
+            grid.build();
+            int hits = 0;
+            for (int b = 0; b < bullets; b++) {
+                if (grid.queryPoint(bx[b], by[b], candidates) > 0) hits++;
+            }
+            return hits;
+        };
+    }
+
+    // 對照組：每顆子彈逐一檢查每位玩家
+    public static IntSupplier bruteForceCollision(int players, int bullets) {
+        int[][] world = randomWorld(players, bullets);
+        return () -> {
+            int[] px = world[0], py = world[1], bx = world[2], by = world[3];
+            int hits = 0;
+            for (int b = 0; b < bullets; b++) {
+                for (int p = 0; p < players; p++) {
+                    if (bx[b] >= px[p] && bx[b] <= px[p] + GameProtocol.PLAYER_SIZE
+                            && by[b] >= py[p] && by[b] <= py[p] + GameProtocol.PLAYER_SIZE) {
+                        hits++;
+                        break;
+                    }
+                }
+            }
+            return hits;
+        };
+    }
+
+    // 編碼一個完整快照，回傳 frame 長度
+    public static IntSupplier encodeFull(int bullets) {
+        Snapshot snapshot = sampleSnapshot(2, bullets, 1);
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        return () -> {
+            w.begin(GameProtocol.MSG_SNAPSHOT);
+            w.writeVarInt(0);
+            snapshot.writeFull(w);
+            w.finish();
+            return w.frameLength();
+        };
+    }
+
+    // 編碼相對於上一個快照的差異（所有實體都移動過，另有一顆新增、一顆移除）
+    public static IntSupplier encodeDelta(int bullets) {
+        Snapshot base = sampleSnapshot(1, bullets, 0);
+        Snapshot current = sampleSnapshot(2, bullets, 1);
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        return () -> {
+            w.begin(GameProtocol.MSG_SNAPSHOT_DELTA);
+            w.writeVarInt(0);
+            current.writeDelta(w, base);
+            w.finish();
+            return w.frameLength();
+        };
+    }
+
+    // 對照組：舊版每次廣播以 Gson 把整個 GameState 轉成 JSON 字串，再以 UTF-8 送出
+    public static IntSupplier encodeJson(int bullets) {
+        LegacyGameState state = LegacyGameState.from(sampleSnapshot(2, bullets, 1));
+        return () -> gson.toJson(state).getBytes(java.nio.charset.StandardCharsets.UTF_8).length;
+    }
+
+    // Room.broadcastGameState：擷取快照並為兩位玩家各編碼一次差異（客戶端每次都確認上一個快照）
+    public static IntSupplier broadcast(int bullets) {
+        DiscardOutbound out = new DiscardOutbound();
+        List<Server.ClientHandler> clients = new ArrayList<>();
+        Room room = startedRoom(1, out, clients);
+        Random random = new Random(42);
+        int[] state = {FIRST_BENCH_ID, 0}; // 下一個子彈編號、目前的快照序號
+        state[0] = topUp(room, bullets, random, state[0]);
+        return () -> {
+            room.step();
+            state[0] = topUp(room, bullets, random, state[0]);
+            room.broadcastGameState();
+            int tick = ++state[1];
+            for (Server.ClientHandler client : clients) {
+                client.ackedTick = tick;
+            }
+            return (int) out.bytes;
+        };
+    }
+
+    // 興趣範圍過濾：viewers 位玩家散布在場地上，每位只收到附近的格子，相同的格子片段只編碼一次（客戶端每次都確認上一個快照）
+    public static IntSupplier interestShared(int viewers, int bullets) {
+        InterestGrid grid = new InterestGrid(Simulation.SCREEN_WIDTH, Simulation.SCREEN_HEIGHT, INTEREST_CELL_SIZE, 1);
+        Snapshot[] frames = {crowdSnapshot(viewers, bullets, 0), crowdSnapshot(viewers, bullets, 1)};
+        InterestGrid.Viewer[] views = new InterestGrid.Viewer[viewers];
+        for (int i = 0; i < viewers; i++) {
+            views[i] = new InterestGrid.Viewer();
+        }
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        int[] tick = {0};
+        return () -> {
+            int t = ++tick[0];
+            Snapshot current = frames[t % 2];
+            current.tick = t;
+            grid.capture(current);
+            int bytes = 0;
+            for (int i = 0; i < viewers; i++) {
+                w.begin(GameProtocol.MSG_SNAPSHOT_CELLS);
+                w.writeVarInt(0);
+                grid.writeCells(w, views[i], t, grid.viewOf(current.playerX[i], current.playerY[i]), t - 1);
+                w.finish();
+                bytes += w.frameLength();
+            }
+            return bytes;
+        };
+    }
+
+    // 對照組：同樣的視野，但為每位客戶端各自過濾出快照再編碼差異，重疊的部分會重複編碼
+    public static IntSupplier interestPerClient(int viewers, int bullets) {
+        InterestGrid grid = new InterestGrid(Simulation.SCREEN_WIDTH, Simulation.SCREEN_HEIGHT, INTEREST_CELL_SIZE, 1);
+        Snapshot[] frames = {crowdSnapshot(viewers, bullets, 0), crowdSnapshot(viewers, bullets, 1)};
+        Snapshot[][] filtered = new Snapshot[viewers][2];
+        for (Snapshot[] pair : filtered) {
+            pair[0] = new Snapshot();
+            pair[1] = new Snapshot();
+        }
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        int[] tick = {0};
+        return () -> {
+            int t = ++tick[0];
+            Snapshot current = frames[t % 2];
+            current.tick = t;
+            int bytes = 0;
+            for (int i = 0; i < viewers; i++) {
+                long view = grid.viewOf(current.playerX[i], current.playerY[i]);
+                Snapshot mine = filtered[i][t % 2];
+                filterView(grid, current, view, mine);
+                w.begin(GameProtocol.MSG_SNAPSHOT_DELTA);
+                w.writeVarInt(0);
+                mine.writeDelta(w, filtered[i][(t + 1) % 2]);
+                w.finish();
+                bytes += w.frameLength();
+            }
+            return bytes;
+        };
+    }
+
+    private static void filterView(InterestGrid grid, Snapshot source, long view, Snapshot target) {
+        target.clear(source.tick);
+        target.time = source.time;
+        for (int i = 0; i < source.playerCount; i++) {
+            if ((view >>> grid.cellOf(source.playerX[i], source.playerY[i]) & 1) != 0) {
+                target.addPlayer(source.playerId[i], source.playerX[i], source.playerY[i], source.playerHealth[i],
+                        source.playerColor[i], source.bulletColor[i]);
+            }
+        }
+        for (int i = 0; i < source.bulletCount; i++) {
+            if ((view >>> grid.cellOf(source.bulletX[i], source.bulletY[i]) & 1) != 0) {
+                target.addBullet(source.bulletId[i], source.bulletOwner[i], source.bulletX[i], source.bulletY[i]);
+            }
+        }
+        for (int i = 0; i < source.blackCount; i++) {
+            if ((view >>> grid.cellOf(source.blackX[i], source.blackY[i]) & 1) != 0) {
+                target.addBlackBullet(source.blackId[i], source.blackX[i], source.blackY[i]);
+            }
+        }
+    }
+
+    // viewers 位玩家與 bullets 顆子彈隨機散布在場地上；step 為 1 時所有實體往右下移動一點
+    private static Snapshot crowdSnapshot(int viewers, int bullets, int step) {
+        int[][] world = randomWorld(viewers, bullets);
+        Snapshot snapshot = new Snapshot();
+        snapshot.clear(step);
+        snapshot.time = step * 50;
+        for (int p = 0; p < viewers; p++) {
+            snapshot.addPlayer(p, world[0][p] + step * 2, world[1][p] + step * 2, 100, 0xFFFFFF00, 0xFF0000FF);
+        }
+        for (int b = 0; b < bullets; b++) {
+            snapshot.addBullet(viewers + b, b % viewers, world[2][b] + step * 4, world[3][b]);
+        }
+        snapshot.sortById();
+        return snapshot;
+    }
+
+    // 客戶端解碼完整快照到重複使用的 Snapshot
+    public static IntSupplier decodeFull(int bullets) {
+        Snapshot source = sampleSnapshot(2, bullets, 1);
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        w.begin(GameProtocol.MSG_SNAPSHOT);
+        w.writeVarInt(0);
+        source.writeFull(w);
+        w.finish();
+        return decoder(w.toFrame(), null);
+    }
+
+    // 客戶端以歷史中的基準快照還原差異
+    public static IntSupplier decodeDelta(int bullets) {
+        Snapshot base = sampleSnapshot(1, bullets, 0);
+        Snapshot source = sampleSnapshot(2, bullets, 1);
+        GameProtocol.Writer w = new GameProtocol.Writer();
+        w.begin(GameProtocol.MSG_SNAPSHOT_DELTA);
+        w.writeVarInt(0);
+        source.writeDelta(w, base);
+        w.finish();
+        return decoder(w.toFrame(), base);
+    }
+
+    // 對照組：舊版客戶端以 Gson 把每一行 JSON 轉回 GameState 物件
+    public static IntSupplier decodeJson(int bullets) {
+        String json = gson.toJson(LegacyGameState.from(sampleSnapshot(2, bullets, 1)));
+        return () -> gson.fromJson(json, LegacyGameState.class).players.size();
+    }
+
+    // 與 Client.GameStateReceiver 相同的解碼流程：長度、類型、lastInput，再解出快照
+    private static IntSupplier decoder(byte[] frame, Snapshot base) {
+        GameProtocol.Reader reader = new GameProtocol.Reader();
+        Snapshot target = new Snapshot();
+        return () -> {
+            try {
+                reader.wrap(frame, 0, frame.length);
+                reader.readVarInt(); // frame 長度
+                reader.readByte(); // 訊息類型
+                reader.readVarInt(); // lastInput
+                if (base != null) {
+                    target.readDelta(reader, base);
+                } else {
+                    target.readFull(reader);
+                }
+                return target.bulletCount;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        };
+    }
+
+    // 建立一個已開始對戰的房間，兩位玩家都使用不經過網路的連線
+    private static Room startedRoom(int id, DiscardOutbound out, List<Server.ClientHandler> clients) {
+        Room room = new Room(id, null, null);
+        for (int i = 0; i < Room.MAX_PLAYERS; i++) {
+            int userId = room.reserveSlot();
+            Server.ClientHandler handler = new Server.ClientHandler(out, room, userId);
+            room.join(handler);
+            room.player(userId).health = Integer.MAX_VALUE / 2; // 量測期間不讓對戰結束
+            if (clients != null) clients.add(handler);
+        }
+        room.step(); // 進入對戰狀態
+        return room;
+    }
+
+    // 把房間內的玩家子彈補到 count 顆，回傳下一個可用的編號。
+    // 子彈放在玩家所在高度以外的列上，每一步都會做碰撞檢查，但只會飛出場地、不會擊中玩家，
+    // 避免擊中時的輸出與血量變化影響量測
+    private static int topUp(Room room, int count, Random random, int nextId) {
+        ProjectileStore p = room.projectiles();
+        while (p.count < count) {
+            int y = random.nextInt(Simulation.SCREEN_HEIGHT - (PLAYER_ROW_BOTTOM - PLAYER_ROW_TOP));
+            if (y >= PLAYER_ROW_TOP) y += PLAYER_ROW_BOTTOM - PLAYER_ROW_TOP;
+            int owner = random.nextInt(Room.MAX_PLAYERS);
+            int direction = owner == 0 ? 1 : -1;
+            p.addBullet(nextId++, owner, random.nextInt(Simulation.SCREEN_WIDTH), y, direction, 0xFF0000FF);
+            // 與發射時相同，計入玩家場上的子彈數；子彈消失時模擬會扣回，不計入的話會變成負數，射擊上限也跟著失效
+            Simulation.PlayerState player = room.player(owner);
+            if (player != null) player.bulletCount++;
+        }
+        return nextId;
+    }
+
+    // 隨機的玩家位置與子彈位置：{玩家 x, 玩家 y, 子彈 x, 子彈 y}
+    private static int[][] randomWorld(int players, int bullets) {
+        Random random = new Random(42);
+        int[][] world = {new int[players], new int[players], new int[bullets], new int[bullets]};
+        for (int p = 0; p < players; p++) {
+            world[0][p] = random.nextInt(Simulation.SCREEN_WIDTH - GameProtocol.PLAYER_SIZE);
+            world[1][p] = random.nextInt(Simulation.SCREEN_HEIGHT - GameProtocol.PLAYER_SIZE);
+        }
+        for (int b = 0; b < bullets; b++) {
+            world[2][b] = random.nextInt(Simulation.SCREEN_WIDTH);
+            world[3][b] = random.nextInt(Simulation.SCREEN_HEIGHT);
+        }
+        return world;
+    }
+
+    // 兩位玩家、bullets 顆玩家子彈與 bullets / 8 顆黑色子彈；step 越大位置越往前，並換掉編號最小的一顆子彈
+    static Snapshot sampleSnapshot(int tick, int bullets, int step) {
+        Snapshot snapshot = new Snapshot();
+        snapshot.clear(tick);
+        snapshot.time = tick * 50;
+        snapshot.addPlayer(0, 50 + step * 25, 340, 90, 0xFFFFFF00, 0xFF0000FF);
+        snapshot.addPlayer(1, 1190, 340 - step * 25, 100, 0xFF00FF00, 0xFFFF0000);
+        for (int i = step; i < bullets + step; i++) {
+            int owner = i % 2;
+            int x = (i * 37) % Simulation.SCREEN_WIDTH + (owner == 0 ? step : -step) * 100;
+            snapshot.addBullet(i + 1, owner, x, (i * 53) % Simulation.SCREEN_HEIGHT);
+        }
+        for (int i = 0; i < bullets / 8; i++) {
+            snapshot.addBlackBullet(1_000 + i, (i * 97) % Simulation.SCREEN_WIDTH + step * 71, (i * 61) % Simulation.SCREEN_HEIGHT + step * 71);
+        }
+        snapshot.sortById();
+        return snapshot;
+    }
+
+    // 舊版以 JSON 傳送的 GameState 結構（欄位與當時的 Server.GameState 相同）
+    static class LegacyGameState {
+        List<LegacyPlayer> players = new ArrayList<>();
+        List<LegacyBlackBullet> blackBullets = new ArrayList<>();
+
+        static LegacyGameState from(Snapshot s) {
+            LegacyGameState state = new LegacyGameState();
+            for (int i = 0; i < s.playerCount; i++) {
+                LegacyPlayer player = new LegacyPlayer();
+                player.userId = s.playerId[i];
+                player.x = s.playerX[i];
+                player.y = s.playerY[i];
+                player.health = s.playerHealth[i];
+                player.playerColor = s.playerColor[i];
+                player.bulletColor = s.bulletColor[i];
+                for (int j = 0; j < s.bulletCount; j++) {
+                    if (s.bulletOwner[j] != player.userId) continue;
+                    LegacyBullet bullet = new LegacyBullet();
+                    bullet.x = s.bulletX[j];
+                    bullet.y = s.bulletY[j];
+                    bullet.direction = player.userId == 0 ? 1 : -1;
+                    bullet.color = player.bulletColor;
+                    player.bullets.add(bullet);
+                }
+                state.players.add(player);
+            }
+            for (int i = 0; i < s.blackCount; i++) {
+                LegacyBlackBullet bullet = new LegacyBlackBullet();
+                bullet.x = s.blackX[i];
+                bullet.y = s.blackY[i];
+                bullet.dx = 0.7071067811865475;
+                bullet.dy = -0.7071067811865475;
+                state.blackBullets.add(bullet);
+            }
+            return state;
+        }
+    }
+
+    static class LegacyPlayer {
+        int userId;
+        int x, y;
+        int speed = 2;
+        int fireCooldown = 0;
+        int health;
+        List<LegacyBullet> bullets = new ArrayList<>();
+        Set<String> keysPressed = new HashSet<>();
+        int playerColor;
+        int bulletColor;
+    }
+
+    static class LegacyBullet {
+        int x, y;
+        int speed = 4;
+        int direction;
+        int color;
+    }
+
+    static class LegacyBlackBullet {
+        int x, y;
+        double dx, dy;
+        int speed = 4;
+    }
+}
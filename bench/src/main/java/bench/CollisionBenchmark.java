@@ -0,0 +1,39 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.*;
+
+// 子彈對玩家的碰撞檢查：SpatialGrid（每次重建）與逐一比對
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CollisionBenchmark {
+    @Param({"2", "32"})
+    int players;
+
+    @Param({"16", "256"})
+    int bullets;
+
+    private IntSupplier grid;
+    private IntSupplier bruteForce;
+
+    @Setup
+    public void setUp() {
+        grid = Targets.create("gridCollision", players, bullets);
+        bruteForce = Targets.create("bruteForceCollision", players, bullets);
+    }
+
+    @Benchmark
+    public int grid() {
+        return grid.getAsInt();
+    }
+
+    @Benchmark
+    public int bruteForce() {
+        return bruteForce.getAsInt();
+    }
+}
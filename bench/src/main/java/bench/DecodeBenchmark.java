@@ -0,0 +1,43 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.*;
+
+// 客戶端的快照解碼：二進位完整 / 差異快照（解到重複使用的 Snapshot），與舊版的 Gson JSON
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DecodeBenchmark {
+    @Param({"8", "64", "200"})
+    int bullets;
+
+    private IntSupplier binaryFull;
+    private IntSupplier binaryDelta;
+    private IntSupplier json;
+
+    @Setup
+    public void setUp() {
+        binaryFull = Targets.create("decodeFull", bullets);
+        binaryDelta = Targets.create("decodeDelta", bullets);
+        json = Targets.create("decodeJson", bullets);
+    }
+
+    @Benchmark
+    public int binaryFull() {
+        return binaryFull.getAsInt();
+    }
+
+    @Benchmark
+    public int binaryDelta() {
+        return binaryDelta.getAsInt();
+    }
+
+    @Benchmark
+    public int json() {
+        return json.getAsInt();
+    }
+}
@@ -0,0 +1,39 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.*;
+
+// 興趣範圍過濾的一次廣播：共用每一格的片段，與為每位客戶端各自過濾、編碼比較
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InterestBenchmark {
+    @Param({"16", "64"})
+    int viewers;
+
+    @Param({"500"})
+    int bullets;
+
+    private IntSupplier shared;
+    private IntSupplier perClient;
+
+    @Setup
+    public void setUp() {
+        shared = Targets.create("interestShared", viewers, bullets);
+        perClient = Targets.create("interestPerClient", viewers, bullets);
+    }
+
+    @Benchmark
+    public int sharedFragments() {
+        return shared.getAsInt();
+    }
+
+    @Benchmark
+    public int perClient() {
+        return perClient.getAsInt();
+    }
+}
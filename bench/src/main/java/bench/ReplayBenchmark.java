@@ -0,0 +1,31 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.*;
+
+// 重播一整場對戰紀錄的時間。預設使用合成的對戰，
+// 要以實際的對戰量測時指定紀錄檔：java -jar benchmarks.jar ReplayBenchmark -p recording=recordings/xxx.nukr
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReplayBenchmark {
+    @Param({""})
+    String recording;
+
+    private IntSupplier replay;
+
+    @Setup
+    public void setUp() {
+        replay = Targets.create("replay", recording);
+    }
+
+    // 回傳模擬的步數
+    @Benchmark
+    public int replay() {
+        return replay.getAsInt();
+    }
+}
@@ -0,0 +1,31 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// 一個工作執行緒的一步模擬：依序對每個房間呼叫 Room.step（每個房間兩位玩家）
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RoomTickBenchmark {
+    @Param({"1", "16", "128"})
+    int rooms;
+
+    @Param({"0", "32", "200"})
+    int bulletsPerRoom;
+
+    private Runnable tick;
+
+    @Setup
+    public void setUp() {
+        tick = Targets.create("roomTick", rooms, bulletsPerRoom);
+    }
+
+    @Benchmark
+    public void tick() {
+        tick.run();
+    }
+}
@@ -0,0 +1,51 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.*;
+
+// 伺服器端的快照編碼：二進位完整 / 差異快照、舊版的 Gson JSON，以及整個 broadcastGameState
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SerializationBenchmark {
+    @Param({"8", "64", "200"})
+    int bullets;
+
+    private IntSupplier binaryFull;
+    private IntSupplier binaryDelta;
+    private IntSupplier json;
+    private IntSupplier broadcast;
+
+    @Setup
+    public void setUp() {
+        binaryFull = Targets.create("encodeFull", bullets);
+        binaryDelta = Targets.create("encodeDelta", bullets);
+        json = Targets.create("encodeJson", bullets);
+        broadcast = Targets.create("broadcast", bullets);
+    }
+
+    @Benchmark
+    public int binaryFull() {
+        return binaryFull.getAsInt();
+    }
+
+    @Benchmark
+    public int binaryDelta() {
+        return binaryDelta.getAsInt();
+    }
+
+    @Benchmark
+    public int json() {
+        return json.getAsInt();
+    }
+
+    // 包含一步模擬（讓快照有變化）與兩位玩家的差異編碼
+    @Benchmark
+    public int stepAndBroadcast() {
+        return broadcast.getAsInt();
+    }
+}
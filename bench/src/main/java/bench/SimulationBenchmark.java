@@ -0,0 +1,28 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+// 只有模擬核心（Simulation）的一步：不經過房間、網路與快照，每場對戰的輸入與種子都固定
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SimulationBenchmark {
+    @Param({"1", "128", "1024"})
+    int matches;
+
+    private Runnable step;
+
+    @Setup
+    public void setUp() {
+        step = Targets.create("simulationStep", matches);
+    }
+
+    @Benchmark
+    public void step() {
+        step.run();
+    }
+}
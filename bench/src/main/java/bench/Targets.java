@@ -0,0 +1,24 @@
+package bench;
+
+import java.lang.reflect.Method;
+
+// 取得預設套件中 BenchTargets 建立的工作（具名套件無法直接引用預設套件的類別）
+final class Targets {
+    private Targets() {
+    }
+
+    @SuppressWarnings("unchecked")
+    static <T> T create(String factory, Object... args) {
+        try {
+            Class<?> targets = Class.forName("BenchTargets");
+            for (Method method : targets.getMethods()) {
+                if (method.getName().equals(factory) && method.getParameterCount() == args.length) {
+                    return (T) method.invoke(null, args);
+                }
+            }
+            throw new IllegalArgumentException("找不到基準測試工作：" + factory);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import org.openjdk.jmh.annotations.*;
+
+// 所有對戰的計時器走一步：每場對戰一個 TimingWheel，與優先佇列比較
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TimerBenchmark {
+    @Param({"1000"})
+    int rooms;
+
+    @Param({"8", "256"})
+    int timersPerRoom;
+
+    private IntSupplier wheel;
+    private IntSupplier priorityQueue;
+
+    @Setup
+    public void setUp() {
+        wheel = Targets.create("timingWheel", rooms, timersPerRoom);
+        priorityQueue = Targets.create("priorityQueueTimers", rooms, timersPerRoom);
+    }
+
+    @Benchmark
+    public int timingWheel() {
+        return wheel.getAsInt();
+    }
+
+    @Benchmark
+    public int priorityQueue() {
+        return priorityQueue.getAsInt();
+    }
+}